@@ -1,7 +1,6 @@
 package meshgen;
 
 import java.util.ArrayList;
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.nio.file.Files;
@@ -17,7 +16,7 @@ import math.Vector3;
  */
 public class OBJMesh {
 
-	public class OBJFileFormatException extends IOException {
+	public static class OBJFileFormatException extends IOException {
 		public OBJFileFormatException() {
 			super();
 		}
@@ -88,6 +87,7 @@ public class OBJMesh {
 
 	/**
 	 * Parses an OBJ file and sets this to its contents.
+	 * Large files are parsed in parallel; see OBJParser.
 	 * @throws IOException if there is a problem reading the file.
 	 * @throws OBJFileFormatException if the input OBJ file is malformed.
 	 */
@@ -97,80 +97,7 @@ public class OBJMesh {
 		normals.clear();
 		faces.clear();
 
-		BufferedReader reader = Files.newBufferedReader(Paths.get(filename));
-		String line;
-		while ((line = reader.readLine()) != null) {
-			String[] tokens = line.split("\\s+");
-			if (tokens.length == 0 || tokens[0].length() == 0) { // Blank line
-				continue;
-			} else if (tokens[0].charAt(0) == '#') { // Comment
-				continue;
-			} else if (tokens[0].equals("v")) { // Vertex position
-				if (tokens.length != 4) {
-					throw new OBJFileFormatException("Malformed vertex position specification: " + line);
-				}
-				Vector3 v = new Vector3(
-					Float.parseFloat(tokens[1]),
-					Float.parseFloat(tokens[2]),
-					Float.parseFloat(tokens[3]));
-				positions.add(v);
-			} else if (tokens[0].equals("vt")) { // Vertex texture coordinate (UV)
-				if (tokens.length != 3) {
-					throw new OBJFileFormatException("Malformed vertex texture coordinate specification: " + line);
-				}
-				Vector2 vt = new Vector2(
-					Float.parseFloat(tokens[1]),
-					Float.parseFloat(tokens[2]));
-				uvs.add(vt);
-			} else if (tokens[0].equals("vn")) { // Vertex normal
-				if (tokens.length != 4) {
-					throw new OBJFileFormatException("Malformed vertex normal specification: " + line);
-				}
-				Vector3 vn = new Vector3(
-					Float.parseFloat(tokens[1]),
-					Float.parseFloat(tokens[2]),
-					Float.parseFloat(tokens[3]));
-				normals.add(vn);
-			} else if (tokens[0].equals("f")) { // Face
-				if (tokens.length < 4) {
-					throw new OBJFileFormatException("Malformed face specification: " + line);
-				}
-				int nVerts = tokens.length-1;
-				OBJFace f = new OBJFace(nVerts, false, false);
-				for (int i=0; i<nVerts; i++) {
-					String[] vertexTokens = tokens[i+1].split("/");
-					switch (vertexTokens.length) {
-					case 3:
-						if (!vertexTokens[2].equals("")) {
-							if (f.normals == null) {
-								f.normals = new int[nVerts];
-							}
-							f.normals[i] = Integer.parseInt(vertexTokens[2]) + OBJFace.indexBase - 1;
-						}
-						// Intentionally fall through
-					case 2:
-						if (!vertexTokens[1].equals("")) {
-							if (f.uvs == null) {
-								f.uvs = new int[nVerts];
-							}
-							f.uvs[i] = Integer.parseInt(vertexTokens[1]) + OBJFace.indexBase - 1;
-						}
-						// Intentionally fall through
-					case 1:
-						f.positions[i] = Integer.parseInt(vertexTokens[0]) + OBJFace.indexBase - 1;
-						break;
-
-					default:
-						throw new OBJFileFormatException("Malformed face specification: " + line);
-					}
-				}
-				faces.add(f);
-			} else {
-				System.err.println("Warning: ignored unrecognized OBJ specifier: " + tokens[0]);
-			}
-		}
-
-		reader.close();
+		OBJParser.parse(this, filename);
 	}
 
 	/**
@@ -258,9 +185,14 @@ public class OBJMesh {
 				}
 			}
 
+			// Only the positions in neighboring grid cells can be duplicates
+			PositionGrid grid = new PositionGrid();
 			for (int i=0; i<positions.size(); i++) {
-				for (int j=i+1; j<positions.size(); j++) {
-					if (positions.get(i).equalsApprox(positions.get(j))) {
+				grid.add(positions.get(i), i);
+			}
+			for (int i=0; i<positions.size(); i++) {
+				for (int j : grid.near(positions.get(i))) {
+					if (j > i && positions.get(i).equalsApprox(positions.get(j))) {
 						nDupPos++;
 					}
 				}
@@ -450,7 +382,9 @@ public class OBJMesh {
 	 * 3) For each face in m2, a face exists in m1 with the same vertex positions, texture coordinates, and normals (if applicable)
 	 * If verbose is true and this method returns false, the reason the meshes are not equivalent will be printed.
 	 * @warning This method assumes that m1.isValid() and m2.isValid() are both true.
-	 * @note This method does a brute force comparison between all faces of both input meshes...be patient if using large meshes.
+	 * @note Faces are only compared with the faces of the other mesh that have a vertex near their first vertex,
+	 * found by bucketing the faces by the positions of their vertices, so this takes time roughly linear in the
+	 * number of faces. The result and the diagnostics are the same as comparing every pair of faces.
 	 */
 	public static boolean compare(OBJMesh m1, OBJMesh m2, boolean verbose) {
 		if (m1.faces.size() != m2.faces.size()) {
@@ -460,10 +394,13 @@ public class OBJMesh {
 			return false;
 		}
 
+		PositionGrid grid2 = faceGrid(m2);
 		for (int i1=0; i1<m1.faces.size(); i1++) {
 			OBJFace f1 = m1.faces.get(i1);
 			boolean foundMatch = false;
-			for (int i2=0; !foundMatch && i2<m2.faces.size(); i2++) {
+			int[] candidates = grid2.near(m1.getPosition(f1, 0));
+			for (int c=0; !foundMatch && c<candidates.length; c++) {
+				int i2 = candidates[c];
 				OBJFace f2 = m2.faces.get(i2);
 				int comp = compareFaces(m1, f1, m2, f2);
 				if (comp == 2 && verbose) {
@@ -482,10 +419,13 @@ public class OBJMesh {
 			}
 		}
 
+		PositionGrid grid1 = faceGrid(m1);
 		for (int i2=0; i2<m2.faces.size(); i2++) {
 			OBJFace f2 = m2.faces.get(i2);
 			boolean foundMatch = false;
-			for (int i1=0; !foundMatch && i1<m1.faces.size(); i1++) {
+			int[] candidates = grid1.near(m2.getPosition(f2, 0));
+			for (int c=0; !foundMatch && c<candidates.length; c++) {
+				int i1 = candidates[c];
 				OBJFace f1 = m1.faces.get(i1);
 				int comp = compareFaces(m1, f1, m2, f2);
 				if (comp == 2 && verbose) {
@@ -507,6 +447,21 @@ public class OBJMesh {
 		return true;
 	}
 
+	/**
+	 * Returns the faces of a mesh bucketed by the positions of all of their vertices.
+	 * A face can only match faces that have a vertex near its first vertex.
+	 */
+	private static PositionGrid faceGrid(OBJMesh m) {
+		PositionGrid grid = new PositionGrid();
+		for (int i=0; i<m.faces.size(); i++) {
+			OBJFace f = m.faces.get(i);
+			for (int j=0; j<f.numVerts(); j++) {
+				grid.add(m.getPosition(f, j), i);
+			}
+		}
+		return grid;
+	}
+
 	/**
 	 * Returns 0 if the input faces are not equivalent.
 	 * Returns 1 if the input faces are equivalent.
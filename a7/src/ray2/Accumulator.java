@@ -0,0 +1,152 @@
+package ray2;
+
+import egl.math.Colord;
+
+/**
+ * An accumulation buffer for progressive rendering: the running sum of all
+ * samples taken in each pixel, plus enough statistics about their luminance to
+ * estimate how far the mean of each pixel still is from converging. The mean
+ * can be resolved into an Image at any time.
+ *
+ * Pixels are independent, so different threads may add samples to different
+ * pixels concurrently.
+ */
+public class Accumulator {
+
+	protected int width, height;
+
+	/** Sum of the samples in each pixel: r, g, b as [3 * (x + y * width) + channel]. */
+	protected double[] sum;
+
+	/** Sum and sum of squares of the displayed luminance of the samples in each pixel. */
+	protected double[] lumSum, lumSqSum;
+
+	/** The number of samples in each pixel. */
+	protected int[] count;
+
+	/**
+	 * Create an empty accumulation buffer.
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 */
+	public Accumulator(int width, int height) {
+		this.width = width;
+		this.height = height;
+		sum = new double[3 * width * height];
+		lumSum = new double[width * height];
+		lumSqSum = new double[width * height];
+		count = new int[width * height];
+	}
+
+	public int getWidth() { return width; }
+	public int getHeight() { return height; }
+
+	/**
+	 * Add one sample to a pixel.
+	 * @param color the radiance of the sample
+	 * @param exposure the exposure the image will be displayed with, used to
+	 * measure the luminance of the sample in display units
+	 * @param x the x coordinate of the pixel
+	 * @param y the y coordinate of the pixel
+	 */
+	public void add(Colord color, double exposure, int x, int y) {
+		int i = x + y * width;
+		sum[3 * i] += color.x;
+		sum[3 * i + 1] += color.y;
+		sum[3 * i + 2] += color.z;
+
+		double lum = displayLuminance(color, exposure);
+		lumSum[i] += lum;
+		lumSqSum[i] += lum * lum;
+		count[i]++;
+	}
+
+	/**
+	 * @return the luminance of color after exposure, clamped to the displayable
+	 * range [0, 1]; NaN counts as 0 so that one bad sample cannot stall convergence
+	 */
+	public static double displayLuminance(Colord color, double exposure) {
+		double lum = (0.2126 * color.x + 0.7152 * color.y + 0.0722 * color.z) * exposure;
+		return lum > 0 ? Math.min(1, lum) : 0;
+	}
+
+	/**
+	 * @return the number of samples in pixel (x, y)
+	 */
+	public int getCount(int x, int y) {
+		return count[x + y * width];
+	}
+
+	/**
+	 * Set outColor to the mean of the samples in pixel (x, y), or black if there are none.
+	 */
+	public void getMean(Colord outColor, int x, int y) {
+		int i = x + y * width;
+		if (count[i] == 0) {
+			outColor.setZero();
+			return;
+		}
+		double inv = 1.0 / count[i];
+		outColor.set(sum[3 * i] * inv, sum[3 * i + 1] * inv, sum[3 * i + 2] * inv);
+	}
+
+	/**
+	 * @return the standard error of the mean displayed luminance of pixel (x, y),
+	 * or positive infinity if it has fewer than two samples
+	 */
+	public double getError(int x, int y) {
+		int i = x + y * width;
+		int n = count[i];
+		if (n < 2)
+			return Double.POSITIVE_INFINITY;
+		double mean = lumSum[i] / n;
+		double variance = Math.max(0, lumSqSum[i] / n - mean * mean) * n / (n - 1);
+		return Math.sqrt(variance / n);
+	}
+
+	/**
+	 * @return the root mean square over all pixels of the standard error of their
+	 * mean displayed luminance; noisy pixels weigh more than in a plain average
+	 */
+	public double getRmsError() {
+		double total = 0;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				double e = getError(x, y);
+				total += e * e;
+			}
+		}
+		return Math.sqrt(total / (width * height));
+	}
+
+	/**
+	 * Write the current mean of each pixel in a region, scaled by exposure, into an image.
+	 * @param outImage the image to write to, which must have the same size
+	 * @param exposure the exposure to scale by
+	 * @param xl the first column to write
+	 * @param yl the first row to write
+	 * @param xh one past the last column to write
+	 * @param yh one past the last row to write
+	 */
+	public void resolve(Image outImage, double exposure, int xl, int yl, int xh, int yh) {
+		float[] row = new float[3 * (xh - xl)];
+		for (int y = yl; y < yh; y++) {
+			for (int x = xl; x < xh; x++) {
+				int i = x + y * width;
+				double scale = count[i] == 0 ? 0 : exposure / count[i];
+				for (int c = 0; c < 3; c++)
+					row[3 * (x - xl) + c] = (float) (sum[3 * i + c] * scale);
+			}
+			outImage.setRow(y, xl, xh, row, 0);
+		}
+	}
+
+	/**
+	 * Write the current mean of every pixel, scaled by exposure, into an image.
+	 * @param outImage the image to write to, which must have the same size
+	 * @param exposure the exposure to scale by
+	 */
+	public void resolve(Image outImage, double exposure) {
+		resolve(outImage, exposure, 0, 0, width, height);
+	}
+}
@@ -0,0 +1,185 @@
+package ray2;
+
+import ray2.camera.Camera;
+import ray2.sampler.IndependentSampler;
+import ray2.sampler.Sampler;
+import egl.math.Colord;
+
+/**
+ * Variance-driven supersampling. Every pixel starts with a small batch of
+ * samples; more batches are added only while the standard error of the
+ * pixel's mean luminance is above a threshold, up to a per-pixel cap. Flat
+ * regions therefore stop after the first batch, and the samples go to edges,
+ * highlights and other noisy pixels. Sample n of a pixel is sample n of the
+ * scene's Sampler, so with a low-discrepancy sampler the samples taken so far
+ * stay spread over the pixel however many batches it takes. With the default
+ * IndependentSampler the first batch is still stratified, jittered over a grid
+ * of cells, as most pixels take only that batch.
+ *
+ * Enabled by an &lt;adaptive&gt; element in the scene file, e.g.
+ *
+ *   &lt;adaptive&gt;
+ *     &lt;minSamples&gt;4&lt;/minSamples&gt;
+ *     &lt;maxSamples&gt;64&lt;/maxSamples&gt;
+ *     &lt;threshold&gt;0.005&lt;/threshold&gt;
+ *   &lt;/adaptive&gt;
+ *
+ * The number of samples taken in each pixel is recorded and can be written out
+ * as a heatmap.
+ */
+public class AdaptiveSampler {
+
+	/** The size of one batch. */
+	protected int minSamples = 4;
+	public void setMinSamples(int minSamples) { this.minSamples = Math.max(1, minSamples); }
+
+	/** The most samples a pixel may take; 0 uses the scene's fixed sample grid. */
+	protected int maxSamples = 0;
+	public void setMaxSamples(int maxSamples) { this.maxSamples = Math.max(0, maxSamples); }
+
+	/**
+	 * The largest acceptable standard error of a pixel's mean luminance, measured
+	 * after exposure and clamped to the displayable range [0, 1].
+	 */
+	protected double threshold = 0.01;
+	public void setThreshold(double threshold) { this.threshold = threshold; }
+
+	/** The number of samples taken in each pixel, as [x + y * width]. */
+	private int[] sampleCounts;
+	private int width, height;
+
+	public AdaptiveSampler() { }
+
+	/**
+	 * Prepare to render an image of the given size, clearing the sample counts.
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 */
+	public void init(int width, int height) {
+		this.width = width;
+		this.height = height;
+		sampleCounts = new int[width * height];
+	}
+
+	/**
+	 * @return the per-pixel sample cap for scene
+	 */
+	public int getMaxSamples(Scene scene) {
+		return maxSamples > 0 ? maxSamples : scene.getSamples() * scene.getSamples();
+	}
+
+	/**
+	 * @return the number of samples taken in pixel (x, y)
+	 */
+	public int getSampleCount(int x, int y) {
+		return sampleCounts[x + y * width];
+	}
+
+	/**
+	 * Set the number of samples taken in pixel (x, y), for a block restored from a checkpoint.
+	 */
+	public void setSampleCount(int x, int y, int count) {
+		sampleCounts[x + y * width] = count;
+	}
+
+	/**
+	 * @return the total number of samples taken so far
+	 */
+	public long getTotalSamples() {
+		long total = 0;
+		for (int n : sampleCounts)
+			total += n;
+		return total;
+	}
+
+	/**
+	 * Render one block of the output image, in the manner of RayTracer.renderBlock.
+	 *
+	 * @param scene The scene data
+	 * @param outImage the output image (write the output pixels here)
+	 * @param offsetX the startingX value of the block
+	 * @param offsetY the startingY value of the block
+	 * @param sizeX the width of the block
+	 * @param sizeY the height of the block
+	 */
+	public void renderBlock(Scene scene, Image outImage, int offsetX, int offsetY, int sizeX, int sizeY) {
+		Workspace ws = Workspace.get();
+		Ray ray = ws.ray;
+		Colord pixelColor = ws.pixelColor;
+		Colord rayColor = ws.rayColor;
+		Sampler sampler = scene.getSampler();
+
+		int width = outImage.getWidth();
+		int height = outImage.getHeight();
+		double exposure = scene.getExposure();
+		Camera cam = scene.getCamera();
+
+		int batch = minSamples;
+		int cap = Math.max(getMaxSamples(scene), 1);
+
+		// Independent samples are jittered over a strata x strata grid in the first batch
+		int strata = sampler instanceof IndependentSampler ? (int) Math.sqrt(batch) : 1;
+
+		for(int x = offsetX; x < (offsetX + sizeX); x++) {
+			for(int y = offsetY; y < (offsetY + sizeY); y++) {
+
+				pixelColor.setZero();
+				int n = 0;
+				double lumSum = 0, lumSqSum = 0;
+
+				while (n < cap) {
+					// One batch of samples
+					for (int s = 0; s < batch && n < cap; s++, n++) {
+						double sx = sampler.get(x, y, n, 0), sy = sampler.get(x, y, n, 1);
+						if (n < strata * strata) {
+							sx = (n % strata + sx) / strata;
+							sy = (n / strata + sy) / strata;
+						}
+						double u = (x + sx) / width;
+						double v = (y + sy) / height;
+						cam.getRay(ray, u, v);
+						ws.random.start(sampler, x, y, n);
+						RayTracer.shadeRay(rayColor, scene, ray, 1);
+						pixelColor.add(rayColor);
+
+						double lum = Accumulator.displayLuminance(rayColor, exposure);
+						lumSum += lum;
+						lumSqSum += lum * lum;
+					}
+
+					// Standard error of the mean luminance, once there are two samples to compare
+					if (n < 2)
+						continue;
+					double mean = lumSum / n;
+					double variance = Math.max(0, lumSqSum / n - mean * mean) * n / (n - 1);
+					if (Math.sqrt(variance / n) <= threshold)
+						break;
+				}
+
+				pixelColor.mul(exposure / n);
+				sampleCounts[x + y * this.width] = n;
+				outImage.setPixelColor(pixelColor, x, y);
+			}
+		}
+	}
+
+	/**
+	 * Write the per-pixel sample counts as a heatmap, from black (no samples)
+	 * through red to yellow (the sample cap).
+	 *
+	 * @param fileName the output PNG file
+	 * @param cap the sample count shown at full brightness
+	 */
+	public void writeHeatmap(String fileName, int cap) {
+		Image heatmap = new Image(width, height);
+		Colord c = new Colord();
+		for (int x = 0; x < width; x++) {
+			for (int y = 0; y < height; y++) {
+				double f = Math.min(1.0, (double) getSampleCount(x, y) / cap);
+				c.set(Math.min(1.0, 2 * f), Math.max(0.0, 2 * f - 1), 0);
+				heatmap.setPixelColor(c, x, y);
+			}
+		}
+		heatmap.write(fileName);
+	}
+}
@@ -0,0 +1,143 @@
+package ray2;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import ray2.accel.FlatBvh;
+import ray2.accel.NaiveAccelStruct;
+import ray2.accel.SahBvh;
+import ray2.mesh.OBJFace;
+import ray2.mesh.OBJMesh;
+import ray2.surface.Cylinder;
+import ray2.surface.Mesh;
+import ray2.surface.Sphere;
+import ray2.surface.Surface;
+import egl.math.Colord;
+import egl.math.Matrix4d;
+import egl.math.Vector3;
+import egl.math.Vector3d;
+
+/**
+ * Checks that tracing a ray allocates nothing once the thread has warmed up.
+ * Allocation is measured with the per-thread allocated bytes counter of the
+ * HotSpot ThreadMXBean.
+ */
+public class AllocationTests {
+    static final int GRID = 32;
+    static final int WARMUP = 20000;
+    static final int MEASURED = 10000;
+    static final int ROUNDS = 10;
+
+    static Scene flatScene = new Scene();
+    static Scene naiveScene = new Scene();
+    static Ray[] rays = new Ray[256];
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        // A height field of GRID x GRID quads, rotated so no slab is axis aligned
+        OBJMesh md = new OBJMesh();
+        for (int i = 0; i <= GRID; i++)
+            for (int j = 0; j <= GRID; j++)
+                md.positions.add(new Vector3(i, (float) Math.sin(i + 2 * j), j));
+        for (int i = 0; i < GRID; i++) {
+            for (int j = 0; j < GRID; j++) {
+                int v = i * (GRID + 1) + j;
+                md.faces.add(face(v, v + 1, v + GRID + 2));
+                md.faces.add(face(v, v + GRID + 2, v + GRID + 1));
+            }
+        }
+        Matrix4d t = Matrix4d.createRotationY(0.3);
+        Mesh mesh = new Mesh(md);
+        mesh.setTransformation(t, new Matrix4d(t).invert(), new Matrix4d(t).invert().transpose());
+
+        Sphere sphere = new Sphere();
+        sphere.setCenter(new Vector3d(GRID / 2, 3, GRID / 2));
+        sphere.setRadius(2);
+        Cylinder cylinder = new Cylinder();
+        cylinder.setCenter(new Vector3d(GRID / 4, GRID / 4, 2));
+        for (Surface s : new Surface[] { sphere, cylinder })
+            s.setTransformation(new Matrix4d(), new Matrix4d(), new Matrix4d());
+
+        ArrayList<Surface> meshSurfaces = new ArrayList<Surface>();
+        mesh.appendRenderableSurfaces(meshSurfaces);
+        FlatBvh flat = new FlatBvh();
+        flat.setBuilder(new SahBvh());
+        flat.build(meshSurfaces.toArray(new Surface[0]));
+        flatScene.setAccelStruct(flat);
+
+        NaiveAccelStruct naive = new NaiveAccelStruct();
+        naive.build(new Surface[] { meshSurfaces.get(0), sphere, cylinder });
+        naiveScene.setAccelStruct(naive);
+
+        Random r = new Random(4620);
+        for (int i = 0; i < rays.length; i++) {
+            Vector3d origin = new Vector3d(GRID * r.nextDouble(), 10, GRID * r.nextDouble());
+            Vector3d dir = new Vector3d(r.nextGaussian(), -1, r.nextGaussian()).normalize();
+            rays[i] = new Ray(origin, dir);
+            rays[i].makeOffsetRay();
+        }
+    }
+
+    private static OBJFace face(int a, int b, int c) {
+        OBJFace f = new OBJFace(3, false, false);
+        f.positions[0] = a;
+        f.positions[1] = b;
+        f.positions[2] = c;
+        return f;
+    }
+
+    /**
+     * Trace n rays through scene, closest hit and shadow-style any hit, and
+     * return the number of closest hits.
+     */
+    private static int trace(Scene scene, int n) {
+        IntersectionRecord record = Workspace.get().records[0];
+        Colord color = Workspace.get().rayColor;
+        int hits = 0;
+        for (int i = 0; i < n; i++) {
+            Ray ray = rays[i % rays.length];
+            if (scene.getFirstIntersection(record, ray))
+                hits++;
+            scene.getAnyIntersection(ray);
+            RayTracer.shadeRay(color, scene, ray, 1);
+        }
+        return hits;
+    }
+
+    private static void assertNoAllocation(String name, Scene scene) {
+        java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        assumeTrue(mx instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) mx;
+        assumeTrue(bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled());
+        long id = Thread.currentThread().getId();
+
+        assertTrue(name + ": no ray hit the scene", trace(scene, WARMUP) > 0);
+
+        // The JIT may still allocate while it recompiles, so take the best of a few
+        // rounds; a real allocation per ray would show up in every one of them
+        long bytes = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS && bytes > 0; round++) {
+            long before = bean.getThreadAllocatedBytes(id);
+            trace(scene, MEASURED);
+            bytes = Math.min(bytes, bean.getThreadAllocatedBytes(id) - before);
+        }
+        assertEquals(name + ": bytes allocated per ray after warm-up", 0.0, (double) bytes / MEASURED, 0.0);
+    }
+
+    @Test
+    public void testFlatBvhAllocation() {
+        assertNoAllocation("FlatBvh", flatScene);
+    }
+
+    @Test
+    public void testNaiveAllocation() {
+        assertNoAllocation("NaiveAccelStruct", naiveScene);
+    }
+}
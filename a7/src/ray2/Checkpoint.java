@@ -0,0 +1,285 @@
+package ray2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Periodically saves the state of a long render to a file, so that a render
+ * that is killed part way can be resumed instead of started over.
+ *
+ * A block render saves which blocks are finished and their pixels, along with
+ * the number of samples taken in each pixel when it samples adaptively; a
+ * progressive render saves its Accumulator and the number of passes taken.
+ * Every checkpoint records a hash of the scene file, and is only loaded again
+ * for the same scene at the same image size. Checkpoints are written to a
+ * temporary file which then replaces the old one, so a render killed while
+ * saving still leaves the previous checkpoint intact. A checkpoint that cannot
+ * be saved or loaded is reported and the render carries on without it.
+ */
+public class Checkpoint {
+
+	private static final int MAGIC = 0x52324350; // "R2CP"
+	private static final int VERSION = 2;
+	private static final byte BLOCKS = 0, PROGRESSIVE = 1;
+
+	private final File file;
+	private final byte[] sceneHash;
+	private final boolean resume;
+
+	/** The time between saves, in seconds. */
+	private final double interval;
+	private long lastSave;
+
+	/**
+	 * @param fileName the checkpoint file
+	 * @param sceneFile the scene file being rendered, to validate checkpoints against
+	 * @param interval the time between saves, in seconds
+	 * @param resume true to load an existing checkpoint, false to ignore it
+	 * @throws IOException if the scene file cannot be read
+	 */
+	public Checkpoint(String fileName, Path sceneFile, double interval, boolean resume) throws IOException {
+		file = new File(fileName);
+		this.interval = interval;
+		this.resume = resume;
+		try {
+			sceneHash = MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(sceneFile));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		lastSave = System.nanoTime();
+	}
+
+	/**
+	 * @return true if it is time to save again; never if the interval is not positive
+	 */
+	public boolean isDue() {
+		return interval > 0 && System.nanoTime() - lastSave >= interval * 1e9;
+	}
+
+	/**
+	 * Delete the checkpoint file, once the image it belongs to has been written out.
+	 */
+	public void delete() {
+		file.delete();
+	}
+
+	/**
+	 * Save the finished blocks of a block render.
+	 * @param image the image being rendered
+	 * @param done for each block, as [bx + by * numSubX], whether it is finished
+	 * @param adaptive the adaptive sampler whose sample counts are saved, or null
+	 */
+	public void saveBlocks(Image image, boolean[] done, AdaptiveSampler adaptive) {
+		int width = image.getWidth(), height = image.getHeight();
+		int numSubX = (width - 1) / RayTracer.SUB_WIDTH + 1;
+		float[] tile = new float[3 * RayTracer.SUB_WIDTH * RayTracer.SUB_HEIGHT];
+		int saved = 0;
+
+		try (DataOutputStream out = startSave(image, BLOCKS)) {
+			out.writeInt(RayTracer.SUB_WIDTH);
+			out.writeInt(RayTracer.SUB_HEIGHT);
+			out.writeInt(done.length);
+			out.writeBoolean(adaptive != null);
+			for (boolean d : done)
+				out.writeBoolean(d);
+			for (int i = 0; i < done.length; i++) {
+				if (!done[i])
+					continue;
+				int xl = (i % numSubX) * RayTracer.SUB_WIDTH, yl = (i / numSubX) * RayTracer.SUB_HEIGHT;
+				int xh = Math.min(width, xl + RayTracer.SUB_WIDTH), yh = Math.min(height, yl + RayTracer.SUB_HEIGHT);
+				image.getTile(xl, yl, xh, yh, tile);
+				for (int k = 0; k < 3 * (xh - xl) * (yh - yl); k++)
+					out.writeFloat(tile[k]);
+				if (adaptive != null)
+					for (int y = yl; y < yh; y++)
+						for (int x = xl; x < xh; x++)
+							out.writeInt(adaptive.getSampleCount(x, y));
+				saved++;
+			}
+		} catch (IOException e) {
+			saveFailed(e);
+			return;
+		}
+		if (finishSave())
+			System.out.println("Saved checkpoint of " + saved + "/" + done.length + " blocks to " + file);
+	}
+
+	/**
+	 * Load the finished blocks of a block render into image.
+	 * @param image the image being rendered
+	 * @param done output, for each block, as [bx + by * numSubX], whether it was restored
+	 * @param adaptive the adaptive sampler whose sample counts are restored, or null
+	 * @return the number of blocks restored; 0 if not resuming or there is no valid checkpoint
+	 */
+	public int loadBlocks(Image image, boolean[] done, AdaptiveSampler adaptive) {
+		int width = image.getWidth(), height = image.getHeight();
+		int numSubX = (width - 1) / RayTracer.SUB_WIDTH + 1;
+		float[] tile = new float[3 * RayTracer.SUB_WIDTH * RayTracer.SUB_HEIGHT];
+		int restored = 0;
+
+		try (DataInputStream in = startLoad(image, BLOCKS)) {
+			if (in == null)
+				return 0;
+			if (in.readInt() != RayTracer.SUB_WIDTH || in.readInt() != RayTracer.SUB_HEIGHT || in.readInt() != done.length) {
+				System.out.println("Ignoring checkpoint " + file + ": it has a different block size");
+				return 0;
+			}
+			if (in.readBoolean() != (adaptive != null)) {
+				System.out.println("Ignoring checkpoint " + file + ": it was " + (adaptive != null ? "not " : "") + "sampled adaptively");
+				return 0;
+			}
+			for (int i = 0; i < done.length; i++)
+				done[i] = in.readBoolean();
+			for (int i = 0; i < done.length; i++) {
+				if (!done[i])
+					continue;
+				int xl = (i % numSubX) * RayTracer.SUB_WIDTH, yl = (i / numSubX) * RayTracer.SUB_HEIGHT;
+				int xh = Math.min(width, xl + RayTracer.SUB_WIDTH), yh = Math.min(height, yl + RayTracer.SUB_HEIGHT);
+				for (int k = 0; k < 3 * (xh - xl) * (yh - yl); k++)
+					tile[k] = in.readFloat();
+				image.setTile(xl, yl, xh, yh, tile);
+				if (adaptive != null)
+					for (int y = yl; y < yh; y++)
+						for (int x = xl; x < xh; x++)
+							adaptive.setSampleCount(x, y, in.readInt());
+				restored++;
+			}
+		} catch (IOException e) {
+			System.out.println("Ignoring checkpoint " + file + ": " + e);
+			Arrays.fill(done, false);
+			if (adaptive != null)
+				adaptive.init(width, height);
+			return 0;
+		}
+		System.out.println("Resumed " + restored + "/" + done.length + " blocks from checkpoint " + file);
+		return restored;
+	}
+
+	/**
+	 * Save the state of a progressive render.
+	 * @param image the image being rendered
+	 * @param accumulator the samples taken so far
+	 * @param passes the number of passes taken so far
+	 */
+	public void saveProgressive(Image image, Accumulator accumulator, int passes) {
+		try (DataOutputStream out = startSave(image, PROGRESSIVE)) {
+			out.writeInt(passes);
+			for (double v : accumulator.sum)
+				out.writeDouble(v);
+			for (int i = 0; i < accumulator.count.length; i++) {
+				out.writeDouble(accumulator.lumSum[i]);
+				out.writeDouble(accumulator.lumSqSum[i]);
+				out.writeInt(accumulator.count[i]);
+			}
+		} catch (IOException e) {
+			saveFailed(e);
+			return;
+		}
+		if (finishSave())
+			System.out.println("Saved checkpoint of " + passes + " passes to " + file);
+	}
+
+	/**
+	 * Load the state of a progressive render into accumulator.
+	 * @param image the image being rendered
+	 * @param accumulator the accumulator to restore, which must be empty
+	 * @return the number of passes restored; 0 if not resuming or there is no valid checkpoint
+	 */
+	public int loadProgressive(Image image, Accumulator accumulator) {
+		int passes;
+		try (DataInputStream in = startLoad(image, PROGRESSIVE)) {
+			if (in == null)
+				return 0;
+			passes = in.readInt();
+			for (int i = 0; i < accumulator.sum.length; i++)
+				accumulator.sum[i] = in.readDouble();
+			for (int i = 0; i < accumulator.count.length; i++) {
+				accumulator.lumSum[i] = in.readDouble();
+				accumulator.lumSqSum[i] = in.readDouble();
+				accumulator.count[i] = in.readInt();
+			}
+		} catch (IOException e) {
+			System.out.println("Ignoring checkpoint " + file + ": " + e);
+			Arrays.fill(accumulator.sum, 0);
+			Arrays.fill(accumulator.lumSum, 0);
+			Arrays.fill(accumulator.lumSqSum, 0);
+			Arrays.fill(accumulator.count, 0);
+			return 0;
+		}
+		System.out.println("Resumed " + passes + " passes from checkpoint " + file);
+		return passes;
+	}
+
+	private File tempFile() {
+		return new File(file.getPath() + ".tmp");
+	}
+
+	private DataOutputStream startSave(Image image, byte mode) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile()), 1 << 16));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.write(sceneHash);
+		out.writeInt(image.getWidth());
+		out.writeInt(image.getHeight());
+		out.writeByte(mode);
+		return out;
+	}
+
+	private boolean finishSave() {
+		lastSave = System.nanoTime();
+		try {
+			Files.move(tempFile().toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return true;
+		} catch (IOException e) {
+			saveFailed(e);
+			return false;
+		}
+	}
+
+	private void saveFailed(IOException e) {
+		lastSave = System.nanoTime();
+		tempFile().delete();
+		System.err.println("Could not save checkpoint " + file + ": " + e);
+	}
+
+	/**
+	 * Open the checkpoint and check that it belongs to this render.
+	 * @return the stream positioned after the header, or null if there is nothing to resume
+	 */
+	private DataInputStream startLoad(Image image, byte mode) throws IOException {
+		if (!resume || !file.exists())
+			return null;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		String problem = null;
+		if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+			problem = "it is not a checkpoint of this version";
+		} else {
+			byte[] hash = new byte[sceneHash.length];
+			in.readFully(hash);
+			if (!Arrays.equals(hash, sceneHash))
+				problem = "the scene file has changed";
+			else if (in.readInt() != image.getWidth() || in.readInt() != image.getHeight())
+				problem = "it has a different image size";
+			else if (in.readByte() != mode)
+				problem = mode == BLOCKS ? "it is of a progressive render" : "it is not of a progressive render";
+		}
+		if (problem != null) {
+			in.close();
+			System.out.println("Ignoring checkpoint " + file + ": " + problem);
+			return null;
+		}
+		return in;
+	}
+}
@@ -0,0 +1,431 @@
+package ray2;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import ray2.camera.Camera;
+import ray2.sampler.Sampler;
+import ray2.shader.Shader;
+import egl.math.Colord;
+
+/**
+ * Removes most of the noise of a finished render, so that a few samples per
+ * pixel give an image close to one rendered with many. It runs after the
+ * render, before the image is written.
+ *
+ * The filter is the edge-avoiding a-trous wavelet transform of Dammertz et
+ * al. (2010), with the edge-stopping functions of Schied et al. (SVGF, 2017).
+ * Each iteration blurs the image with a 5 x 5 B-spline kernel whose taps are
+ * spread 2^i pixels apart, so five iterations cover a 125 pixel wide
+ * footprint at the cost of 25 taps per pixel each. Every tap is weighted down
+ * by how much the pixels differ in buffers rendered alongside the image, which
+ * hold the albedo, world-space normal and distance of the first surface each
+ * pixel sees (through mirrors and glass), so the blur stops at the edges of
+ * objects, at creases and at changes of color instead of smearing them. Those
+ * buffers are nearly free of noise, since they only take one camera ray per
+ * sample and no lighting.
+ *
+ * The taps are also weighted by how much their brightness differs, measured
+ * against the standard deviation of the noise at the pixel, which keeps
+ * shadow edges and highlights where the noise is low. The variance of the
+ * noise is estimated from the spread of the pixel's neighbours on the same
+ * surface, and is filtered along with the image, so that it shrinks with the
+ * noise at every iteration.
+ *
+ * The image is divided by the albedo before it is filtered and multiplied
+ * back after, so textures stay sharp: only the lighting is blurred.
+ *
+ * The buffers are written next to the image, as &lt;file&gt;.albedo.png,
+ * &lt;file&gt;.normal.png and &lt;file&gt;.depth.png. Enabled by a
+ * &lt;denoiser&gt; element in the scene file, e.g.
+ *
+ *   &lt;denoiser&gt;
+ *     &lt;iterations&gt;5&lt;/iterations&gt;
+ *     &lt;colorSigma&gt;2&lt;/colorSigma&gt;
+ *   &lt;/denoiser&gt;
+ *
+ * The image and the buffers are held on the heap while filtering.
+ */
+public class Denoiser {
+
+	/** The number of filter iterations; the footprint doubles with each one. */
+	protected int iterations = 5;
+	public void setIterations(int iterations) { this.iterations = Math.max(1, Math.min(10, iterations)); }
+
+	/** The tolerance for differences in the brightness of the lighting, in standard deviations of its noise. */
+	protected double colorSigma = 2;
+	public void setColorSigma(double colorSigma) { this.colorSigma = colorSigma; }
+
+	/** The tolerance for differences in normal, as 1 - cos of the angle between them. */
+	protected double normalSigma = 0.01;
+	public void setNormalSigma(double normalSigma) { this.normalSigma = normalSigma; }
+
+	/** The tolerance for differences in distance, as a multiple of the difference the slope of the surface predicts. */
+	protected double depthSigma = 1;
+	public void setDepthSigma(double depthSigma) { this.depthSigma = depthSigma; }
+
+	/** The tolerance for differences in albedo. */
+	protected double albedoSigma = 0.1;
+	public void setAlbedoSigma(double albedoSigma) { this.albedoSigma = albedoSigma; }
+
+	/** The most samples per pixel taken for the buffers. */
+	protected int aovSamples = 16;
+	public void setAovSamples(int aovSamples) { this.aovSamples = Math.max(1, aovSamples); }
+
+	/** The most mirrors and glass surfaces the buffers see through. */
+	private static final int MAX_SPECULAR_BOUNCES = 8;
+
+	/** The rows of the image handed to a thread at a time. */
+	private static final int BAND_HEIGHT = 16;
+
+	/** The weights of the B3-spline kernel, from -2 to 2. */
+	private static final double[] KERNEL = { 1 / 16.0, 1 / 4.0, 3 / 8.0, 1 / 4.0, 1 / 16.0 };
+
+	/**
+	 * The buffers of the last render, as [x + y * width]: albedo and normal
+	 * have 3 floats per pixel, and depth has one, positive infinity where the
+	 * pixel sees only the background.
+	 */
+	private float[] albedo, normal, depth;
+	private int width, height;
+
+	/** The slope of depth across the image, per pixel in x and in y. */
+	private float[] slopeX, slopeY;
+
+	public Denoiser() { }
+
+	/** @return the albedo buffer of the last render, 3 floats per pixel */
+	public float[] getAlbedo() { return albedo; }
+
+	/** @return the normal buffer of the last render, 3 floats per pixel */
+	public float[] getNormal() { return normal; }
+
+	/** @return the depth buffer of the last render, one float per pixel */
+	public float[] getDepth() { return depth; }
+
+	/**
+	 * Render the buffers for the scene's image, and filter the image in place.
+	 *
+	 * @param scene the rendered scene
+	 * @param threads the number of threads to use
+	 */
+	public void denoise(Scene scene, int threads) {
+		long start = System.currentTimeMillis();
+		Image image = scene.getImage();
+		width = image.getWidth();
+		height = image.getHeight();
+		int n = width * height;
+		albedo = new float[3 * n];
+		normal = new float[3 * n];
+		depth = new float[n];
+		slopeX = new float[n];
+		slopeY = new float[n];
+
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			runBands(pool, (y0, y1) -> renderBuffers(scene, y0, y1));
+			runBands(pool, (y0, y1) -> computeSlopes(y0, y1));
+
+			// Filter the lighting alone, taken out of the image by dividing by the albedo
+			float[] color = new float[3 * n];
+			for (int y = 0; y < height; y++)
+				image.getRow(y, 0, width, color, 3 * y * width);
+			float[] light = new float[3 * n];
+			for (int i = 0; i < 3 * n; i++)
+				light[i] = albedo[i] > 1e-3f ? color[i] / albedo[i] : color[i];
+			float[] variance = new float[n];
+			runBands(pool, (y0, y1) -> estimateVariance(light, variance, y0, y1));
+
+			float[] in = light, out = color;
+			float[] inVariance = variance, outVariance = new float[n];
+			for (int i = 0; i < iterations; i++) {
+				final float[] src = in, dst = out, srcVariance = inVariance, dstVariance = outVariance;
+				final int step = 1 << i;
+				runBands(pool, (y0, y1) -> filter(src, dst, srcVariance, dstVariance, step, y0, y1));
+				in = dst;
+				out = src;
+				inVariance = dstVariance;
+				outVariance = srcVariance;
+			}
+
+			for (int i = 0; i < 3 * n; i++)
+				if (albedo[i] > 1e-3f)
+					in[i] *= albedo[i];
+			for (int y = 0; y < height; y++)
+				image.setRow(y, 0, width, in, 3 * y * width);
+		} finally {
+			pool.shutdown();
+		}
+		System.out.println("Denoised in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/** A piece of work over the rows [y0, y1) of the image. */
+	private interface Band {
+		void run(int y0, int y1);
+	}
+
+	/**
+	 * Run band over every band of rows of the image on pool, and wait for all of them.
+	 */
+	private void runBands(ForkJoinPool pool, Band band) {
+		ArrayList<ForkJoinTask<?>> tasks = new ArrayList<>();
+		for (int y = 0; y < height; y += BAND_HEIGHT) {
+			final int y0 = y, y1 = Math.min(height, y + BAND_HEIGHT);
+			tasks.add(pool.submit(() -> band.run(y0, y1)));
+		}
+		for (ForkJoinTask<?> task : tasks)
+			task.join();
+	}
+
+	/**
+	 * Fill in the buffers for the rows [y0, y1), averaging over the first
+	 * aovSamples samples of each pixel the first surface with a color of its
+	 * own that each camera ray reaches, through mirrors and glass (see
+	 * Shader.getAlbedo and Shader.isSpecular). Only specular materials are
+	 * followed, by their scatter, which takes no light samples; any other
+	 * surface is recorded where it is hit, white if it has no color. Each
+	 * sample follows the same path as in the render, since it draws the same
+	 * random numbers. Pixels see an albedo of 1 where their rays miss, so the
+	 * background is left as it is.
+	 */
+	private void renderBuffers(Scene scene, int y0, int y1) {
+		Workspace ws = Workspace.get();
+		IntersectionRecord record = ws.records[1];
+		Colord color = ws.texColors[1];
+		Colord throughput = ws.pathThroughput;
+		Camera cam = scene.getCamera();
+		Sampler sampler = scene.getSampler();
+		int samples = Math.min(aovSamples, sampler.getSamplesPerPixel());
+
+		for (int y = y0; y < y1; y++) {
+			for (int x = 0; x < width; x++) {
+				double ar = 0, ag = 0, ab = 0, nx = 0, ny = 0, nz = 0, z = 0;
+				int hits = 0;
+				for (int s = 0; s < samples; s++) {
+					Ray ray = ws.ray;
+					Ray next = ws.pathRays[0];
+					cam.getRay(ray, (x + sampler.get(x, y, s, 0)) / width, (y + sampler.get(x, y, s, 1)) / height);
+					ws.random.start(sampler, x, y, s);
+					ws.random.begin(ray);
+					throughput.set(1, 1, 1);
+					double distance = 0;
+
+					for (int bounce = 0; ; bounce++) {
+						if (!scene.getFirstIntersection(record, ray)) {
+							ar += throughput.x; ag += throughput.y; ab += throughput.z;
+							break;
+						}
+						record.computeTexFootprint(ray);
+						distance += record.t * ray.direction.len();
+						Shader shader = record.surface.getShader();
+						if (shader.getAlbedo(color, record) || !shader.isSpecular() || bounce == MAX_SPECULAR_BOUNCES
+								|| !shader.scatter(ws.pathLocal, ws.pathWeight, next, scene, ray, record, 1)) {
+							color.mul(throughput);
+							ar += color.x; ag += color.y; ab += color.z;
+							nx += record.normal.x; ny += record.normal.y; nz += record.normal.z;
+							z += distance;
+							hits++;
+							break;
+						}
+						throughput.mul(ws.pathWeight);
+						next.coneWidth = ray.coneWidthAt(record.t);
+						next.coneSpread = ray.coneSpread;
+						ray = next;
+						next = ws.pathRays[next == ws.pathRays[0] ? 1 : 0];
+					}
+				}
+
+				int i = x + y * width;
+				albedo[3 * i] = (float) (ar / samples);
+				albedo[3 * i + 1] = (float) (ag / samples);
+				albedo[3 * i + 2] = (float) (ab / samples);
+				double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+				if (length > 0) {
+					normal[3 * i] = (float) (nx / length);
+					normal[3 * i + 1] = (float) (ny / length);
+					normal[3 * i + 2] = (float) (nz / length);
+				}
+				depth[i] = hits > 0 ? (float) (z / hits) : Float.POSITIVE_INFINITY;
+			}
+		}
+	}
+
+	/**
+	 * Set the slopes of depth for the rows [y0, y1), from the neighbour on
+	 * whichever side differs less, so that the slope at the edge of an object
+	 * is that of the object.
+	 */
+	private void computeSlopes(int y0, int y1) {
+		for (int y = y0; y < y1; y++) {
+			for (int x = 0; x < width; x++) {
+				int p = x + y * width;
+				slopeX[p] = slope(p, x > 0 ? p - 1 : -1, x < width - 1 ? p + 1 : -1);
+				slopeY[p] = slope(p, y > 0 ? p - width : -1, y < height - 1 ? p + width : -1);
+			}
+		}
+	}
+
+	private float slope(int p, int before, int after) {
+		float back = before >= 0 ? Math.abs(depth[p] - depth[before]) : Float.POSITIVE_INFINITY;
+		float ahead = after >= 0 ? Math.abs(depth[after] - depth[p]) : Float.POSITIVE_INFINITY;
+		float slope = Math.min(back, ahead);
+		// Infinite or NaN next to the background
+		return slope < Float.POSITIVE_INFINITY ? slope : 0;
+	}
+
+	/**
+	 * Estimate the variance of the noise of each pixel in the rows [y0, y1)
+	 * as the variance of the brightness of light over the pixels of the same
+	 * surface in a 5 x 5 window around it.
+	 */
+	private void estimateVariance(float[] light, float[] variance, int y0, int y1) {
+		for (int y = y0; y < y1; y++) {
+			for (int x = 0; x < width; x++) {
+				int p = x + y * width;
+				double sum = 0, sumSq = 0, total = 0;
+				for (int j = -2; j <= 2; j++) {
+					int qy = y + j;
+					if (qy < 0 || qy >= height)
+						continue;
+					for (int k = -2; k <= 2; k++) {
+						int qx = x + k;
+						if (qx < 0 || qx >= width)
+							continue;
+						int q = qx + qy * width;
+						double w = Math.exp(-geometryDifference(p, q, k, j));
+						double l = luminance(light, q);
+						sum += w * l;
+						sumSq += w * l * l;
+						total += w;
+					}
+				}
+				double mean = sum / total;
+				variance[p] = (float) Math.max(0, sumSq / total - mean * mean);
+			}
+		}
+	}
+
+	/**
+	 * One iteration of the filter over the rows [y0, y1): set dst to src blurred
+	 * with taps step pixels apart, each weighted by the edge-stopping functions,
+	 * and dstVariance to the variance of the result.
+	 */
+	private void filter(float[] src, float[] dst, float[] srcVariance, float[] dstVariance, int step, int y0, int y1) {
+		for (int y = y0; y < y1; y++) {
+			for (int x = 0; x < width; x++) {
+				int p = x + y * width;
+
+				// The standard deviation of the noise, smoothed a little as it is itself noisy
+				double v = 0, vTotal = 0;
+				for (int j = -1; j <= 1; j++) {
+					for (int k = -1; k <= 1; k++) {
+						int qx = x + k, qy = y + j;
+						if (qx < 0 || qx >= width || qy < 0 || qy >= height)
+							continue;
+						double w = KERNEL[2 * j + 2] * KERNEL[2 * k + 2] + (j == 0 && k == 0 ? 0.25 : 0);
+						v += w * srcVariance[qx + qy * width];
+						vTotal += w;
+					}
+				}
+				double colorScale = 1 / (colorSigma * Math.sqrt(v / vTotal) + 1e-6);
+				double lp = luminance(src, p);
+				double r = 0, g = 0, b = 0, total = 0, variance = 0;
+
+				for (int j = -2; j <= 2; j++) {
+					int qy = y + j * step;
+					if (qy < 0 || qy >= height)
+						continue;
+					for (int k = -2; k <= 2; k++) {
+						int qx = x + k * step;
+						if (qx < 0 || qx >= width)
+							continue;
+						int q = qx + qy * width;
+						double w = KERNEL[j + 2] * KERNEL[k + 2];
+						if (q != p)
+							w *= Math.exp(-geometryDifference(p, q, k * step, j * step)
+									- Math.abs(lp - luminance(src, q)) * colorScale);
+						r += w * src[3 * q];
+						g += w * src[3 * q + 1];
+						b += w * src[3 * q + 2];
+						total += w;
+						variance += w * w * srcVariance[q];
+					}
+				}
+
+				dst[3 * p] = (float) (r / total);
+				dst[3 * p + 1] = (float) (g / total);
+				dst[3 * p + 2] = (float) (b / total);
+				dstVariance[p] = (float) (variance / (total * total));
+			}
+		}
+	}
+
+	/**
+	 * @return how different pixels p and q, (dx, dy) apart, are in the buffers,
+	 *   as the sum of their differences over the tolerances; infinite if only
+	 *   one of them is background
+	 */
+	private double geometryDifference(int p, int q, int dx, int dy) {
+		double e = 0;
+		float pz = depth[p], qz = depth[q];
+		if (pz != Float.POSITIVE_INFINITY || qz != Float.POSITIVE_INFINITY) {
+			if (pz == Float.POSITIVE_INFINITY || qz == Float.POSITIVE_INFINITY)
+				return Double.POSITIVE_INFINITY;
+			double expected = Math.abs(slopeX[p] * dx) + Math.abs(slopeY[p] * dy);
+			e += Math.abs(pz - qz) / (depthSigma * expected + 1e-3 * pz);
+			double cos = normal[3 * p] * normal[3 * q] + normal[3 * p + 1] * normal[3 * q + 1]
+					+ normal[3 * p + 2] * normal[3 * q + 2];
+			e += Math.max(0, 1 - cos) / normalSigma;
+		}
+		double dr = albedo[3 * p] - albedo[3 * q], dg = albedo[3 * p + 1] - albedo[3 * q + 1],
+				db = albedo[3 * p + 2] - albedo[3 * q + 2];
+		return e + (dr * dr + dg * dg + db * db) / (albedoSigma * albedoSigma);
+	}
+
+	private static double luminance(float[] rgb, int i) {
+		return 0.2126 * rgb[3 * i] + 0.7152 * rgb[3 * i + 1] + 0.0722 * rgb[3 * i + 2];
+	}
+
+	/**
+	 * Write the buffers of the last render as images named prefix + ".albedo.png",
+	 * ".normal.png" and ".depth.png". Normals map [-1, 1] to [0, 1] in each
+	 * channel, and distances are shown from white (nearest) to black (farthest
+	 * or background).
+	 *
+	 * @param prefix the file name of the rendered image, without its extension
+	 */
+	public void writeBuffers(String prefix) {
+		float near = Float.POSITIVE_INFINITY, far = 0;
+		for (float z : depth) {
+			if (z == Float.POSITIVE_INFINITY)
+				continue;
+			near = Math.min(near, z);
+			far = Math.max(far, z);
+		}
+
+		Image albedoImage = new Image(width, height);
+		Image normalImage = new Image(width, height);
+		Image depthImage = new Image(width, height);
+		float[] a = new float[3 * width], nrm = new float[3 * width], d = new float[3 * width];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int i = x + y * width;
+				float z = depth[i];
+				float shade = z == Float.POSITIVE_INFINITY ? 0 : far > near ? (far - z) / (far - near) : 1;
+				for (int c = 0; c < 3; c++) {
+					a[3 * x + c] = albedo[3 * i + c];
+					// The images are gamma corrected when written; undo that for the mapped values
+					nrm[3 * x + c] = (float) Math.pow((normal[3 * i + c] + 1) / 2, 2.2);
+					d[3 * x + c] = (float) Math.pow(shade, 2.2);
+				}
+			}
+			albedoImage.setRow(y, 0, width, a, 0);
+			normalImage.setRow(y, 0, width, nrm, 0);
+			depthImage.setRow(y, 0, width, d, 0);
+		}
+		albedoImage.write(prefix + ".albedo.png");
+		normalImage.write(prefix + ".normal.png");
+		depthImage.write(prefix + ".depth.png");
+	}
+}
@@ -0,0 +1,103 @@
+package ray2;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import edu.cornell.graphics.exr.Channel;
+import edu.cornell.graphics.exr.ChannelList;
+import edu.cornell.graphics.exr.EXROutputFile;
+import edu.cornell.graphics.exr.FrameBuffer;
+import edu.cornell.graphics.exr.Header;
+import edu.cornell.graphics.exr.PixelType;
+import edu.cornell.graphics.exr.Slice;
+
+/**
+ * Writes a 32 bit float RGB OpenEXR file one scanline at a time, so that an
+ * image of any size can be written through a buffer of a single row. Rows are
+ * given from the top of the image down, as 3 floats per pixel.
+ *
+ * The frame buffer slices have a y stride of 0, so every scanline the library
+ * asks for is read from the same row buffer, which is refilled before each
+ * call to writePixels.
+ */
+public class ExrWriter implements Closeable {
+
+	private static final PixelType PIXEL_TYPE = PixelType.FLOAT;
+
+	private final int width, height;
+	private int rowsWritten = 0;
+
+	private final File outFile;
+	private final EXROutputFile out;
+	private final FloatBuffer row;
+
+	/**
+	 * Create the file and write the header.
+	 * @param fileName the output EXR file
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 * @throws IOException if the file cannot be written
+	 */
+	public ExrWriter(String fileName, int width, int height) throws IOException {
+		this.width = width;
+		this.height = height;
+		outFile = new File(fileName);
+
+		final int elemSize = PIXEL_TYPE.byteSize();
+		final int pixelSize = 3 * elemSize;
+
+		Header header = new Header(width, height);
+		ChannelList channels = header.getChannels();
+		channels.insert("R", new Channel(PIXEL_TYPE));
+		channels.insert("G", new Channel(PIXEL_TYPE));
+		channels.insert("B", new Channel(PIXEL_TYPE));
+
+		ByteBuffer pixels = ByteBuffer.allocateDirect(pixelSize * width);
+		pixels.order(ByteOrder.LITTLE_ENDIAN);
+		row = pixels.asFloatBuffer();
+
+		FrameBuffer frameBuffer = new FrameBuffer();
+		String[] names = { "R", "G", "B" };
+		for (int c = 0; c < 3; c++) {
+			frameBuffer.insert(names[c], Slice.build()
+					.baseOffset(c * elemSize).buffer(pixels).pixelType(PIXEL_TYPE)
+					.xStride(pixelSize).yStride(0).get());
+		}
+
+		out = new EXROutputFile(outFile.toPath(), header);
+		out.setFrameBuffer(frameBuffer);
+	}
+
+	/**
+	 * @return the number of rows written so far
+	 */
+	public int getRowsWritten() {
+		return rowsWritten;
+	}
+
+	/**
+	 * Write the next scanline of the image.
+	 * @param rgb the pixels of the row, left to right, 3 floats per pixel
+	 */
+	public void writeRow(float[] rgb) {
+		if (rowsWritten >= height)
+			throw new IllegalStateException("All " + height + " rows have already been written");
+		row.clear();
+		row.put(rgb, 0, 3 * width);
+		out.writePixels(1);
+		rowsWritten++;
+	}
+
+	/**
+	 * Finish the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		out.close();
+		System.out.printf("  Wrote RGB32F file %s%n", outFile);
+	}
+}
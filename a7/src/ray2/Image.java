@@ -1,25 +1,18 @@
 package ray2;
 
-import java.awt.image.BufferedImage;
-import java.io.File;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.Arrays;
 
-import javax.imageio.ImageIO;
-
-import edu.cornell.graphics.exr.Channel;
-import edu.cornell.graphics.exr.ChannelList;
-import edu.cornell.graphics.exr.EXROutputFile;
-import edu.cornell.graphics.exr.FrameBuffer;
-import edu.cornell.graphics.exr.Header;
-import edu.cornell.graphics.exr.PixelType;
-import edu.cornell.graphics.exr.Slice;
 import egl.math.Color;
 import egl.math.Colord;
 
 /**
- * Basic image class, containing a 2D array of Colords. Simple functionality for
- * setting pixel colors and writing to a PNG file is provided.
+ * Basic image class, containing a flat array of float RGB values. Simple
+ * functionality for setting pixel colors and writing to a PNG file is provided.
+ *
+ * Pixels are stored row by row, starting with the bottom row (y = 0), as
+ * data[3 * (x + y * width) + channel]. Besides the per-pixel accessors there are
+ * bulk row and tile accessors that copy whole runs of pixels at once; the
+ * writers and the viewer go through those.
  *
  * @author eschweic, nsavva
  */
@@ -31,8 +24,8 @@ public class Image {
 	/** Image height * */
 	protected int height;
 	
-	/** Data array* */
-	protected Colord[][] data;
+	/** Data array, 3 floats per pixel * */
+	protected float[] data;
 	
 	/**
 	 * Create an empty image
@@ -51,10 +44,10 @@ public class Image {
 	 */
 	public Image(Image oldImage) {
 		setSize(oldImage.getWidth(), oldImage.getHeight());
-		for (int i = 0; i < width; i++) {
-			for (int j = 0; j < height; j++) {
-				data[i][j].set(oldImage.data[i][j]);
-			}
+		float[] row = new float[3 * width];
+		for (int y = 0; y < height; y++) {
+			oldImage.getRow(y, 0, width, row, 0);
+			setRow(y, 0, width, row, 0);
 		}
 	}
 	
@@ -62,11 +55,7 @@ public class Image {
 	 * Set the image to black
 	 */
 	public void clear() {
-		for (int i = 0; i < width; i++) {
-			for (int j = 0; j < height; j++) {
-				data[i][j] = new Colord();
-			}
-		}
+		Arrays.fill(data, 0f);
 	}
 	
 	/**
@@ -89,14 +78,11 @@ public class Image {
 	 * @param newHeight height
 	 */
 	public void setSize(int newWidth, int newHeight) {
+		if (3L * newWidth * newHeight > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("Image of " + newWidth + " x " + newHeight + " is too large to hold in memory; use a MappedImage");
 		width = newWidth;
 		height = newHeight;
-		data = new Colord[width][height];
-		for (int i=0; i<width; i++) {
-			for (int j=0; j<height; j++) {
-				data[i][j] = new Colord();
-			}
-		}
+		data = new float[3 * width * height];
 	}
 	
 	/**
@@ -109,7 +95,8 @@ public class Image {
 	public void getPixelColor(Color outPixel, int inX, int inY) {
 		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
 			throw new IndexOutOfBoundsException();
-		outPixel.set(data[inX][inY]);
+		int i = 3 * (inX + inY * width);
+		outPixel.set(toByte(data[i]), toByte(data[i + 1]), toByte(data[i + 2]));
 	}
 	
 	/**
@@ -122,7 +109,8 @@ public class Image {
 	public void getPixelColor(Colord outPixel, int inX, int inY) {
 		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
 			throw new IndexOutOfBoundsException();
-		outPixel.set(data[inX][inY]);
+		int i = 3 * (inX + inY * width);
+		outPixel.set(data[i], data[i + 1], data[i + 2]);
 	}
 	
 	/**
@@ -134,7 +122,10 @@ public class Image {
 	public void setPixelColor(Color inPixel, int inX, int inY) {
 		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
 			throw new IndexOutOfBoundsException();
-		data[inX][inY].set(inPixel);
+		int i = 3 * (inX + inY * width);
+		data[i] = inPixel.r() / 255f;
+		data[i + 1] = inPixel.g() / 255f;
+		data[i + 2] = inPixel.b() / 255f;
 	}
 	
 	/**
@@ -146,98 +137,142 @@ public class Image {
 	public void setPixelColor(Colord inPixel, int inX, int inY) {
 		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
 			throw new IndexOutOfBoundsException();
-		data[inX][inY].set(inPixel);
+		int i = 3 * (inX + inY * width);
+		data[i] = (float) inPixel.x;
+		data[i + 1] = (float) inPixel.y;
+		data[i + 2] = (float) inPixel.z;
+	}
+	
+	/**
+	 * Copy part of a row out of the image.
+	 * @param y the row
+	 * @param xl the first column to copy
+	 * @param xh one past the last column to copy
+	 * @param out output RGB values, 3 per pixel
+	 * @param offset the index in out of the first value
+	 */
+	public void getRow(int y, int xl, int xh, float[] out, int offset) {
+		checkRow(y, xl, xh);
+		System.arraycopy(data, 3 * (xl + y * width), out, offset, 3 * (xh - xl));
+	}
+	
+	/**
+	 * Copy part of a row into the image.
+	 * @param y the row
+	 * @param xl the first column to copy
+	 * @param xh one past the last column to copy
+	 * @param in input RGB values, 3 per pixel
+	 * @param offset the index in in of the first value
+	 */
+	public void setRow(int y, int xl, int xh, float[] in, int offset) {
+		checkRow(y, xl, xh);
+		System.arraycopy(in, offset, data, 3 * (xl + y * width), 3 * (xh - xl));
+	}
+	
+	/**
+	 * Copy a rectangle of pixels out of the image, row by row from yl.
+	 * @param xl the first column
+	 * @param yl the first row
+	 * @param xh one past the last column
+	 * @param yh one past the last row
+	 * @param out output RGB values, 3 * (xh - xl) * (yh - yl) of them
+	 */
+	public void getTile(int xl, int yl, int xh, int yh, float[] out) {
+		int stride = 3 * (xh - xl);
+		for (int y = yl; y < yh; y++)
+			getRow(y, xl, xh, out, (y - yl) * stride);
+	}
+	
+	/**
+	 * Copy a rectangle of pixels into the image, row by row from yl.
+	 * @param xl the first column
+	 * @param yl the first row
+	 * @param xh one past the last column
+	 * @param yh one past the last row
+	 * @param in input RGB values, 3 * (xh - xl) * (yh - yl) of them
+	 */
+	public void setTile(int xl, int yl, int xh, int yh, float[] in) {
+		int stride = 3 * (xh - xl);
+		for (int y = yl; y < yh; y++)
+			setRow(y, xl, xh, in, (y - yl) * stride);
+	}
+	
+	protected void checkRow(int y, int xl, int xh) {
+		if (y < 0 || y >= height || xl < 0 || xh > width || xl > xh)
+			throw new IndexOutOfBoundsException();
+	}
+	
+	private static byte toByte(float c) {
+		return (byte) (Math.min(1f, Math.max(0f, c)) * 255 + 0.5f);
+	}
+	
+	/**
+	 * Convert linear RGB values to gamma corrected (2.2) packed integers of the form
+	 * BufferedImage.TYPE_INT_RGB, in the same way as Colord.gammaCorrect followed by
+	 * Colord.toColor().toIntRGB().
+	 * @param in input RGB values, 3 per pixel
+	 * @param out output packed pixels
+	 * @param n the number of pixels
+	 */
+	public static void toIntRGB(float[] in, int[] out, int n) {
+		for (int i = 0; i < n; i++)
+			out[i] = (gammaByte(in[3 * i]) << 16) | (gammaByte(in[3 * i + 1]) << 8) | gammaByte(in[3 * i + 2]);
+	}
+	
+	private static int gammaByte(float c) {
+		// Also maps negative and NaN values to 0
+		if (!(c > 0))
+			return 0;
+		return (int) (Math.min(1.0, Math.pow(c, 1 / 2.2)) * 255 + 0.5);
 	}
 	
 	/**
 	 * Write this image to the filename.  The output is always written as a PNG regardless
-	 * of the extension on the filename given.
+	 * of the extension on the filename given.  The image is streamed out one row at a
+	 * time, so no second copy of it is made.
 	 * @param fileName the output filename
+	 * @return true if the image was written, false if the file could not be
 	 */
-	public void write(String fileName) {
-		BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-		
-		Colord pixelColor= new Colord();
-		for (int y = 0; y < height; y++) {
-			for (int x = 0; x < width; x++) {
-				this.getPixelColor(pixelColor, x, y);
-				pixelColor.gammaCorrect(2.2);
-				Color c = pixelColor.toColor();
-				bufferedImage.setRGB(x, (height - 1 - y), c.toIntRGB());
+	public boolean write(String fileName) {
+		float[] row = new float[3 * width];
+		int[] rgb = new int[width];
+		try (PngWriter out = new PngWriter(fileName, width, height)) {
+			for (int y = height - 1; y >= 0; y--) {
+				getRow(y, 0, width, row, 0);
+				toIntRGB(row, rgb, width);
+				out.writeRow(rgb);
 			}
-		}
-		
-		try {
-			ImageIO.write(bufferedImage, "PNG", new File(fileName));
+			return true;
 		}
 		catch (Exception e) {
 			System.out.println("Error occured while attempting to write file: "+fileName);
 			System.err.println(e);
 			e.printStackTrace();
+			return false;
 		}
 	}
 	
 	/**
-	 * A quick openEXR-JNI write test
-	 * Write this image to the filename.  The output is always written as HDR regardless
-	 * of the extension on the filename given.
+	 * Write this image to the filename.  The output is always written as HDR (32 bit
+	 * float OpenEXR) regardless of the extension on the filename given.  The image is
+	 * streamed out one scanline at a time.
 	 * @param fileName the output filename
+	 * @return true if the image was written, false if the file could not be
 	 */
-	public void writeHDR(String fileName) {
-		
-		File outFile = new File(fileName);
-
-        final PixelType pixelType = PixelType.FLOAT;
-        final int numChannels = 3;
-        final int elemSize    = pixelType.byteSize();
-        final int pixelSize   = elemSize * numChannels;
-        final int numPixels   = width * height;
-    
-		Header hdrHeader = new Header(width, height);
-		
-		ChannelList channels = hdrHeader.getChannels();
-        channels.insert("R", new Channel(pixelType));
-        channels.insert("G", new Channel(pixelType));
-        channels.insert("B", new Channel(pixelType));
-        
-		Colord pixelColor= new Colord();
-        ByteBuffer pixels = ByteBuffer.allocateDirect(pixelSize * numPixels);
-        pixels.order(ByteOrder.LITTLE_ENDIAN);
-        for(int h = height-1; h >= 0; --h) {
-            for (int w = 0; w < width; ++w) {
-            	this.getPixelColor(pixelColor, w, h);
-                pixels.putFloat((float) pixelColor.x);
-                pixels.putFloat((float) pixelColor.y);
-                pixels.putFloat((float) pixelColor.z);
-            }
-        }
-        pixels.flip();
-        
-     // Build the frame buffer
-        FrameBuffer frameBuffer = new FrameBuffer();
-        final int yStride = width * pixelSize;
-        frameBuffer.insert("R", Slice.build()
-                .baseOffset(0).buffer(pixels).pixelType(pixelType)
-                .xStride(pixelSize).yStride(yStride).get());
-        frameBuffer.insert("G", Slice.build()
-                .baseOffset(elemSize).buffer(pixels).pixelType(pixelType)
-                .xStride(pixelSize).yStride(yStride).get());
-        frameBuffer.insert("B", Slice.build()
-                .baseOffset(2*elemSize).buffer(pixels).pixelType(pixelType)
-                .xStride(pixelSize).yStride(yStride).get());
-        
-        try (EXROutputFile out = new EXROutputFile(outFile.toPath(), hdrHeader)){
-             out.setFrameBuffer(frameBuffer);
-             out.writePixels(height);
-             System.out.printf("  Wrote RGB32F file %s%n", outFile);
-             
-             //System.out.printf("  File size: %d%n", Files.size(outFile.toPath()));
-             pixels.rewind();
-         }
+	public boolean writeHDR(String fileName) {
+		float[] row = new float[3 * width];
+		try (ExrWriter out = new ExrWriter(fileName, width, height)) {
+			for (int y = height - 1; y >= 0; y--) {
+				getRow(y, 0, width, row, 0);
+				out.writeRow(row);
+			}
+			return true;
+		}
 		catch (Exception e) {
 			System.out.println("Error occured while attempting to write file: "+fileName);
 			System.err.println(e);
 			e.printStackTrace();
+			return false;
 		}
 	}
 }
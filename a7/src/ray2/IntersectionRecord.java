@@ -20,6 +20,19 @@ public class IntersectionRecord {
 
   /** The texture coordinates of the intersection point */
   public final Vector2d texCoords = new Vector2d();
+
+  /**
+   * How fast the texture coordinates change across the surface at the
+   * intersection, in texture units per unit of distance, or 0 if the surface
+   * does not say.
+   */
+  public double texScale;
+
+  /**
+   * The width of the footprint of the ray on the surface, in texture units,
+   * for filtering texture lookups; set by computeTexFootprint.
+   */
+  public double texFootprint;
   
   /** A reference to the actual surface. */
   public Surface surface = null;
@@ -27,6 +40,12 @@ public class IntersectionRecord {
   /** The t value along the ray at which the intersection occurred. */
   public double t = 0;  
   
+  /** For surfaces made of many primitives (such as a Mesh), the index of the primitive hit. */
+  public int primitive = -1;
+  
+  /** The barycentric coordinates of the intersection within that primitive. */
+  public double beta, gamma;
+  
   /**
    * Set this intersection record to the value of inRecord
    *
@@ -36,7 +55,25 @@ public class IntersectionRecord {
     location.set(inRecord.location);
     normal.set(inRecord.normal);
     texCoords.set(inRecord.texCoords);
+    texScale = inRecord.texScale;
+    texFootprint = inRecord.texFootprint;
     surface = inRecord.surface;   
     t = inRecord.t;
+    primitive = inRecord.primitive;
+    beta = inRecord.beta;
+    gamma = inRecord.gamma;
+  }
+
+  /**
+   * Set texFootprint from the footprint of the ray that produced this record.
+   * A ray that meets the surface at an angle covers a longer strip of it; the
+   * lookup is isotropic, so the width is grown by the square root of that
+   * stretch, which keeps the filtered area right, up to a limit of 8 times.
+   *
+   * @param ray the ray that hit the surface
+   */
+  public void computeTexFootprint(Ray ray) {
+    double cos = Math.abs(normal.dot(ray.direction)) / ray.direction.len();
+    texFootprint = ray.coneWidthAt(t) * texScale / Math.sqrt(Math.max(cos, 1.0 / 64));
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,165 @@
+package ray2;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+import egl.math.Color;
+import egl.math.Colord;
+
+/**
+ * An image whose pixels live in a memory-mapped scratch file instead of the
+ * Java heap, for renders too large to hold in memory. The operating system
+ * pages the file in and out as needed, so the size of the image is limited by
+ * disk space rather than by -Xmx, and the writers stream it out row by row.
+ *
+ * The layout is the same as Image: 3 floats per pixel, row by row from the
+ * bottom. A single mapping cannot exceed 2 GB, so the file is mapped as a
+ * series of chunks of whole rows.
+ *
+ * Select it in the scene file with
+ *
+ *   &lt;image type="MappedImage"&gt;32768 32768&lt;/image&gt;
+ *
+ * The scratch file is deleted by close(), or when the program exits.
+ */
+public class MappedImage extends Image implements Closeable {
+
+	/** The directory scratch files are created in. */
+	public static String scratchDirectory = System.getProperty("java.io.tmpdir");
+
+	/** The largest number of bytes mapped by one chunk. */
+	private static final long CHUNK_BYTES = 1L << 30;
+
+	private File file;
+
+	/** The rows of the image, rowsPerChunk rows to a chunk. */
+	private FloatBuffer[] chunks;
+	private int rowsPerChunk;
+
+	/**
+	 * Create an empty (black) image backed by a new scratch file.
+	 *
+	 * @param inW input width
+	 * @param inH input height
+	 */
+	public MappedImage(int inW, int inH) {
+		super(inW, inH);
+	}
+
+	/**
+	 * Set the size of the image by recreating its scratch file.  Destroys all current image data.
+	 * @param newWidth width
+	 * @param newHeight height
+	 */
+	@Override
+	public void setSize(int newWidth, int newHeight) {
+		close();
+		width = newWidth;
+		height = newHeight;
+		data = null;
+
+		long rowBytes = 12L * Math.max(width, 1);
+		rowsPerChunk = (int) Math.max(1, Math.min(height, CHUNK_BYTES / rowBytes));
+		int chunkCount = (height + rowsPerChunk - 1) / rowsPerChunk;
+		try {
+			file = File.createTempFile("ray2-", ".img", new File(scratchDirectory));
+			file.deleteOnExit();
+			// The mappings stay valid after the file is closed
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(rowBytes * height);
+				FileChannel channel = raf.getChannel();
+				chunks = new FloatBuffer[chunkCount];
+				for (int i = 0; i < chunkCount; i++) {
+					int rows = Math.min(rowsPerChunk, height - i * rowsPerChunk);
+					chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, i * rowsPerChunk * rowBytes, rows * rowBytes)
+							.order(ByteOrder.nativeOrder()).asFloatBuffer();
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not create a scratch file for a " + width + " x " + height + " image", e);
+		}
+	}
+
+	/**
+	 * Release the mappings and delete the scratch file. The image may not be used afterwards.
+	 */
+	@Override
+	public void close() {
+		chunks = null;
+		if (file != null)
+			file.delete();
+		file = null;
+	}
+
+	/**
+	 * Set the image to black
+	 */
+	@Override
+	public void clear() {
+		float[] zero = new float[3 * width];
+		for (int y = 0; y < height; y++)
+			setRow(y, 0, width, zero, 0);
+	}
+
+	private FloatBuffer chunk(int y) {
+		return chunks[y / rowsPerChunk];
+	}
+
+	private int index(int x, int y) {
+		return 3 * (x + (y % rowsPerChunk) * width);
+	}
+
+	@Override
+	public void getPixelColor(Color outPixel, int inX, int inY) {
+		Colord c = new Colord();
+		getPixelColor(c, inX, inY);
+		outPixel.set(c);
+	}
+
+	@Override
+	public void getPixelColor(Colord outPixel, int inX, int inY) {
+		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
+			throw new IndexOutOfBoundsException();
+		FloatBuffer b = chunk(inY);
+		int i = index(inX, inY);
+		outPixel.set(b.get(i), b.get(i + 1), b.get(i + 2));
+	}
+
+	@Override
+	public void setPixelColor(Color inPixel, int inX, int inY) {
+		setPixelColor(new Colord(inPixel), inX, inY);
+	}
+
+	@Override
+	public void setPixelColor(Colord inPixel, int inX, int inY) {
+		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
+			throw new IndexOutOfBoundsException();
+		FloatBuffer b = chunk(inY);
+		int i = index(inX, inY);
+		b.put(i, (float) inPixel.x);
+		b.put(i + 1, (float) inPixel.y);
+		b.put(i + 2, (float) inPixel.z);
+	}
+
+	@Override
+	public void getRow(int y, int xl, int xh, float[] out, int offset) {
+		checkRow(y, xl, xh);
+		FloatBuffer b = chunk(y).duplicate();
+		b.position(index(xl, y));
+		b.get(out, offset, 3 * (xh - xl));
+	}
+
+	@Override
+	public void setRow(int y, int xl, int xh, float[] in, int offset) {
+		checkRow(y, xl, xh);
+		FloatBuffer b = chunk(y).duplicate();
+		b.position(index(xl, y));
+		b.put(in, offset, 3 * (xh - xl));
+	}
+}
@@ -0,0 +1,163 @@
+package ray2;
+
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import ray2.light.Light;
+import ray2.surface.Surface;
+import egl.math.Vector3d;
+
+/**
+ * Remembers, for each light, the last surface that blocked a shadow ray to it.
+ * Shadow rays to the same light from neighbouring points are usually blocked by
+ * the same surface, so that surface is tested first, and the acceleration
+ * structure is only traversed if it does not block the ray. A ray that reaches
+ * the light clears the entry, so lit areas do not pay for testing it.
+ *
+ * A renderer that has already traced the shadow rays from a shading point to
+ * some point lights, in packets (see WavefrontRenderer), can hand the answers
+ * over with setKnown, and they are used in place of tracing the rays again.
+ *
+ * Each render thread has its own cache in its Workspace; the hit counters are
+ * shared by all threads.
+ */
+public class OccluderCache {
+
+	private static final LongAdder shadowRays = new LongAdder();
+	private static final LongAdder blockedRays = new LongAdder();
+	private static final LongAdder cacheHits = new LongAdder();
+	private static final LongAdder knownAnswers = new LongAdder();
+
+	/** The states of a known answer. */
+	public static final byte UNKNOWN = 0, CLEAR = 1, BLOCKED = 2;
+
+	/** The last surface that blocked a shadow ray to each light. */
+	private final IdentityHashMap<Light, Surface> occluders = new IdentityHashMap<Light, Surface>();
+
+	/** The record the acceleration structure reports the blocking surface in. */
+	private final IntersectionRecord record = new IntersectionRecord();
+
+	/*
+	 * The answers known for the shadow rays from one point: known[knownBase + i]
+	 * is the answer for the light numbered i by knownLights.
+	 */
+	private IdentityHashMap<Light, Integer> knownLights;
+	private byte[] known;
+	private int knownBase;
+	private double knownX, knownY, knownZ;
+
+	/**
+	 * Supply the answers to the shadow rays from a point to a set of point lights,
+	 * as set up by Shader.setShadowRay, so that isOccluded does not trace them.
+	 * @param lights the number of each light in answers
+	 * @param answers UNKNOWN, CLEAR or BLOCKED for each light
+	 * @param base the index in answers of the light numbered 0
+	 * @param point the point the shadow rays start from
+	 */
+	public void setKnown(IdentityHashMap<Light, Integer> lights, byte[] answers, int base, Vector3d point) {
+		knownLights = lights;
+		known = answers;
+		knownBase = base;
+		knownX = point.x; knownY = point.y; knownZ = point.z;
+	}
+
+	/**
+	 * Forget the answers supplied by setKnown.
+	 */
+	public void clearKnown() {
+		knownLights = null;
+		known = null;
+	}
+
+	/**
+	 * Test whether any surface blocks a shadow ray.
+	 * @param scene the scene
+	 * @param light the light the ray goes to, or null to bypass the cache
+	 * @param shadowRay the shadow ray
+	 * @return true if there is any surface along the ray
+	 */
+	public boolean isOccluded(Scene scene, Light light, Ray shadowRay) {
+		shadowRays.increment();
+		if (light == null) {
+			if (!scene.getAnyIntersection(shadowRay))
+				return false;
+			blockedRays.increment();
+			return true;
+		}
+
+		if (knownLights != null && shadowRay.origin.x == knownX && shadowRay.origin.y == knownY && shadowRay.origin.z == knownZ) {
+			Integer i = knownLights.get(light);
+			byte answer = i != null ? known[knownBase + i] : UNKNOWN;
+			if (answer != UNKNOWN) {
+				knownAnswers.increment();
+				if (answer == CLEAR)
+					return false;
+				blockedRays.increment();
+				return true;
+			}
+		}
+
+		Surface last = occluders.get(light);
+		if (last != null && last.intersect(null, shadowRay)) {
+			blockedRays.increment();
+			cacheHits.increment();
+			return true;
+		}
+
+		// The structure names the surface it found, if it supports that
+		record.surface = null;
+		if (scene.getAccelStruct().intersect(record, shadowRay, true)) {
+			blockedRays.increment();
+			if (record.surface != null)
+				occluders.put(light, record.surface);
+			return true;
+		}
+		if (last != null)
+			occluders.remove(light);
+		return false;
+	}
+
+	/**
+	 * Test a shadow ray against the last surface that blocked a ray to the light,
+	 * without tracing it through the scene or counting it.
+	 * @param light the light the ray goes to
+	 * @param shadowRay the shadow ray
+	 * @return true if that surface blocks the ray
+	 */
+	public boolean blockedByLast(Light light, Ray shadowRay) {
+		Surface last = occluders.get(light);
+		return last != null && last.intersect(null, shadowRay);
+	}
+
+	/**
+	 * Record the outcome of a shadow ray traced elsewhere, as isOccluded does.
+	 * @param light the light the ray went to
+	 * @param occluder the surface that blocked it, or null if it reached the light
+	 */
+	public void remember(Light light, Surface occluder) {
+		if (occluder != null)
+			occluders.put(light, occluder);
+		else
+			occluders.remove(light);
+	}
+
+	/**
+	 * Reset the hit counters of all threads.
+	 */
+	public static void resetCounters() {
+		shadowRays.reset();
+		blockedRays.reset();
+		cacheHits.reset();
+		knownAnswers.reset();
+	}
+
+	/**
+	 * @return a line describing how many shadow rays the caches answered
+	 */
+	public static String report() {
+		long rays = shadowRays.sum(), blocked = blockedRays.sum(), hits = cacheHits.sum();
+		return "Occluder cache answered " + hits + " of " + blocked + " blocked shadow rays ("
+				+ String.format("%.1f", 100.0 * hits / Math.max(blocked, 1)) + "%), out of "
+				+ rays + " shadow rays in all" + (knownAnswers.sum() > 0 ? ", " + knownAnswers.sum() + " of them traced in packets" : "");
+	}
+}
@@ -0,0 +1,119 @@
+package ray2;
+
+import ray2.shader.Shader;
+import egl.math.Colord;
+
+/**
+ * Shades a camera ray by following a single path through the scene, in a loop,
+ * instead of letting shaders call RayTracer.shadeRay recursively. At each hit
+ * the shader adds the light it sends back by itself and picks at most one ray
+ * to continue with (see Shader.scatter), so a glass surface follows either its
+ * reflection or its refraction, chosen by the Fresnel term, instead of both.
+ * The path carries a throughput weight, the product of the weights of its
+ * bounces, and after a few bounces it is ended by Russian roulette: it
+ * survives with probability equal to its largest throughput component, and
+ * survivors are weighted up to keep the estimate unbiased. The roulette draws
+ * from the camera ray's PathRandom, like the shaders.
+ *
+ * The cost of a sample is linear in the length of its path, where the
+ * recursive mode branches at every glass surface. Each sample is noisier, so
+ * the mode suits scenes rendered with many samples per pixel.
+ *
+ * Selected in the scene file with
+ *
+ *   &lt;integrator&gt;path&lt;/integrator&gt;
+ */
+public class PathIntegrator {
+
+	/** The number of bounces taken before Russian roulette starts. */
+	public static final int ROULETTE_DEPTH = 3;
+
+	/** The longest path followed, so that paths that never lose energy still end. */
+	public static final int MAX_LENGTH = 64;
+
+	/**
+	 * Compute the light arriving along ray.
+	 * @param outColor output space
+	 * @param scene the scene
+	 * @param cameraRay the ray to shade, which is not modified
+	 */
+	public static void trace(Colord outColor, Scene scene, Ray cameraRay) {
+		Workspace ws = Workspace.get();
+		IntersectionRecord record = ws.records[1];
+		Colord throughput = ws.pathThroughput;
+
+		outColor.setZero();
+		throughput.set(1, 1, 1);
+		Ray ray = cameraRay;
+		Ray next = ws.pathRays[0];
+		for (int length = 1; length <= MAX_LENGTH; length++) {
+			if (!scene.getFirstIntersection(record, ray)) {
+				miss(outColor, throughput, scene, ray);
+				return;
+			}
+			if (!bounce(outColor, throughput, next, scene, ray, record, length))
+				return;
+
+			ray = next;
+			next = ws.pathRays[next == ws.pathRays[0] ? 1 : 0];
+		}
+	}
+
+	/**
+	 * End a path whose ray hits nothing, adding the light of the background.
+	 * @param outColor the light gathered by the path so far, added to
+	 * @param throughput the weight of the path
+	 * @param scene the scene
+	 * @param ray the ray that missed
+	 */
+	static void miss(Colord outColor, Colord throughput, Scene scene, Ray ray) {
+		Colord local = Workspace.get().pathLocal;
+		if (scene.cubeMap != null)
+			scene.cubeMap.evaluate(ray.direction, local);
+		else
+			local.set(scene.getBackColor());
+		outColor.add(local.mul(throughput));
+	}
+
+	/**
+	 * Take one bounce of a path: shade the hit, and choose the ray the path
+	 * continues with. This is the whole body of the loop in trace, and is shared
+	 * with WavefrontRenderer so that both give the same result for a path.
+	 *
+	 * @param outColor the light gathered by the path so far, added to
+	 * @param throughput the weight of the path, updated for the next ray
+	 * @param outRay the ray the path continues with
+	 * @param scene the scene
+	 * @param ray the ray that was traced
+	 * @param record its closest hit
+	 * @param length the number of rays in the path so far, starting from 1
+	 * @return true if the path continues along outRay
+	 */
+	static boolean bounce(Colord outColor, Colord throughput, Ray outRay, Scene scene, Ray ray,
+			IntersectionRecord record, int length) {
+		Workspace ws = Workspace.get();
+		Colord local = ws.pathLocal;
+		Colord weight = ws.pathWeight;
+		record.computeTexFootprint(ray);
+
+		// The scratch objects of depth 1 are free again at every bounce
+		Shader shader = record.surface.getShader();
+		boolean more = shader.scatter(local, weight, outRay, scene, ray, record, 1);
+		outColor.add(local.mul(throughput));
+		if (!more)
+			return false;
+		throughput.mul(weight);
+
+		if (length >= ROULETTE_DEPTH) {
+			double survive = Math.min(1, Math.max(throughput.x, Math.max(throughput.y, throughput.z)));
+			if (ws.random.nextDouble() >= survive)
+				return false;
+			throughput.div(survive);
+		}
+
+		// The footprint keeps growing from where the ray left off
+		outRay.coneWidth = ray.coneWidthAt(record.t);
+		outRay.coneSpread = ray.coneSpread;
+		return true;
+	}
+}
@@ -0,0 +1,122 @@
+package ray2;
+
+import ray2.sampler.Sampler;
+
+/**
+ * The random numbers drawn while shading one camera ray: light samples, Russian
+ * roulette and any random choice a shader makes.
+ *
+ * A renderer that knows which sample of which pixel the ray is starts the
+ * stream from the scene's Sampler (see start), and the numbers are then the
+ * sampler's dimensions 2, 3, ... of that sample, following the position of the
+ * sample in the pixel. Otherwise the stream is seeded from the camera ray
+ * itself. Either way the same ray gets the same numbers whichever renderer
+ * traces it and on whichever thread, and renders are repeatable. The state is a
+ * single long, so a renderer that suspends a path (see WavefrontRenderer) can
+ * save it with the path and resume the stream later (see setState and resume).
+ *
+ * The generator used without a sampler is SplitMix64, which is small and fast
+ * and passes the usual statistical tests.
+ */
+public class PathRandom {
+
+	private long state;
+
+	/** The sample the stream is drawn from, or null to use SplitMix64. */
+	private Sampler sampler;
+	private int x, y, index;
+
+	/** Whether start was called for the next camera ray. */
+	private boolean started;
+
+	/**
+	 * Start the stream of sample index of pixel (x, y), for the next camera ray
+	 * to be shaded.
+	 */
+	public void start(Sampler sampler, int x, int y, int index) {
+		this.sampler = sampler;
+		this.x = x;
+		this.y = y;
+		this.index = index;
+		state = Sampler.PIXEL_DIMENSIONS;
+		started = true;
+	}
+
+	/**
+	 * Begin shading a camera ray: keep the stream given to start, if it was
+	 * called since the last camera ray, or else seed the stream from the ray.
+	 * @param ray the camera ray
+	 */
+	public void begin(Ray ray) {
+		if (started)
+			started = false;
+		else
+			seed(ray);
+	}
+
+	/**
+	 * Start the stream of a camera ray.
+	 * @param ray the camera ray
+	 */
+	public void seed(Ray ray) {
+		sampler = null;
+		state = seedFor(ray);
+	}
+
+	/**
+	 * @return the seed of the stream of a camera ray, a hash of its origin and direction
+	 */
+	public static long seedFor(Ray ray) {
+		long h = mix(Double.doubleToLongBits(ray.origin.x));
+		h = mix(h ^ Double.doubleToLongBits(ray.origin.y));
+		h = mix(h ^ Double.doubleToLongBits(ray.origin.z));
+		h = mix(h ^ Double.doubleToLongBits(ray.direction.x));
+		h = mix(h ^ Double.doubleToLongBits(ray.direction.y));
+		return mix(h ^ Double.doubleToLongBits(ray.direction.z));
+	}
+
+	/**
+	 * @return the state of the stream, to be restored by setState: the next
+	 *   dimension of the sample, if it was started from a sampler
+	 */
+	public long getState() { return state; }
+
+	/**
+	 * Continue a stream without a sampler.
+	 * @param state a state returned by getState for such a stream, or by seedFor
+	 */
+	public void setState(long state) {
+		sampler = null;
+		this.state = state;
+		started = false;
+	}
+
+	/**
+	 * Continue the stream of sample index of pixel (x, y) where it was left.
+	 * @param state a state returned by getState for that stream
+	 */
+	public void resume(Sampler sampler, int x, int y, int index, long state) {
+		this.sampler = sampler;
+		this.x = x;
+		this.y = y;
+		this.index = index;
+		this.state = state;
+		started = false;
+	}
+
+	/**
+	 * @return a uniform random number in [0, 1)
+	 */
+	public double nextDouble() {
+		if (sampler != null)
+			return sampler.get(x, y, index, (int) state++);
+		state += 0x9E3779B97F4A7C15L;
+		return (mix(state) >>> 11) * 0x1.0p-53;
+	}
+
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
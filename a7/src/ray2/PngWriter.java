@@ -0,0 +1,208 @@
+package ray2;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes an 8 bit RGB PNG file one row at a time, so that an image of any size
+ * can be written without holding all of it in memory. Rows are given from the
+ * top of the image down, as packed integers of the form
+ * BufferedImage.TYPE_INT_RGB. Each row is filtered with whichever of the five
+ * PNG filters gives the smallest sum of absolute differences, as libpng does.
+ */
+public class PngWriter implements Closeable {
+
+	private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+	/** The size of the IDAT chunks the compressed rows are split into. */
+	private static final int CHUNK_SIZE = 1 << 16;
+
+	private final int width, height;
+	private int rowsWritten = 0;
+
+	private final DataOutputStream file;
+	private final Deflater deflater;
+	private final DeflaterOutputStream pixels;
+
+	/** The current and previous row, unfiltered, and the current row under each filter. */
+	private byte[] row, prev;
+	private final byte[][] filtered = new byte[5][];
+
+	/**
+	 * Create the file and write the header.
+	 * @param fileName the output PNG file
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 * @throws IOException if the file cannot be written
+	 */
+	public PngWriter(String fileName, int width, int height) throws IOException {
+		this.width = width;
+		this.height = height;
+		row = new byte[3 * width];
+		prev = new byte[3 * width];
+		for (int f = 0; f < filtered.length; f++)
+			filtered[f] = new byte[3 * width + 1];
+
+		file = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), CHUNK_SIZE));
+		file.write(SIGNATURE);
+
+		byte[] ihdr = new byte[13];
+		putInt(ihdr, 0, width);
+		putInt(ihdr, 4, height);
+		ihdr[8] = 8; // bits per channel
+		ihdr[9] = 2; // truecolor
+		writeChunk("IHDR", ihdr, ihdr.length);
+
+		deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		pixels = new DeflaterOutputStream(new IdatStream(), deflater, CHUNK_SIZE, true);
+	}
+
+	/**
+	 * @return the number of rows written so far
+	 */
+	public int getRowsWritten() {
+		return rowsWritten;
+	}
+
+	/**
+	 * Write the next row of the image.
+	 * @param rgb the pixels of the row, left to right, as 0xRRGGBB
+	 * @throws IOException if the file cannot be written
+	 */
+	public void writeRow(int[] rgb) throws IOException {
+		if (rowsWritten >= height)
+			throw new IllegalStateException("All " + height + " rows have already been written");
+
+		byte[] t = prev; prev = row; row = t;
+		for (int x = 0; x < width; x++) {
+			row[3 * x] = (byte) (rgb[x] >> 16);
+			row[3 * x + 1] = (byte) (rgb[x] >> 8);
+			row[3 * x + 2] = (byte) rgb[x];
+		}
+
+		// Apply every filter and keep the one with the smallest sum of absolute values
+		int best = 0;
+		long bestSum = Long.MAX_VALUE;
+		for (int f = 0; f < filtered.length; f++) {
+			byte[] out = filtered[f];
+			out[0] = (byte) f;
+			long sum = 0;
+			for (int i = 0; i < row.length; i++) {
+				int a = i >= 3 ? row[i - 3] & 0xff : 0;
+				int b = prev[i] & 0xff;
+				int c = i >= 3 ? prev[i - 3] & 0xff : 0;
+				int predictor;
+				switch (f) {
+				case 1: predictor = a; break;
+				case 2: predictor = b; break;
+				case 3: predictor = (a + b) >> 1; break;
+				case 4: predictor = paeth(a, b, c); break;
+				default: predictor = 0; break;
+				}
+				byte v = (byte) (row[i] - predictor);
+				out[i + 1] = v;
+				sum += Math.abs(v);
+			}
+			if (sum < bestSum) {
+				bestSum = sum;
+				best = f;
+			}
+		}
+		pixels.write(filtered[best]);
+		rowsWritten++;
+	}
+
+	/**
+	 * Push every row written so far out to the file, so that it is on disk even
+	 * if the file is never closed. Flushing often costs some compression.
+	 * @throws IOException if the file cannot be written
+	 */
+	public void flush() throws IOException {
+		pixels.flush();
+		file.flush();
+	}
+
+	/**
+	 * Finish the file. Rows that were never written are left out, which makes
+	 * the file truncated but lets most readers show the rows that are there.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			pixels.finish();
+			pixels.flush();
+			writeChunk("IEND", new byte[0], 0);
+			file.close();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static int paeth(int a, int b, int c) {
+		int p = a + b - c;
+		int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+		if (pa <= pb && pa <= pc)
+			return a;
+		return pb <= pc ? b : c;
+	}
+
+	private static void putInt(byte[] b, int offset, int v) {
+		b[offset] = (byte) (v >>> 24);
+		b[offset + 1] = (byte) (v >>> 16);
+		b[offset + 2] = (byte) (v >>> 8);
+		b[offset + 3] = (byte) v;
+	}
+
+	private void writeChunk(String type, byte[] data, int length) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] typeBytes = type.getBytes("US-ASCII");
+		crc.update(typeBytes);
+		crc.update(data, 0, length);
+		file.writeInt(length);
+		file.write(typeBytes);
+		file.write(data, 0, length);
+		file.writeInt((int) crc.getValue());
+	}
+
+	/**
+	 * Splits the compressed stream into IDAT chunks.
+	 */
+	private class IdatStream extends OutputStream {
+		private final byte[] buffer = new byte[CHUNK_SIZE];
+		private int count = 0;
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count == buffer.length)
+				flush();
+			buffer[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int offset, int length) throws IOException {
+			while (length > 0) {
+				if (count == buffer.length)
+					flush();
+				int n = Math.min(length, buffer.length - count);
+				System.arraycopy(b, offset, buffer, count, n);
+				count += n;
+				offset += n;
+				length -= n;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (count > 0)
+				writeChunk("IDAT", buffer, count);
+			count = 0;
+		}
+	}
+}
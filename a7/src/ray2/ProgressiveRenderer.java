@@ -0,0 +1,151 @@
+package ray2;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import ray2.camera.Camera;
+import ray2.sampler.Sampler;
+import ray2.viewer.QuickViewer;
+import egl.math.Colord;
+
+/**
+ * Progressive rendering: the image is rendered in passes, each of which adds
+ * one sample to every pixel of an Accumulator, and the running mean is
+ * shown after every pass. Rendering stops at whichever budget is reached
+ * first: a wall-clock time limit, a number of passes, or a convergence
+ * threshold on the per-pixel error (checked after minPasses passes).
+ *
+ * Enabled by a &lt;progressive&gt; element in the scene file, e.g.
+ *
+ *   &lt;progressive&gt;
+ *     &lt;timeLimit&gt;30&lt;/timeLimit&gt;
+ *     &lt;maxPasses&gt;1024&lt;/maxPasses&gt;
+ *     &lt;threshold&gt;0.002&lt;/threshold&gt;
+ *   &lt;/progressive&gt;
+ */
+public class ProgressiveRenderer {
+
+	/** The wall-clock budget in seconds; 0 for none. */
+	protected double timeLimit = 0;
+	public void setTimeLimit(double timeLimit) { this.timeLimit = Math.max(0, timeLimit); }
+
+	/** The number of passes (samples per pixel) to stop at; 0 uses the scene's samples. */
+	protected int maxPasses = 0;
+	public void setMaxPasses(int maxPasses) { this.maxPasses = Math.max(0, maxPasses); }
+
+	/**
+	 * Stop once the standard error of the mean displayed luminance, as a root
+	 * mean square over all pixels, is at most this; 0 to never stop on convergence.
+	 */
+	protected double threshold = 0;
+	public void setThreshold(double threshold) { this.threshold = Math.max(0, threshold); }
+
+	/** The number of passes to take before the error estimate is trusted. */
+	protected int minPasses = 8;
+	public void setMinPasses(int minPasses) { this.minPasses = Math.max(2, minPasses); }
+
+	/** The accumulated samples of the last render. */
+	protected Accumulator accumulator;
+	public Accumulator getAccumulator() { return accumulator; }
+
+	/** The number of passes completed by the last render. */
+	protected int passes;
+	public int getPasses() { return passes; }
+
+	public ProgressiveRenderer() { }
+
+	/**
+	 * @return the number of passes to stop at for scene
+	 */
+	public int getMaxPasses(Scene scene) {
+		return maxPasses > 0 ? maxPasses : scene.getSamples() * scene.getSamples();
+	}
+
+	/**
+	 * Render scene into its image, pass by pass, until a budget is reached.
+	 *
+	 * @param scene the scene to render
+	 * @param pool the pool to render the blocks of each pass on
+	 * @param viewer the viewer to show the image in after every pass, or null
+	 * @param checkpoint the checkpoint to resume from and save to, or null
+	 */
+	public void render(Scene scene, ForkJoinPool pool, QuickViewer viewer, Checkpoint checkpoint) {
+		Image image = scene.getImage();
+		int width = image.getWidth();
+		int height = image.getHeight();
+		accumulator = new Accumulator(width, height);
+		passes = checkpoint != null ? checkpoint.loadProgressive(image, accumulator) : 0;
+		if (passes > 0)
+			accumulator.resolve(image, scene.getExposure());
+
+		int passLimit = getMaxPasses(scene);
+		scene.getSampler().setSamplesPerPixel(passLimit);
+		long start = System.nanoTime();
+		long deadline = timeLimit > 0 ? start + (long) (timeLimit * 1e9) : Long.MAX_VALUE;
+
+		while (passes < passLimit) {
+			long passStart = System.nanoTime();
+			final int pass = passes;
+			ArrayList<ForkJoinTask<?>> blocks = new ArrayList<>();
+			for (int y = 0; y < height; y += RayTracer.SUB_HEIGHT) {
+				for (int x = 0; x < width; x += RayTracer.SUB_WIDTH) {
+					final int offsetX = x, offsetY = y;
+					final int sizeX = Math.min(width - x, RayTracer.SUB_WIDTH);
+					final int sizeY = Math.min(height - y, RayTracer.SUB_HEIGHT);
+					blocks.add(pool.submit(() -> renderPass(scene, pass, offsetX, offsetY, sizeX, sizeY)));
+				}
+			}
+			for (ForkJoinTask<?> block : blocks)
+				block.join();
+			passes++;
+
+			accumulator.resolve(image, scene.getExposure());
+			if (viewer != null)
+				viewer.setImage(image);
+			if (checkpoint != null && checkpoint.isDue())
+				checkpoint.saveProgressive(image, accumulator, passes);
+
+			long now = System.nanoTime();
+			double error = accumulator.getRmsError();
+			System.out.println("pass " + passes + ": "
+					+ String.format("%.2f", (now - start) / 1e9) + " s, rms error " + String.format("%.5f", error));
+
+			if (threshold > 0 && passes >= minPasses && error <= threshold) {
+				System.out.println("Converged after " + passes + " passes");
+				break;
+			}
+			// Stop if another pass like the last one would overrun the budget
+			if (now + (now - passStart) > deadline) {
+				System.out.println("Time budget reached after " + passes + " passes");
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Add one sample to every pixel of a block: sample pass of the scene's
+	 * Sampler, so a resumed render continues with the samples it would have
+	 * taken next.
+	 */
+	private void renderPass(Scene scene, int pass, int offsetX, int offsetY, int sizeX, int sizeY) {
+		Workspace ws = Workspace.get();
+		Ray ray = ws.ray;
+		Colord rayColor = ws.rayColor;
+		Sampler sampler = scene.getSampler();
+
+		int width = accumulator.getWidth();
+		int height = accumulator.getHeight();
+		double exposure = scene.getExposure();
+		Camera cam = scene.getCamera();
+
+		for (int x = offsetX; x < offsetX + sizeX; x++) {
+			for (int y = offsetY; y < offsetY + sizeY; y++) {
+				cam.getRay(ray, (x + sampler.get(x, y, pass, 0)) / width, (y + sampler.get(x, y, pass, 1)) / height);
+				ws.random.start(sampler, x, y, pass);
+				RayTracer.shadeRay(rayColor, scene, ray, 1);
+				accumulator.add(rayColor, exposure, x, y);
+			}
+		}
+	}
+}
@@ -36,6 +36,13 @@ public class Ray {
   /** Ending t value of the ray **/
   public double end;
 
+  /**
+   * The footprint of the ray, as a cone around it: its width at the origin,
+   * and how much wider it gets per unit of distance. Camera rays cover one
+   * pixel; the footprint at a hit selects how blurred a texture lookup is.
+   */
+  public double coneWidth, coneSpread;
+
   /**
    * Default constructor generates a trivial ray.
    */
@@ -58,6 +65,8 @@ public class Ray {
 	  direction.set(r.direction);
 	  start = r.start;
 	  end = r.end;
+	  coneWidth = r.coneWidth;
+	  coneSpread = r.coneSpread;
   }
 
   /**
@@ -84,6 +93,15 @@ public class Ray {
   }
 
   
+  /**
+   * Returns the width of the footprint of this ray t units from the origin.
+   * @param t The distance along the ray.
+   */
+  public double coneWidthAt(double t) {
+
+    return coneWidth + coneSpread * t * direction.len();
+  }
+
   /**
    * Moves the origin of the ray EPISILON units along ray.  Avoids self intersection
    * when casting rays from surfaces.
@@ -0,0 +1,63 @@
+package ray2;
+
+/**
+ * A small group of rays that are traced through the scene together (see
+ * AccelStruct.intersectPacket). Rays that start close together and point the
+ * same way, such as neighbouring camera rays or shadow rays from neighbouring
+ * points to one light, mostly visit the same nodes of a BVH, so a packet
+ * visits each node once for all of its rays and only skips it when every ray
+ * misses it.
+ *
+ * The caller fills rays[0..size) and, for the first intersections, reads the
+ * results from hit and records. The lanes hold the rays again as one array per
+ * component, so that a bounding box can be tested against every ray in a
+ * simple loop over primitive arrays, which the JIT compiler can vectorize.
+ */
+public class RayPacket {
+
+	/** The most rays in a packet. */
+	public static final int MAX_SIZE = 16;
+
+	/** The rays of the packet; only the first size are used. */
+	public final Ray[] rays = new Ray[MAX_SIZE];
+
+	/** The first intersection of each ray, when it is found. */
+	public final IntersectionRecord[] records = new IntersectionRecord[MAX_SIZE];
+
+	/** Whether each ray hit a surface. */
+	public final boolean[] hit = new boolean[MAX_SIZE];
+
+	/** The number of rays in the packet. */
+	public int size;
+
+	/**
+	 * The lanes, set from the rays by load: the origin, the reciprocal of the
+	 * direction and the interval [start, end] of each ray. Structures shorten
+	 * end as they find hits, and use entry as scratch space for box tests.
+	 */
+	public final double[] ox = new double[MAX_SIZE], oy = new double[MAX_SIZE], oz = new double[MAX_SIZE];
+	public final double[] ix = new double[MAX_SIZE], iy = new double[MAX_SIZE], iz = new double[MAX_SIZE];
+	public final double[] start = new double[MAX_SIZE], end = new double[MAX_SIZE];
+	public final double[] entry = new double[MAX_SIZE];
+
+	public RayPacket() {
+		for (int k = 0; k < MAX_SIZE; k++) {
+			rays[k] = new Ray();
+			records[k] = new IntersectionRecord();
+		}
+	}
+
+	/**
+	 * Copy rays[0..size) into the lanes, and clear hit.
+	 */
+	public void load() {
+		for (int k = 0; k < size; k++) {
+			Ray ray = rays[k];
+			ox[k] = ray.origin.x; oy[k] = ray.origin.y; oz[k] = ray.origin.z;
+			ix[k] = 1 / ray.direction.x; iy[k] = 1 / ray.direction.y; iz[k] = 1 / ray.direction.z;
+			start[k] = ray.start;
+			end[k] = ray.end;
+			hit[k] = false;
+		}
+	}
+}
@@ -1,11 +1,16 @@
 package ray2;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import ray2.camera.Camera;
+import ray2.sampler.Sampler;
 import ray2.shader.Shader;
 import ray2.viewer.QuickViewer;
 import egl.math.Colord;
@@ -31,6 +36,47 @@ public class RayTracer {
 	protected static int SUB_WIDTH = 32;
 	protected static int SUB_HEIGHT = 32;
 
+	/**
+	 * The number of worker threads that render image sub-blocks in parallel.
+	 * Defaults to the number of available processors; may be overridden on the
+	 * command line with the '-t' option.
+	 */
+	public static int threads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Write the image out while it renders, rows first to last as the blocks
+	 * covering them finish, instead of all at once at the end. Blocks are then
+	 * rendered top to bottom rather than in a spiral. Off by default; may be
+	 * turned on on the command line with the '-stream' option.
+	 */
+	public static boolean streamOutput = false;
+
+	/**
+	 * The time in seconds between checkpoints of a render in progress, which
+	 * are saved to <input_file>.checkpoint and deleted once the render is done;
+	 * 0 to never save. Off by default; may be set on the command line with the
+	 * '-checkpoint' option, and '-resume' alone saves every
+	 * DEFAULT_CHECKPOINT_INTERVAL seconds.
+	 */
+	public static double checkpointInterval = 0;
+
+	/** The time between checkpoints of a resumed render, unless '-checkpoint' says otherwise. */
+	public static final double DEFAULT_CHECKPOINT_INTERVAL = 300;
+
+	/**
+	 * Continue from the checkpoint of an earlier run of the same scene, if
+	 * there is one, rendering only what it is missing. Set on the command line
+	 * with the '-resume' option.
+	 */
+	public static boolean resume = false;
+
+	/**
+	 * Print timings of the stages of setting up each scene, such as building
+	 * its acceleration structure. Off by default; may be turned on on the
+	 * command line with the '-verbose' option.
+	 */
+	public static boolean verbose = false;
+
 	/**
 	 * Widget to draw the image spiral.
 	 */
@@ -44,6 +90,11 @@ public class RayTracer {
 	 */
 	private static QuickViewer viewer = null;
 
+	/**
+	 * The checkpoint of the scene being rendered, or null.
+	 */
+	private Checkpoint checkpoint = null;
+
 	public static class ScenePath {
 		/**
 		 * The Scene's File
@@ -104,7 +155,8 @@ public class RayTracer {
 	 * The main method takes all the parameters and assumes they are input files
 	 * for the ray tracer. It tries to render each one and write it out to a PNG
 	 * file named <input_file>.png. A '-p' option may be passed in to change the
-	 * path that is prepended to each file that is included.
+	 * path that is prepended to each file that is included, and a '-t' option
+	 * sets the number of render threads.
 	 *
 	 * @param args
 	 */
@@ -112,6 +164,7 @@ public class RayTracer {
 		ArrayList<ScenePath> pathArgs = new ArrayList<>();
 		ArrayList<ScenePath> scenesToRender = new ArrayList<>();
 		String currentRoot = directory;
+		boolean intervalGiven = false;
 
 		// Use All The Arguments
 		for(int i = 0;i < args.length;i++) {
@@ -125,6 +178,29 @@ public class RayTracer {
 				// Use The CWD
 				currentRoot = null;
 				break;
+			case "-t":
+				// Use A Different Number Of Render Threads
+				i++;
+				if(i < args.length) threads = Math.max(1, Integer.parseInt(args[i]));
+				break;
+			case "-checkpoint":
+				// Use A Different Checkpoint Interval
+				i++;
+				if(i < args.length) checkpointInterval = Math.max(0, Double.parseDouble(args[i]));
+				intervalGiven = true;
+				break;
+			case "-resume":
+				// Continue From The Scenes' Checkpoints
+				resume = true;
+				break;
+			case "-stream":
+				// Render Top To Bottom And Write Rows As They Finish
+				streamOutput = true;
+				break;
+			case "-verbose":
+				// Print Scene Setup Timings
+				verbose = true;
+				break;
 			default:
 				// This Must Be A File
 				pathArgs.add(new ScenePath(currentRoot, args[i]));
@@ -132,6 +208,9 @@ public class RayTracer {
 			}
 		}
 
+		// A resumed render keeps saving its progress
+		if(resume && !intervalGiven) checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+
 		if(pathArgs.size() < 1) {
 			// Attempt To Render All The Scenes
 			pathArgs.add(new ScenePath(currentRoot, "."));
@@ -168,13 +247,18 @@ public class RayTracer {
 	}
 
 	public static void printUsage() {
-		System.out.println("Usage: java RayTracer [-p path] [directory1 directory2 ... | file1 file2 ...]");
+		System.out.println("Usage: java RayTracer [-t threads] [-stream] [-checkpoint seconds] [-resume] [-verbose] [-p path] [directory1 directory2 ... | file1 file2 ...]");
 		System.out.println("List each scene file you would like to render on the command line separated by spaces.");
 		System.out.println("You may also specify a directory, and all scene files in that directory will be rendered.");
 		System.out.println("By default, all files specified are prepended with a given path. Use the -p option to");
 		System.out.println("override this path. The path may be overriden multiple times or -pnull may be provided to set");
 		System.out.println("the path to the program's working directory. With no -p argument given, this path is: " + directory);
 		System.out.println("NB: the path is relative to the working directory of the application, which is normally the root of the CS4620 project.");
+		System.out.println("The -t option sets the number of render threads (default: the number of available processors, here " + Runtime.getRuntime().availableProcessors() + ").");
+		System.out.println("The -checkpoint option saves the state of a render to <input_file>.checkpoint every given number of seconds (default: never),");
+		System.out.println("and the -resume option continues each scene from its checkpoint, if it has one for the same scene file, saving every " + DEFAULT_CHECKPOINT_INTERVAL + " seconds unless -checkpoint is also given.");
+		System.out.println("The -stream option renders blocks top to bottom and writes rows as they finish, instead of rendering in a spiral and writing the image once it is done.");
+		System.out.println("The -verbose option prints how long each scene took to set up, such as to build its acceleration structure.");
 	}
 
 	/**
@@ -195,15 +279,61 @@ public class RayTracer {
 
 			// Initialize the scene
 			scene.init();
+
+			// Set up periodic checkpoints, and resuming from the last one
+			checkpoint = null;
+			if (checkpointInterval > 0 || resume) {
+				try {
+					checkpoint = new Checkpoint(sceneWorkspace.getFile() + ".checkpoint", sceneWorkspace.file, checkpointInterval, resume);
+				} catch (IOException e) {
+					System.err.println("Could not set up a checkpoint: " + e);
+				}
+			}
 			
-			// Render the scene
-			renderImage(scene);
+			// Render the scene, writing the image out as it finishes if possible;
+			// progressive and denoised renders only have a final image once they stop
+			String outFile = sceneWorkspace.getFile() + (writeHDR ? ".exr" : ".png");
+			Denoiser denoiser = scene.getDenoiser();
+			boolean written;
+			if (streamOutput && scene.getProgressive() == null && denoiser == null) {
+				try (TileWriter out = new TileWriter(scene.getImage(), outFile, writeHDR)) {
+					renderImage(scene, out);
+					written = true;
+				}
+				catch (IOException e) {
+					written = false;
+					System.out.println("Error occured while attempting to write file: " + outFile);
+					System.err.println(e);
+					e.printStackTrace();
+				}
+			}
+			else {
+				renderImage(scene);
+
+				// Filter the noise out of the image, guided by the buffers it writes next to it
+				if (denoiser != null) {
+					denoiser.denoise(scene, threads);
+					denoiser.writeBuffers(sceneWorkspace.getFile());
+					if (DISPLAY)
+						viewer.setImage(scene.getImage());
+				}
 
-			// Write the image out
-			if (writeHDR)
-				scene.getImage().writeHDR(sceneWorkspace.getFile() + ".exr");
-			else
-				scene.getImage().write(sceneWorkspace.getFile() + ".png");
+				// Write the image out
+				if (writeHDR)
+					written = scene.getImage().writeHDR(outFile);
+				else
+					written = scene.getImage().write(outFile);
+			}
+
+			// The image is safely on disk, so its checkpoint is no longer needed;
+			// if it could not be written, the checkpoint is kept to resume from
+			if (written && checkpoint != null)
+				checkpoint.delete();
+
+			// Write where the adaptive sampler spent its samples
+			AdaptiveSampler adaptive = scene.getAdaptive();
+			if (adaptive != null)
+				adaptive.writeHeatmap(sceneWorkspace.getFile() + ".samples.png", adaptive.getMaxSamples(scene));
 		}
 	}
 
@@ -213,6 +343,23 @@ public class RayTracer {
 	 * @param scene The scene to be rendered
 	 */
 	public void renderImage(Scene scene) {
+		try {
+			renderImage(scene, null);
+		} catch (IOException e) {
+			// Nothing is written without a TileWriter
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Render the entire scene, handing each finished block to out.
+	 *
+	 * @param scene The scene to be rendered
+	 * @param out the writer to stream the image to, or null to render in a spiral
+	 * and leave writing the image to the caller
+	 * @throws IOException if out cannot write the image
+	 */
+	public void renderImage(Scene scene, TileWriter out) throws IOException {
 
 		// Get the output image
 		Image image = scene.getImage();
@@ -232,32 +379,122 @@ public class RayTracer {
 
 		// Timing counters
 		long startTime = System.currentTimeMillis();
+		OccluderCache.resetCounters();
+
+		ForkJoinPool pool = new ForkJoinPool(threads);
+
+		// Progressive mode renders whole passes instead of the block spiral
+		ProgressiveRenderer progressive = scene.getProgressive();
+		if (progressive != null) {
+			progressive.render(scene, pool, DISPLAY ? viewer : null, checkpoint);
+			pool.shutdown();
+			if (out != null)
+				out.blockDone(0, 0, width, height);
+			long totalTime = (System.currentTimeMillis() - startTime);
+			long cameraRays = (long) width * height * progressive.getPasses();
+			System.out.println("Done.  Total rendering time: "
+					+ (totalTime / 1000.0) + " seconds on " + threads + " thread(s), "
+					+ progressive.getPasses() + " passes, "
+					+ (cameraRays * 1000 / Math.max(totalTime, 1)) + " camera rays/sec");
+			System.out.println(OccluderCache.report());
+			return;
+		}
 
-		//Loop over all blocks and render
-		int offsetX, offsetY, sizeX, sizeY;
+		AdaptiveSampler adaptive = scene.getAdaptive();
+		if (adaptive != null) {
+			adaptive.init(width, height);
+			scene.getSampler().setSamplesPerPixel(adaptive.getMaxSamples(scene));
+		}
+		WavefrontRenderer wavefront = scene.getWavefront();
+
+		// Hand all blocks to a work-stealing pool, in spiral order, or top to
+		// bottom if they are streamed out, since rows are written in that order
+		int numSubX = (width - 1) / SUB_WIDTH + 1;
+		int numSubY = (height - 1) / SUB_HEIGHT + 1;
+
+		// Restore the blocks finished by an earlier run, which are then skipped
+		boolean[] done = new boolean[numSubX * numSubY];
+		if (checkpoint != null)
+			checkpoint.loadBlocks(image, done, adaptive);
+		long restoredRays = 0;
+		if (adaptive != null)
+			restoredRays = adaptive.getTotalSamples();
+		else
+			for (int block = 0; block < done.length; block++)
+				if (done[block])
+					restoredRays += (long) Math.min(width - block % numSubX * SUB_WIDTH, SUB_WIDTH)
+							* Math.min(height - block / numSubX * SUB_HEIGHT, SUB_HEIGHT) * scene.getSamples() * scene.getSamples();
+
+		ArrayList<ForkJoinTask<?>> blocks = new ArrayList<>(spiral.totalSubblocks);
+		int[][] blockBounds = new int[spiral.totalSubblocks][];
 		for(int i = 0; i < spiral.totalSubblocks; i++) {
 
-			//Increment the block counter
-			spiral.incrementSublockSpiral();
-			offsetX = spiral.curSubX*SUB_WIDTH;
-			offsetY = spiral.curSubY*SUB_HEIGHT;
-			sizeX = Math.min(width-offsetX,SUB_WIDTH);
-			sizeY = Math.min(height-offsetY,SUB_HEIGHT);
+			final int offsetX, offsetY;
+			if (out != null) {
+				offsetX = (i % numSubX)*SUB_WIDTH;
+				offsetY = (numSubY - 1 - i / numSubX)*SUB_HEIGHT;
+			}
+			else {
+				//Increment the block counter
+				spiral.incrementSublockSpiral();
+				offsetX = spiral.curSubX*SUB_WIDTH;
+				offsetY = spiral.curSubY*SUB_HEIGHT;
+			}
+			final int sizeX = Math.min(width-offsetX,SUB_WIDTH);
+			final int sizeY = Math.min(height-offsetY,SUB_HEIGHT);
+
+			final int block = offsetX/SUB_WIDTH + offsetY/SUB_HEIGHT*numSubX;
+
+			blockBounds[i] = new int[] { offsetX, offsetY, sizeX, sizeY, block };
+			if (done[block])
+				blocks.add(null);
+			else if (adaptive != null)
+				blocks.add(pool.submit(() -> adaptive.renderBlock(scene, image, offsetX, offsetY, sizeX, sizeY)));
+			else if (wavefront != null)
+				blocks.add(pool.submit(() -> wavefront.renderBlock(scene, image, offsetX, offsetY, sizeX, sizeY)));
+			else
+				blocks.add(pool.submit(() -> renderBlock(scene, image, offsetX, offsetY, sizeX, sizeY)));
+		}
 
-			renderBlock(scene, image, offsetX, offsetY, sizeX, sizeY);
+		// Wait for the blocks in the order they were submitted, so the display
+		// fills in in that order
+		for(int i = 0; i < blocks.size(); i++) {
+			ForkJoinTask<?> task = blocks.get(i);
+			int[] b = blockBounds[i];
+			if (task != null) {
+				task.join();
+				done[b[4]] = true;
+				if (checkpoint != null && checkpoint.isDue())
+					checkpoint.saveBlocks(image, done, adaptive);
+			}
 
 			//Update display
 			if(DISPLAY)
-				viewer.setImage(image, offsetX, offsetY, offsetX+sizeX, offsetY+sizeY);
+				viewer.setImage(image, b[0], b[1], b[0]+b[2], b[1]+b[3]);
 
-			System.out.println("finished " + (i+1) + "/" + spiral.totalSubblocks + " blocks");
+			//Write out the rows this block completes
+			if(out != null)
+				out.blockDone(b[0], b[1], b[0]+b[2], b[1]+b[3]);
 
+			System.out.println("finished " + (i+1) + "/" + spiral.totalSubblocks + " blocks");
 		}
+		pool.shutdown();
 
 		// Output time
 		long totalTime = (System.currentTimeMillis() - startTime);
+		long cameraRays = (long) width * height * scene.getSamples() * scene.getSamples();
+		if (adaptive != null) {
+			long fixedRays = (long) width * height * adaptive.getMaxSamples(scene);
+			cameraRays = adaptive.getTotalSamples();
+			System.out.println("Adaptive sampling took " + cameraRays + " samples ("
+					+ String.format("%.2f", (double) cameraRays / ((long) width * height)) + " per pixel), saving "
+					+ (fixedRays - cameraRays) + " (" + String.format("%.1f", 100.0 * (fixedRays - cameraRays) / fixedRays)
+					+ "%) against the fixed grid of " + adaptive.getMaxSamples(scene) + " per pixel");
+		}
 		System.out.println("Done.  Total rendering time: "
-				+ (totalTime / 1000.0) + " seconds");
+				+ (totalTime / 1000.0) + " seconds on " + threads + " thread(s), "
+				+ ((cameraRays - restoredRays) * 1000 / Math.max(totalTime, 1)) + " camera rays/sec");
+		System.out.println(OccluderCache.report());
 	}
 
 
@@ -275,7 +512,15 @@ public class RayTracer {
 		if(depth > MAX_DEPTH)
 			return;
 
-		IntersectionRecord intersectionRecord = new IntersectionRecord();
+		if(depth == 1) {
+			Workspace.get().random.begin(ray);
+			if(scene.isPathTracing()) {
+				PathIntegrator.trace(outColor, scene, ray);
+				return;
+			}
+		}
+
+		IntersectionRecord intersectionRecord = Workspace.get().records[depth];
 
 		if (!scene.getFirstIntersection(intersectionRecord, ray)) {
 			if(scene.cubeMap != null)
@@ -286,6 +531,7 @@ public class RayTracer {
 			return;
 		}
 
+		intersectionRecord.computeTexFootprint(ray);
 		Shader shader = intersectionRecord.surface.getShader();
 		shader.shade(outColor, scene, ray, intersectionRecord, depth);
 
@@ -304,10 +550,11 @@ public class RayTracer {
 	public static void renderBlock(Scene scene, Image outImage, int offsetX, int offsetY, int sizeX, int sizeY) {
 
 
-		// Do some basic setup
-		Ray ray = new Ray();
-		Colord pixelColor = new Colord();
-		Colord rayColor = new Colord();
+		// Do some basic setup, reusing the scratch objects of this render thread
+		Workspace ws = Workspace.get();
+		Ray ray = ws.ray;
+		Colord pixelColor = ws.pixelColor;
+		Colord rayColor = ws.rayColor;
 
 		// Set the camera aspect ratio to match output image
 		int width = outImage.getWidth();
@@ -320,6 +567,7 @@ public class RayTracer {
 		double exposure = scene.getExposure();
 
 		Camera cam = scene.getCamera();
+		Sampler sampler = scene.getSampler();
 
 		for(int x = offsetX; x < (offsetX + sizeX); x++) {
 			for(int y = offsetY; y < (offsetY + sizeY); y++) {
@@ -328,6 +576,9 @@ public class RayTracer {
 
 				// TODO#A7 Implement supersampling for antialiasing.
 				// Each pixel should have (samples*samples) subpixels.
+				// Take the position of subpixel s in the pixel from the scene's
+				// sampler, as (sampler.get(x, y, s, 0), sampler.get(x, y, s, 1)),
+				// and call ws.random.start(sampler, x, y, s) before shading its ray.
 				
 				outImage.setPixelColor(pixelColor, x, y);
 
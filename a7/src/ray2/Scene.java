@@ -6,13 +6,21 @@ import java.util.List;
 
 import ray2.accel.AccelStruct;
 import ray2.accel.Bvh;
+import ray2.accel.BvhCache;
+import ray2.accel.FlatBvh;
+import ray2.accel.NaiveAccelStruct;
+import ray2.accel.SahBvh;
 import ray2.camera.Camera;
 import egl.math.Colord;
 import egl.math.Matrix4d;
 import ray2.light.Cubemap;
 import ray2.light.Light;
+import ray2.light.LightSampler;
+import ray2.sampler.IndependentSampler;
+import ray2.sampler.Sampler;
 import ray2.shader.Shader;
 import ray2.shader.Texture;
+import ray2.surface.Mesh;
 import ray2.surface.Surface;
 
 /**
@@ -51,6 +59,22 @@ public class Scene {
 	protected ArrayList<Light> lights = new ArrayList<Light>();
 	public void addLight(Light toAdd) { lights.add(toAdd); }
 	public List<Light> getLights() { return this.lights; }
+
+	/**
+	 * The number of lights sampled at each shading point, or 0 to sample every
+	 * light. Sampling a few lights keeps the cost of shading nearly independent
+	 * of the number of lights, at the price of some noise.
+	 */
+	protected int lightSamples = 0;
+	public int getLightSamples() { return this.lightSamples; }
+	public void setLightSamples(int n) { lightSamples = Math.max(0, n); }
+
+	/**
+	 * Chooses the lights to sample; built by init only when lightSamples is
+	 * greater than 0, and null otherwise.
+	 */
+	protected LightSampler lightSampler;
+	public LightSampler getLightSampler() { return this.lightSampler; }
 	
 	/** The list of surfaces for the scene. */
 	protected ArrayList<Surface> surfaces = new ArrayList<Surface>();
@@ -83,10 +107,89 @@ public class Scene {
 	public int getSamples() { return this.samples==0 ? 1 : this.samples; }
 	public void setSamples(int n) {	samples = (int)Math.round(Math.sqrt(n)); }
 
+	/** Places the samples of each pixel and draws the random numbers of their paths **/
+	protected Sampler sampler = new IndependentSampler();
+	public Sampler getSampler() { return this.sampler; }
+	public void setSampler(Sampler sampler) { this.sampler = sampler; }
+
+	/** The adaptive sampler, or null to take the fixed samples^2 grid in every pixel **/
+	protected AdaptiveSampler adaptive;
+	public AdaptiveSampler getAdaptive() { return this.adaptive; }
+	public void setAdaptive(AdaptiveSampler adaptive) { this.adaptive = adaptive; }
+
+	/** The progressive renderer, or null to render each block once to completion **/
+	protected ProgressiveRenderer progressive;
+	public ProgressiveRenderer getProgressive() { return this.progressive; }
+	public void setProgressive(ProgressiveRenderer progressive) { this.progressive = progressive; }
+
+	/** The wavefront renderer, or null to trace each camera ray to the end before the next **/
+	protected WavefrontRenderer wavefront;
+	public WavefrontRenderer getWavefront() { return this.wavefront; }
+	public void setWavefront(WavefrontRenderer wavefront) { this.wavefront = wavefront; }
+
+	/** The denoiser run on the finished image, or null to leave the image as rendered **/
+	protected Denoiser denoiser;
+	public Denoiser getDenoiser() { return this.denoiser; }
+	public void setDenoiser(Denoiser denoiser) { this.denoiser = denoiser; }
+
+	/** Whether camera rays are shaded by the iterative PathIntegrator instead of recursively **/
+	protected boolean pathTracing = false;
+	public boolean isPathTracing() { return pathTracing; }
+
+	/**
+	 * Select how rays are shaded: "recursive" (shaders call RayTracer.shadeRay
+	 * for every reflected and refracted ray) or "path" (one path per sample, see
+	 * PathIntegrator).
+	 * @param mode the name of the integrator
+	 */
+	public void setIntegrator(String mode) {
+		switch (mode.trim().toLowerCase()) {
+		case "recursive":
+			pathTracing = false;
+			break;
+		case "path":
+			pathTracing = true;
+			break;
+		default:
+			throw new Error("Unknown integrator: " + mode);
+		}
+	}
+
 	/** The acceleration structure **/
 	protected AccelStruct accelStruct = new Bvh();
 	public void setAccelStruct(AccelStruct accelStruct) { this.accelStruct = accelStruct; }
 	public AccelStruct getAccelStruct() { return accelStruct; }
+
+	/** The directory mesh BVHs are cached in, relative to the scene, or null to build them every time **/
+	protected String bvhCache = null;
+	public String getBvhCache() { return this.bvhCache; }
+	public void setBvhCache(String directory) { this.bvhCache = directory; }
+
+	/**
+	 * Select the acceleration structure by name, so that build time and
+	 * traversal cost can be compared from the scene file:
+	 * "naive" (linear search), "median" (median-split Bvh), "sah" (binned SAH Bvh)
+	 * or "flat" (binned SAH Bvh in the flattened FlatBvh layout).
+	 * @param mode the name of the acceleration structure
+	 */
+	public void setAccelMode(String mode) {
+		switch (mode.trim().toLowerCase()) {
+		case "naive":
+			accelStruct = new NaiveAccelStruct();
+			break;
+		case "median":
+			accelStruct = new Bvh();
+			break;
+		case "sah":
+			accelStruct = new SahBvh();
+			break;
+		case "flat":
+			accelStruct = new FlatBvh();
+			break;
+		default:
+			throw new Error("Unknown acceleration structure mode: " + mode);
+		}
+	}
 	
 	/**
 	 * Initialize transformation matrices for entire tree hierarchy
@@ -104,24 +207,38 @@ public class Scene {
 		// Propagate transformation matrix through the tree hierarchy
 		setTransform();
 
-		// Create the acceleration structure.
+		// Create the acceleration structure. Meshes build their own (bottom-level)
+		// trees as they are appended, once per distinct MeshData when instanced.
+		long buildStart = System.currentTimeMillis();
+		if (bvhCache != null)
+			Mesh.setBvhCache(new BvhCache(RayTracer.sceneWorkspace.resolve(bvhCache)));
 		ArrayList<Surface> renderableSurfaces = new ArrayList<Surface>();
 		List<Surface> surfaces = getSurfaces();
 		for (Iterator<Surface> iter = surfaces.iterator(); iter.hasNext();) {
 			iter.next().appendRenderableSurfaces(renderableSurfaces);
 		}
+		Mesh.releaseSharedData();
 
 		Surface surfaceArray[] = new Surface[renderableSurfaces.size()];
 		renderableSurfaces.toArray(surfaceArray);
 		getAccelStruct().build(surfaceArray);
+		if (RayTracer.verbose)
+			System.out.println("Built " + getAccelStruct().getClass().getSimpleName() + " over "
+					+ surfaceArray.length + " surfaces in " + (System.currentTimeMillis() - buildStart) + " ms");
 
 		// initialize camera
 		getCamera().init();
+		if (outputImage != null)
+			getCamera().setImageSize(outputImage.getWidth(), outputImage.getHeight());
+
+		// the fixed grid of samples; adaptive and progressive renders reset this
+		getSampler().setSamplesPerPixel(getSamples() * getSamples());
 
 		// initialize lights
 		for (Light light : getLights()) {
 			light.init();
 		}
+		lightSampler = getLightSamples() > 0 ? new LightSampler(getLights()) : null;
 
 		// initialize surfaces
 		for ( Surface surface : getSurfaces()) {
@@ -151,12 +268,30 @@ public class Scene {
 	/**
 	 * Shadow ray calculations can be considerably accelerated by not bothering to find the
 	 * first intersection.  This record returns any intersection of the ray and the surfaces
-	 * and returns true if one is found.
+	 * and returns true if one is found. No intersection record is filled in.
 	 * @param ray the ray to intersect
 	 * @return true if any intersection is found
 	 */
 	public boolean getAnyIntersection(Ray ray) {
-		return accelStruct.intersect(new IntersectionRecord(), ray, true);	
+		return accelStruct.intersect(null, ray, true);	
+	}
+
+	/**
+	 * Find the first intersection of every ray in a packet, as getFirstIntersection
+	 * does for one ray; see AccelStruct.intersectPacket.
+	 * @param packet the rays to intersect, and where the results are written
+	 */
+	public void getFirstIntersections(RayPacket packet) {
+		accelStruct.intersectPacket(packet, false);
+	}
+
+	/**
+	 * Find out which rays of a packet hit any surface, as getAnyIntersection does
+	 * for one ray; the answers are left in packet.hit.
+	 * @param packet the rays to intersect
+	 */
+	public void getAnyIntersections(RayPacket packet) {
+		accelStruct.intersectPacket(packet, true);
 	}
 	
 }
\ No newline at end of file
@@ -0,0 +1,103 @@
+package ray2;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Streams an image to its output file while it is being rendered. The render
+ * loop reports each block as it finishes; as soon as every block covering the
+ * next rows from the top of the image is done, those rows are written out
+ * (as a PNG or as a 32 bit float EXR) and flushed to disk. The file is complete
+ * the moment the last block is, and a render that dies part way leaves the
+ * rows finished so far on disk.
+ *
+ * Rows can only be written top to bottom, so blocks should be rendered in that
+ * order for rows to be written early; see RayTracer.renderImage.
+ */
+public class TileWriter implements Closeable {
+
+	private final Image image;
+	private final int width, height;
+
+	/** Exactly one of these is used. */
+	private PngWriter png;
+	private ExrWriter exr;
+
+	/** The number of finished pixels in each row. */
+	private final int[] finished;
+
+	/** The next row to write; rows are written from height - 1 down to 0. */
+	private int nextRow;
+
+	/** Buffers for one row. */
+	private final float[] row;
+	private final int[] rgb;
+
+	/**
+	 * Create the output file.
+	 * @param image the image being rendered
+	 * @param fileName the output file
+	 * @param hdr true to write an EXR file, false to write a PNG file
+	 * @throws IOException if the file cannot be written
+	 */
+	public TileWriter(Image image, String fileName, boolean hdr) throws IOException {
+		this.image = image;
+		width = image.getWidth();
+		height = image.getHeight();
+		if (hdr)
+			exr = new ExrWriter(fileName, width, height);
+		else
+			png = new PngWriter(fileName, width, height);
+		finished = new int[height];
+		nextRow = height - 1;
+		row = new float[3 * width];
+		rgb = new int[width];
+	}
+
+	/**
+	 * @return the number of rows written so far
+	 */
+	public int getRowsWritten() {
+		return height - 1 - nextRow;
+	}
+
+	/**
+	 * Record that a block of the image is finished, and write out any rows
+	 * that are now complete. Must be called from one thread at a time.
+	 * @param xl the first column of the block
+	 * @param yl the first row of the block
+	 * @param xh one past the last column of the block
+	 * @param yh one past the last row of the block
+	 * @throws IOException if the file cannot be written
+	 */
+	public void blockDone(int xl, int yl, int xh, int yh) throws IOException {
+		for (int y = yl; y < yh; y++)
+			finished[y] += xh - xl;
+
+		int first = nextRow;
+		while (nextRow >= 0 && finished[nextRow] >= width) {
+			image.getRow(nextRow, 0, width, row, 0);
+			if (exr != null) {
+				exr.writeRow(row);
+			} else {
+				Image.toIntRGB(row, rgb, width);
+				png.writeRow(rgb);
+			}
+			nextRow--;
+		}
+		if (png != null && nextRow != first)
+			png.flush();
+	}
+
+	/**
+	 * Finish the file.  If the image is not complete the file is left truncated
+	 * after the last row that was written.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (exr != null)
+			exr.close();
+		else
+			png.close();
+	}
+}
@@ -0,0 +1,504 @@
+package ray2;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import ray2.camera.Camera;
+import ray2.light.Light;
+import ray2.light.LightSamplingRecord;
+import ray2.light.PointLight;
+import ray2.sampler.Sampler;
+import ray2.shader.BRDFShader;
+import ray2.shader.Shader;
+import ray2.surface.Surface;
+import egl.math.Colord;
+import egl.math.Vector3d;
+
+/**
+ * Renders a block by tracing all of its camera rays together, one stage at a
+ * time, instead of following each ray to the end before starting the next. A
+ * wave of rays is generated from the camera; then every ray in the wave is
+ * intersected with the scene, then every hit is shaded, and the rays the paths
+ * continue with make up the next wave, until no paths are left. Rays that miss
+ * the scene pick up the background as soon as they are intersected.
+ *
+ * The rays of a wave are kept in flat arrays, one per component, rather than
+ * as Ray objects, and only copied into a scratch Ray to be traced. Before the
+ * intersection stage the rays are ordered by direction, so that consecutive
+ * traversals of the acceleration structure visit the same nodes, and before
+ * the shading stage the hits are ordered by shader, so that each shader runs
+ * over a batch of hits at a time.
+ *
+ * The rays are intersected in packets of packetSize consecutive rays (see
+ * RayPacket). When the shaders trace a shadow ray to every light, the shadow
+ * rays from the hits of BRDF shaders to the point lights are also traced in
+ * packets, before the hits are shaded, and handed to the shaders through their
+ * OccluderCache. Other shadow rays are cast by the shaders as they shade.
+ *
+ * Each path draws its random numbers from a PathRandom started from its
+ * sample of the scene's Sampler, whose state is saved with the path between
+ * stages, and its bounces are taken by the same code as PathIntegrator (or
+ * RayTracer.shadeRay, with the recursive integrator). A pixel's samples are
+ * taken from the sampler and summed in the same order as in
+ * RayTracer.renderBlock, so the image is exactly the one renderBlock gives;
+ * only the order of the work changes. Blocks are rendered in parallel on the render pool, as usual.
+ *
+ * Enabled by a &lt;wavefront&gt; element in the scene file, e.g.
+ *
+ *   &lt;wavefront&gt;
+ *     &lt;waveSize&gt;16384&lt;/waveSize&gt;
+ *     &lt;packetSize&gt;16&lt;/packetSize&gt;
+ *   &lt;/wavefront&gt;
+ */
+public class WavefrontRenderer {
+
+	/** The most camera rays traced together by one thread; a block with more samples is traced in several waves. */
+	protected int waveSize = 1 << 14;
+	public void setWaveSize(int waveSize) { this.waveSize = Math.max(1, waveSize); }
+
+	/** The number of rays traced together through the scene, from 1 (one at a time) to RayPacket.MAX_SIZE. */
+	protected int packetSize = RayPacket.MAX_SIZE;
+	public void setPacketSize(int packetSize) { this.packetSize = Math.max(1, Math.min(RayPacket.MAX_SIZE, packetSize)); }
+
+	/** The buffers of each render thread, created on first use. */
+	private final ThreadLocal<Wave> waves = ThreadLocal.withInitial(() -> new Wave(waveSize));
+
+	public WavefrontRenderer() { }
+
+	/**
+	 * Render one block of the output image, in the manner of RayTracer.renderBlock.
+	 *
+	 * @param scene The scene data
+	 * @param outImage the output image (write the output pixels here)
+	 * @param offsetX the startingX value of the block
+	 * @param offsetY the startingY value of the block
+	 * @param sizeX the width of the block
+	 * @param sizeY the height of the block
+	 */
+	public void renderBlock(Scene scene, Image outImage, int offsetX, int offsetY, int sizeX, int sizeY) {
+		Workspace ws = Workspace.get();
+		Wave wave = waves.get();
+		Ray ray = ws.ray;
+		Colord pixelColor = ws.pixelColor;
+		Colord rayColor = ws.rayColor;
+
+		int width = outImage.getWidth();
+		int height = outImage.getHeight();
+
+		int samples = scene.getSamples();
+		int spp = samples * samples;
+		double sInv = 1.0/samples;
+		double sInvSqr = sInv * sInv;
+		double exposure = scene.getExposure();
+
+		Camera cam = scene.getCamera();
+		Sampler sampler = scene.getSampler();
+
+		// Sample k of the block is sample k % spp of pixel k / spp, with pixels
+		// taken in the order of renderBlock, so a wave covers consecutive samples
+		long total = (long) sizeX * sizeY * spp;
+		pixelColor.setZero();
+		for (long first = 0; first < total; first += wave.capacity) {
+			int n = (int) Math.min(wave.capacity, total - first);
+
+			// Stage 1: camera rays
+			RayBuffer rays = wave.rays;
+			for (int k = 0; k < n; k++) {
+				long sample = first + k;
+				int p = (int) (sample / spp), s = (int) (sample % spp);
+				int x = offsetX + p / sizeY, y = offsetY + p % sizeY;
+				cam.getRay(ray, (x + sampler.get(x, y, s, 0)) / width, (y + sampler.get(x, y, s, 1)) / height);
+				rays.store(k, ray);
+				rays.sample[k] = k;
+				rays.throughput[3 * k] = rays.throughput[3 * k + 1] = rays.throughput[3 * k + 2] = 1;
+				ws.random.start(sampler, x, y, s);
+				rays.random[k] = ws.random.getState();
+				wave.pixelX[k] = x;
+				wave.pixelY[k] = y;
+				wave.pixelSample[k] = s;
+				wave.radiance[3 * k] = wave.radiance[3 * k + 1] = wave.radiance[3 * k + 2] = 0;
+			}
+			rays.count = n;
+
+			trace(scene, wave);
+
+			// Sum the samples into their pixels, finishing each pixel at its last sample
+			for (int k = 0; k < n; k++) {
+				rayColor.set(wave.radiance[3 * k], wave.radiance[3 * k + 1], wave.radiance[3 * k + 2]);
+				pixelColor.addMultiple(sInvSqr, rayColor);
+				long sample = first + k;
+				if (sample % spp == spp - 1) {
+					int p = (int) (sample / spp);
+					pixelColor.mul(exposure);
+					outImage.setPixelColor(pixelColor, offsetX + p / sizeY, offsetY + p % sizeY);
+					pixelColor.setZero();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Trace the camera rays in wave.rays to the end of their paths, leaving the
+	 * light each one brings back in wave.radiance.
+	 */
+	private void trace(Scene scene, Wave wave) {
+		for (int length = 1; wave.rays.count > 0 && length <= PathIntegrator.MAX_LENGTH; length++) {
+			intersect(scene, wave);
+			shade(scene, wave, length);
+
+			RayBuffer swap = wave.rays;
+			wave.rays = wave.nextRays;
+			wave.nextRays = swap;
+		}
+	}
+
+	/**
+	 * Stage 2: find the closest hit of every ray, in order of direction. Rays
+	 * that miss end here; the hits are collected in wave.hits.
+	 */
+	private void intersect(Scene scene, Wave wave) {
+		Workspace ws = Workspace.get();
+		Colord throughput = ws.pathThroughput;
+		Colord color = ws.rayColor;
+		RayBuffer rays = wave.rays;
+		HitBuffer hits = wave.hits;
+
+		// Bucket by the signs of the direction and its largest component
+		for (int i = 0; i < rays.count; i++) {
+			double dx = rays.dx[i], dy = rays.dy[i], dz = rays.dz[i];
+			double ax = Math.abs(dx), ay = Math.abs(dy), az = Math.abs(dz);
+			int axis = ax >= ay && ax >= az ? 0 : ay >= az ? 1 : 2;
+			int octant = (dx < 0 ? 1 : 0) | (dy < 0 ? 2 : 0) | (dz < 0 ? 4 : 0);
+			wave.keys[i] = 3 * octant + axis;
+		}
+		sort(wave, rays.count, 24);
+
+		hits.count = 0;
+		RayPacket packet = wave.packet;
+		for (int k0 = 0; k0 < rays.count; k0 += packetSize) {
+			packet.size = Math.min(packetSize, rays.count - k0);
+			for (int j = 0; j < packet.size; j++)
+				rays.load(wave.order[k0 + j], packet.rays[j]);
+			if (packet.size == 1)
+				packet.hit[0] = scene.getFirstIntersection(packet.records[0], packet.rays[0]);
+			else
+				scene.getFirstIntersections(packet);
+
+			for (int j = 0; j < packet.size; j++) {
+				int i = wave.order[k0 + j];
+				if (packet.hit[j]) {
+					hits.store(hits.count, packet.records[j]);
+					hits.ray[hits.count++] = i;
+					continue;
+				}
+				int slot = rays.sample[i];
+				rays.loadThroughput(i, throughput);
+				wave.loadRadiance(slot, color);
+				PathIntegrator.miss(color, throughput, scene, packet.rays[j]);
+				wave.storeRadiance(slot, color);
+			}
+		}
+	}
+
+	/**
+	 * Stage 3: shade every hit, in order of shader, and write the rays the
+	 * paths continue with to wave.nextRays.
+	 */
+	private void shade(Scene scene, Wave wave, int length) {
+		Workspace ws = Workspace.get();
+		Ray ray = ws.ray;
+		Ray next = ws.pathRays[0];
+		IntersectionRecord record = ws.records[1];
+		Colord throughput = ws.pathThroughput;
+		Colord color = ws.rayColor;
+		RayBuffer rays = wave.rays;
+		RayBuffer nextRays = wave.nextRays;
+		HitBuffer hits = wave.hits;
+		boolean pathTracing = scene.isPathTracing();
+		Sampler sampler = scene.getSampler();
+
+		// Number the shaders in the order they are first met
+		IdentityHashMap<Shader, Integer> shaderKeys = wave.shaderKeys;
+		shaderKeys.clear();
+		for (int h = 0; h < hits.count; h++) {
+			Shader shader = hits.surface[h].getShader();
+			Integer key = shaderKeys.get(shader);
+			if (key == null) {
+				key = shaderKeys.size();
+				shaderKeys.put(shader, key);
+			}
+			wave.keys[h] = key;
+		}
+		sort(wave, hits.count, shaderKeys.size());
+		int lights = castShadowPackets(scene, wave);
+
+		nextRays.count = 0;
+		for (int k = 0; k < hits.count; k++) {
+			int h = wave.order[k];
+			int i = hits.ray[h];
+			int slot = rays.sample[i];
+			rays.load(i, ray);
+			hits.load(h, record);
+			ws.random.resume(sampler, wave.pixelX[slot], wave.pixelY[slot], wave.pixelSample[slot], rays.random[i]);
+			if (lights > 0)
+				ws.occluders.setKnown(wave.shadowLights, wave.shadowAnswers, h * lights, record.location);
+
+			if (!pathTracing) {
+				// As RayTracer.shadeRay does for a camera ray
+				record.computeTexFootprint(ray);
+				color.setZero();
+				record.surface.getShader().shade(color, scene, ray, record, 1);
+				wave.storeRadiance(slot, color);
+				continue;
+			}
+
+			rays.loadThroughput(i, throughput);
+			wave.loadRadiance(slot, color);
+			boolean more = PathIntegrator.bounce(color, throughput, next, scene, ray, record, length);
+			wave.storeRadiance(slot, color);
+			if (more) {
+				int j = nextRays.count++;
+				nextRays.store(j, next);
+				nextRays.storeThroughput(j, throughput);
+				nextRays.sample[j] = slot;
+				nextRays.random[j] = ws.random.getState();
+			}
+		}
+		ws.occluders.clearKnown();
+	}
+
+	/**
+	 * Stage 3a: trace the shadow rays from the hits of BRDF shaders to the point
+	 * lights, in packets of rays to one light from consecutive hits. The answer
+	 * for hit h and light i is left in wave.shadowAnswers[h * lights + i], where
+	 * lights is the number returned. Nothing is traced if the shaders take a few
+	 * light samples instead of going through all the lights.
+	 *
+	 * @return the number of point lights, or 0 if nothing was traced
+	 */
+	private int castShadowPackets(Scene scene, Wave wave) {
+		if (packetSize == 1 || scene.getLightSamples() > 0)
+			return 0;
+
+		// Number the point lights of the scene
+		if (wave.shadowScene != scene) {
+			wave.shadowScene = scene;
+			wave.shadowLights.clear();
+			for (Light light : scene.getLights())
+				if (light instanceof PointLight)
+					wave.shadowLights.put(light, wave.shadowLights.size());
+		}
+		int lights = wave.shadowLights.size();
+		if (lights == 0)
+			return 0;
+
+		HitBuffer hits = wave.hits;
+		if (wave.shadowAnswers.length < hits.count * lights)
+			wave.shadowAnswers = new byte[Math.max(hits.count * lights, 2 * wave.shadowAnswers.length)];
+		Arrays.fill(wave.shadowAnswers, 0, hits.count * lights, OccluderCache.UNKNOWN);
+
+		OccluderCache occluders = Workspace.get().occluders;
+		RayPacket packet = wave.packet;
+		LightSamplingRecord lRec = wave.lightRecord;
+		Vector3d point = wave.point;
+		for (Light light : wave.shadowLights.keySet()) {
+			int index = wave.shadowLights.get(light);
+			Vector3d position = ((PointLight) light).position;
+			packet.size = 0;
+			for (int k = 0; k < hits.count; k++) {
+				int h = wave.order[k];
+				if (!(hits.surface[h].getShader() instanceof BRDFShader))
+					continue;
+				// A light behind the surface does not need a shadow ray
+				point.set(hits.lx[h], hits.ly[h], hits.lz[h]);
+				if ((position.x - point.x) * hits.nx[h] + (position.y - point.y) * hits.ny[h]
+						+ (position.z - point.z) * hits.nz[h] <= 0)
+					continue;
+
+				// A ray blocked by the light's last occluder needs no tracing
+				light.sample(lRec, point);
+				Ray ray = packet.rays[packet.size];
+				Shader.setShadowRay(ray, lRec, point);
+				if (occluders.blockedByLast(light, ray)) {
+					wave.shadowAnswers[h * lights + index] = OccluderCache.BLOCKED;
+					continue;
+				}
+				wave.packetHits[packet.size++] = h;
+				if (packet.size == packetSize)
+					traceShadowPacket(scene, wave, light, index, lights);
+			}
+			traceShadowPacket(scene, wave, light, index, lights);
+		}
+		return lights;
+	}
+
+	/**
+	 * Trace the shadow rays in wave.packet, to the light numbered index, and
+	 * record the answers, remembering the last surface that blocked one.
+	 */
+	private static void traceShadowPacket(Scene scene, Wave wave, Light light, int index, int lights) {
+		RayPacket packet = wave.packet;
+		if (packet.size == 0)
+			return;
+		scene.getAnyIntersections(packet);
+		for (int j = 0; j < packet.size; j++) {
+			wave.shadowAnswers[wave.packetHits[j] * lights + index] = packet.hit[j] ? OccluderCache.BLOCKED : OccluderCache.CLEAR;
+			Workspace.get().occluders.remember(light, packet.hit[j] ? packet.records[j].surface : null);
+		}
+		packet.size = 0;
+	}
+
+	/**
+	 * Counting sort of wave.keys[0..n), with keys in [0, buckets), into
+	 * wave.order, keeping equal keys in their original order.
+	 */
+	private static void sort(Wave wave, int n, int buckets) {
+		if (wave.counts.length < buckets + 1)
+			wave.counts = new int[Math.max(buckets + 1, 2 * wave.counts.length)];
+		int[] counts = wave.counts;
+		Arrays.fill(counts, 0, buckets + 1, 0);
+		for (int i = 0; i < n; i++)
+			counts[wave.keys[i] + 1]++;
+		for (int b = 0; b < buckets; b++)
+			counts[b + 1] += counts[b];
+		for (int i = 0; i < n; i++)
+			wave.order[counts[wave.keys[i]]++] = i;
+	}
+
+	/**
+	 * The buffers of one render thread: the rays of the current wave and the
+	 * next, the hits of the current wave, and the light gathered by each sample.
+	 */
+	private static final class Wave {
+		final int capacity;
+		RayBuffer rays, nextRays;
+		final HitBuffer hits;
+		/** The light brought back by each sample of the wave, as rgb triples. */
+		final double[] radiance;
+		/** The pixel of each sample of the wave, and its index in the pixel. */
+		final int[] pixelX, pixelY, pixelSample;
+		/** Sort keys and the resulting order. */
+		final int[] keys, order;
+		int[] counts = new int[32];
+		final IdentityHashMap<Shader, Integer> shaderKeys = new IdentityHashMap<Shader, Integer>();
+		/** The packet being traced, and the hit each of its shadow rays starts from. */
+		final RayPacket packet = new RayPacket();
+		final int[] packetHits = new int[RayPacket.MAX_SIZE];
+		/** The point lights of the scene, numbered, and the shadow answers for each hit and light. */
+		final IdentityHashMap<Light, Integer> shadowLights = new IdentityHashMap<Light, Integer>();
+		Scene shadowScene;
+		byte[] shadowAnswers = new byte[0];
+		final LightSamplingRecord lightRecord = new LightSamplingRecord();
+		final Vector3d point = new Vector3d();
+
+		Wave(int capacity) {
+			this.capacity = capacity;
+			rays = new RayBuffer(capacity);
+			nextRays = new RayBuffer(capacity);
+			hits = new HitBuffer(capacity);
+			radiance = new double[3 * capacity];
+			pixelX = new int[capacity];
+			pixelY = new int[capacity];
+			pixelSample = new int[capacity];
+			keys = new int[capacity];
+			order = new int[capacity];
+		}
+
+		void loadRadiance(int slot, Colord out) {
+			out.set(radiance[3 * slot], radiance[3 * slot + 1], radiance[3 * slot + 2]);
+		}
+
+		void storeRadiance(int slot, Colord c) {
+			radiance[3 * slot] = c.x; radiance[3 * slot + 1] = c.y; radiance[3 * slot + 2] = c.z;
+		}
+	}
+
+	/**
+	 * The rays of a wave, with the state of the path each one belongs to: the
+	 * sample it started from, its throughput and its random number stream.
+	 */
+	private static final class RayBuffer {
+		final double[] ox, oy, oz, dx, dy, dz, start, end, coneWidth, coneSpread;
+		final double[] throughput;
+		final long[] random;
+		final int[] sample;
+		int count;
+
+		RayBuffer(int capacity) {
+			ox = new double[capacity]; oy = new double[capacity]; oz = new double[capacity];
+			dx = new double[capacity]; dy = new double[capacity]; dz = new double[capacity];
+			start = new double[capacity]; end = new double[capacity];
+			coneWidth = new double[capacity]; coneSpread = new double[capacity];
+			throughput = new double[3 * capacity];
+			random = new long[capacity];
+			sample = new int[capacity];
+		}
+
+		void store(int i, Ray ray) {
+			ox[i] = ray.origin.x; oy[i] = ray.origin.y; oz[i] = ray.origin.z;
+			dx[i] = ray.direction.x; dy[i] = ray.direction.y; dz[i] = ray.direction.z;
+			start[i] = ray.start; end[i] = ray.end;
+			coneWidth[i] = ray.coneWidth; coneSpread[i] = ray.coneSpread;
+		}
+
+		void load(int i, Ray ray) {
+			ray.origin.set(ox[i], oy[i], oz[i]);
+			ray.direction.set(dx[i], dy[i], dz[i]);
+			ray.start = start[i]; ray.end = end[i];
+			ray.coneWidth = coneWidth[i]; ray.coneSpread = coneSpread[i];
+		}
+
+		void storeThroughput(int i, Colord c) {
+			throughput[3 * i] = c.x; throughput[3 * i + 1] = c.y; throughput[3 * i + 2] = c.z;
+		}
+
+		void loadThroughput(int i, Colord out) {
+			out.set(throughput[3 * i], throughput[3 * i + 1], throughput[3 * i + 2]);
+		}
+	}
+
+	/**
+	 * The closest hits of a wave, with the ray each one belongs to.
+	 */
+	private static final class HitBuffer {
+		final double[] t, lx, ly, lz, nx, ny, nz, u, v, texScale, beta, gamma;
+		final int[] primitive, ray;
+		final Surface[] surface;
+		int count;
+
+		HitBuffer(int capacity) {
+			t = new double[capacity];
+			lx = new double[capacity]; ly = new double[capacity]; lz = new double[capacity];
+			nx = new double[capacity]; ny = new double[capacity]; nz = new double[capacity];
+			u = new double[capacity]; v = new double[capacity];
+			texScale = new double[capacity];
+			beta = new double[capacity]; gamma = new double[capacity];
+			primitive = new int[capacity];
+			ray = new int[capacity];
+			surface = new Surface[capacity];
+		}
+
+		void store(int h, IntersectionRecord record) {
+			t[h] = record.t;
+			lx[h] = record.location.x; ly[h] = record.location.y; lz[h] = record.location.z;
+			nx[h] = record.normal.x; ny[h] = record.normal.y; nz[h] = record.normal.z;
+			u[h] = record.texCoords.x; v[h] = record.texCoords.y;
+			texScale[h] = record.texScale;
+			beta[h] = record.beta; gamma[h] = record.gamma;
+			primitive[h] = record.primitive;
+			surface[h] = record.surface;
+		}
+
+		void load(int h, IntersectionRecord record) {
+			record.t = t[h];
+			record.location.set(lx[h], ly[h], lz[h]);
+			record.normal.set(nx[h], ny[h], nz[h]);
+			record.texCoords.set(u[h], v[h]);
+			record.texScale = texScale[h];
+			record.texFootprint = 0;
+			record.beta = beta[h]; record.gamma = gamma[h];
+			record.primitive = primitive[h];
+			record.surface = surface[h];
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package ray2;
+
+import java.util.Arrays;
+
+import ray2.light.LightSamplingRecord;
+import egl.math.Colord;
+import egl.math.Vector2d;
+import egl.math.Vector3d;
+
+/**
+ * Scratch objects owned by a single render thread. Blocks are rendered
+ * concurrently, so every thread gets its own rays, colors, intersection records
+ * and traversal stacks instead of allocating new ones for every pixel, every ray
+ * and every intersection test. Once a thread has warmed up, tracing a ray
+ * through the scene allocates nothing.
+ *
+ * Objects used by shadeRay and the shaders come in one copy per recursion depth,
+ * so a recursive call never overwrites the state of its caller. The object-space
+ * ray is only used by leaf surfaces, which never call back into the scene.
+ */
+public class Workspace {
+
+	/** The workspace of each thread, created on first use. */
+	private static final ThreadLocal<Workspace> workspace = ThreadLocal.withInitial(Workspace::new);
+
+	/**
+	 * @return the scratch workspace belonging to the calling thread
+	 */
+	public static Workspace get() {
+		return workspace.get();
+	}
+
+	/** The camera ray for the current sample. */
+	public final Ray ray = new Ray();
+	/** The accumulated color of the current pixel. */
+	public final Colord pixelColor = new Colord();
+	/** The color returned along the current camera ray. */
+	public final Colord rayColor = new Colord();
+
+	/** One intersection record per recursion depth of shadeRay. */
+	public final IntersectionRecord[] records = new IntersectionRecord[RayTracer.MAX_DEPTH + 1];
+	/** One shadow ray per recursion depth, for Shader.isShadowed. */
+	public final Ray[] shadowRays = new Ray[RayTracer.MAX_DEPTH + 1];
+	/** One light sample per recursion depth. */
+	public final LightSamplingRecord[] lightRecords = new LightSamplingRecord[RayTracer.MAX_DEPTH + 1];
+	/** One color per recursion depth, for a shader's texture lookup. */
+	public final Colord[] texColors = new Colord[RayTracer.MAX_DEPTH + 1];
+
+	/** The two rays a path alternates between, and its weights, for PathIntegrator. */
+	public final Ray[] pathRays = { new Ray(), new Ray() };
+	public final Colord pathThroughput = new Colord();
+	public final Colord pathWeight = new Colord();
+	public final Colord pathLocal = new Colord();
+
+	/** The position within a cubemap face chosen by Cubemap.generate. */
+	public final Vector2d cubemapUV = new Vector2d();
+
+	/** Vertex attributes read from a MeshData while a mesh hit is filled in. */
+	public final Vector3d meshVector = new Vector3d();
+	public final Vector2d[] meshUVs = { new Vector2d(), new Vector2d(), new Vector2d() };
+
+	/** The ray transformed into the object space of the surface being tested. */
+	public final Ray objectRay = new Ray();
+
+	/**
+	 * The random numbers of the camera ray being shaded. Shaders draw from it
+	 * rather than from a shared generator, so that renders are repeatable.
+	 */
+	public final PathRandom random = new PathRandom();
+
+	/** The last surface to block a shadow ray to each light, for Shader.isShadowed. */
+	public final OccluderCache occluders = new OccluderCache();
+
+	/*
+	 * Traversal stacks shared by every acceleration structure on this thread.
+	 * Nested structures (such as the BVH inside a Mesh) take frames above the
+	 * frame of the structure that called them.
+	 */
+	private int[] nodeStack = new int[64];
+	private double[] entryStack = new double[64];
+	private int stackTop = 0;
+
+	public Workspace() {
+		for (int i = 0; i < records.length; i++) {
+			records[i] = new IntersectionRecord();
+			shadowRays[i] = new Ray();
+			lightRecords[i] = new LightSamplingRecord();
+			texColors[i] = new Colord();
+		}
+	}
+
+	/**
+	 * Reserve a frame of size entries on the traversal stacks. The frame is
+	 * nodeStack()[base] to nodeStack()[base + size - 1] (and likewise for
+	 * entryStack()); it must be released with popFrame(base) before the caller
+	 * returns. The stacks are grown if needed, so nodeStack() and entryStack()
+	 * must be fetched after pushing.
+	 *
+	 * @param size the number of entries needed
+	 * @return the index of the first entry of the frame
+	 */
+	public int pushFrame(int size) {
+		int base = stackTop;
+		stackTop += size;
+		if (stackTop > nodeStack.length) {
+			int capacity = Math.max(stackTop, 2 * nodeStack.length);
+			nodeStack = Arrays.copyOf(nodeStack, capacity);
+			entryStack = Arrays.copyOf(entryStack, capacity);
+		}
+		return base;
+	}
+
+	/**
+	 * Release a frame reserved by pushFrame, and every frame above it.
+	 * @param base the value returned by pushFrame
+	 */
+	public void popFrame(int base) {
+		stackTop = base;
+	}
+
+	/** @return the node index stack */
+	public int[] nodeStack() { return nodeStack; }
+
+	/** @return the stack of ray parameters at which the stacked nodes are entered */
+	public double[] entryStack() { return entryStack; }
+}
@@ -2,6 +2,7 @@ package ray2.accel;
 
 import ray2.IntersectionRecord;
 import ray2.Ray;
+import ray2.RayPacket;
 import ray2.surface.Surface;
 
 /**
@@ -22,11 +23,32 @@ public interface AccelStruct {
 	 * and should be optimized for performance.
 	 * 
 	 * @param outRecord Record the relevant intersection information here if the ray intersects
-	 * a surface; otherwise, do not modify this.
+	 * a surface; otherwise, do not modify this. May be null, in which case only the existence
+	 * of an intersection is reported and surfaces should be tested with a null record too.
+	 * Implementations should not allocate: use the calling thread's Workspace for scratch space.
 	 * @param rayIn The ray that is intersected with the scene.
 	 * @param anyIntersection A boolean that is true if the caller is only concerned with finding any
 	 * ray-surface intersection rather than the first; otherwise, the first intersection must be recorded.
+	 * If outRecord is not null, only outRecord.surface need be set, to the surface that was hit.
 	 * @return true if the ray intersects a surface in the scene; false otherwise.
 	 */
 	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection);
+
+	/**
+	 * Intersect every ray of a packet with the scene, with the same results as
+	 * calling intersect for each ray in turn: packet.hit[k] is set to whether ray k
+	 * hit a surface, and its first intersection is recorded in packet.records[k];
+	 * if anyIntersection is true, only packet.records[k].surface is set, to the
+	 * surface that was hit. The rays themselves are not modified.
+	 *
+	 * The default traces the rays one at a time; structures that can cull nodes
+	 * for the whole packet at once override it.
+	 *
+	 * @param packet the rays to intersect, and where the results are written
+	 * @param anyIntersection true if only the existence of an intersection matters
+	 */
+	default void intersectPacket(RayPacket packet, boolean anyIntersection) {
+		for (int k = 0; k < packet.size; k++)
+			packet.hit[k] = intersect(packet.records[k], packet.rays[k], anyIntersection);
+	}
 }
@@ -15,7 +15,7 @@ import ray2.surface.Surface;
  */
 public class Bvh implements AccelStruct {   
 	/** A shared surfaces array that will be used across every node in the tree. */
-	private Surface[] surfaces;
+	Surface[] surfaces;
 
 	/** A comparator class that can sort surfaces by x, y, or z coordinate.
 	 *  See the subclass declaration below for details.
@@ -32,7 +32,8 @@ public class Bvh implements AccelStruct {
 	 * if there was an intersection and false otherwise. If no intersection was
 	 * found outRecord is unchanged.
 	 *
-	 * @param outRecord the output IntersectionRecord
+	 * @param outRecord the output IntersectionRecord, or null if only the existence
+	 * of an intersection matters
 	 * @param ray the ray to intersect
 	 * @param anyIntersection if true, will immediately return when found an intersection
 	 * @return true if and intersection is found.
@@ -56,6 +57,8 @@ public class Bvh implements AccelStruct {
 		// TODO#A7: fill in this function.
 		// Hint: For a leaf node, use a normal linear search. Otherwise, search in the left and right children.
 		// Another hint: save time by checking if the ray intersects the node first before checking the childrens.
+		// outRecord may be null (e.g. for shadow rays); then just pass null on to the surfaces.
+		// With anyIntersection and a record, pass null to the surfaces and set only outRecord.surface.
 		return false;
 	}
 
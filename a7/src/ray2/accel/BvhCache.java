@@ -0,0 +1,188 @@
+package ray2.accel;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * A directory of TriangleBvh trees saved by earlier runs, so that a scene whose
+ * geometry has not changed does not build its trees again.
+ *
+ * A tree is identified by a SHA-256 hash of its triangles as placed (the
+ * vertex positions, after the transformation of a world-space store, and the
+ * vertex indices; see TriangleStore.digest) and of the settings of its
+ * builder. Changing the mesh file or the transformation of a mesh gives a new
+ * hash, and changing only the camera, lights, shaders or shading attributes of
+ * the mesh keeps it. Each tree is one file named after its hash, holding a
+ * header and the node and primitive arrays. A file is memory-mapped and the
+ * arrays copied out of it in bulk, which takes a small fraction of the time of
+ * building the tree.
+ *
+ * Files are written to a temporary file which then replaces the old one, so a
+ * run killed while saving leaves no partial tree behind. A tree that cannot be
+ * loaded is built again, and one that cannot be saved is reported and used
+ * anyway. Trees of geometry that is no longer used are not removed; the
+ * directory may be deleted at any time.
+ *
+ * Enabled in the scene file with e.g.
+ *
+ *   &lt;bvhCache&gt;bvhcache&lt;/bvhCache&gt;
+ */
+public class BvhCache {
+
+	private static final int MAGIC = 0x52324256; // "R2BV"
+	private static final int VERSION = 1;
+	private static final int HASH_LENGTH = 32;
+	private static final int HEADER_SIZE = 4 + 4 + HASH_LENGTH + 4 + 4 + 4;
+
+	private final File directory;
+
+	/**
+	 * @param directory the directory the trees are kept in; created when the first tree is saved
+	 */
+	public BvhCache(String directory) {
+		this.directory = new File(directory);
+	}
+
+	/**
+	 * Load the tree of bvh from the cache, or build it and save it to the cache
+	 * if it is not there.
+	 * @param bvh the tree to build, with the store and builder it is to be built with
+	 */
+	public void build(TriangleBvh bvh) {
+		long start = System.currentTimeMillis();
+		byte[] hash = hash(bvh);
+		File file = new File(directory, toHex(hash, 16) + ".bvh");
+		if (file.exists()) {
+			try {
+				if (load(bvh, file, hash)) {
+					System.out.println("Loaded BVH over " + bvh.primitives.length + " triangles from " + file
+							+ " in " + (System.currentTimeMillis() - start) + " ms");
+					return;
+				}
+				System.out.println("Ignoring BVH cache " + file + ": it is for different geometry");
+			} catch (IOException e) {
+				System.out.println("Ignoring BVH cache " + file + ": " + e);
+			}
+		}
+		bvh.build();
+		save(bvh, file, hash);
+	}
+
+	/**
+	 * @return the hash that identifies the tree of bvh
+	 */
+	private static byte[] hash(TriangleBvh bvh) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		ByteBuffer settings = ByteBuffer.allocate(64);
+		settings.putInt(VERSION).putInt(bvh.getStore().size());
+		SahBvh sah = bvh.builder;
+		settings.putInt(sah.binCount).putInt(sah.maxLeafSize);
+		settings.putDouble(sah.traversalCost).putDouble(sah.intersectionCost);
+		digest.update(settings.array(), 0, settings.position());
+		bvh.getStore().digest(digest);
+		return digest.digest();
+	}
+
+	/**
+	 * Read the tree in file into bvh.
+	 * @return true if the tree was loaded, false if the file is for a different tree
+	 */
+	private static boolean load(TriangleBvh bvh, File file, byte[] hash) throws IOException {
+		MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+		byte[] fileHash = new byte[HASH_LENGTH];
+		if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+			throw new IOException("it is not a BVH of this version");
+		buffer.get(fileHash);
+		if (!Arrays.equals(fileHash, hash))
+			return false;
+		int nodeCount = buffer.getInt(), depth = buffer.getInt(), primitiveCount = buffer.getInt();
+		if (primitiveCount != bvh.getStore().size() || buffer.remaining() != size(nodeCount, primitiveCount) - HEADER_SIZE)
+			throw new IOException("it is truncated");
+
+		double[] bounds = new double[6 * nodeCount];
+		int[] offset = new int[nodeCount], count = new int[nodeCount], primitives = new int[primitiveCount];
+		buffer.asDoubleBuffer().get(bounds);
+		buffer.position(buffer.position() + 8 * bounds.length);
+		buffer.asIntBuffer().get(offset);
+		buffer.position(buffer.position() + 4 * nodeCount);
+		buffer.asIntBuffer().get(count);
+		buffer.position(buffer.position() + 4 * nodeCount);
+		buffer.asIntBuffer().get(primitives);
+
+		bvh.nodeCount = nodeCount;
+		bvh.depth = depth;
+		bvh.bounds = bounds;
+		bvh.offset = offset;
+		bvh.count = count;
+		bvh.primitives = primitives;
+		return true;
+	}
+
+	/**
+	 * Write the tree of bvh to file, reporting but otherwise ignoring failures.
+	 */
+	private void save(TriangleBvh bvh, File file, byte[] hash) {
+		File temp = new File(file.getPath() + ".tmp");
+		ByteBuffer buffer = ByteBuffer.allocate(size(bvh.nodeCount, bvh.primitives.length)).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(MAGIC).putInt(VERSION).put(hash);
+		buffer.putInt(bvh.nodeCount).putInt(bvh.depth).putInt(bvh.primitives.length);
+		buffer.asDoubleBuffer().put(bvh.bounds);
+		buffer.position(buffer.position() + 8 * bvh.bounds.length);
+		buffer.asIntBuffer().put(bvh.offset);
+		buffer.position(buffer.position() + 4 * bvh.nodeCount);
+		buffer.asIntBuffer().put(bvh.count);
+		buffer.position(buffer.position() + 4 * bvh.nodeCount);
+		buffer.asIntBuffer().put(bvh.primitives);
+		buffer.rewind();
+
+		try {
+			Files.createDirectories(directory.toPath());
+			try (FileChannel channel = FileChannel.open(temp.toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			temp.delete();
+			System.err.println("Could not save BVH cache " + file + ": " + e);
+		}
+	}
+
+	/**
+	 * @return the size in bytes of the file of a tree
+	 */
+	private static int size(int nodeCount, int primitiveCount) {
+		return HEADER_SIZE + 6 * 8 * nodeCount + 2 * 4 * nodeCount + 4 * primitiveCount;
+	}
+
+	/**
+	 * @return the first n bytes of hash as hexadecimal digits
+	 */
+	private static String toHex(byte[] hash, int n) {
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i < n; i++)
+			s.append(String.format("%02x", hash[i] & 0xFF));
+		return s.toString();
+	}
+}
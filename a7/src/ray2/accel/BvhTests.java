@@ -9,6 +9,7 @@ import org.junit.Test;
 
 import ray2.mesh.OBJMesh;
 import ray2.mesh.OBJFace;
+import ray2.IntersectionRecord;
 import ray2.Ray;
 import ray2.surface.Mesh;
 import ray2.surface.Sphere;
@@ -26,6 +27,11 @@ public class BvhTests {
     static Bvh bvh1 = new Bvh();
     static Bvh bvh20 = new Bvh();
     static Bvh bvh40 = new Bvh();
+    
+    // Spheres that bound themselves, so that the flat BVH tests need none of the student code
+    static Surface bounded40[] = new Surface[40];
+    static FlatBvh flat40 = new FlatBvh();
+    static NaiveAccelStruct naive40 = new NaiveAccelStruct();
 
     @BeforeClass
     public static void setUpBeforeClass() throws Exception {
@@ -51,6 +57,16 @@ public class BvhTests {
         bvh1.build(Arrays.copyOf(surfaces1, 1));
         bvh20.build(Arrays.copyOf(surfaces20, 20));
         bvh40.build(Arrays.copyOf(surfaces40, 40));
+
+        for(int i = 0; i < 40; ++i) {
+            BoundedSphere si = new BoundedSphere();
+            si.setCenter(new Vector3d(30 * (i % 2), i / 2, 0));
+            si.setTransformation(new Matrix4d(), new Matrix4d(), new Matrix4d());
+            si.computeBoundingBox();
+            bounded40[i] = si;
+        }
+        flat40.build(Arrays.copyOf(bounded40, 40));
+        naive40.build(Arrays.copyOf(bounded40, 40));
     }
     
     @Test
@@ -560,6 +576,100 @@ public class BvhTests {
                     !vectorsEqual(bvh40.root.child[0].child[0].maxBound, new Vector3d(31, 20, 1))));
     }
     
+    @Test
+    public void testFlatBvh() {
+        // Flatten a given tree over bounded40: a root, 2 children and 4 leaves of 10
+        //================================================================================================
+        final BvhNode tree = node(0, 40, node(0, 20, node(0, 10), node(10, 20)), node(20, 40, node(20, 30), node(30, 40)));
+        FlatBvh flat = new FlatBvh();
+        flat.setBuilder(new Bvh() {
+            @Override
+            public void build(Surface[] surfaces) {
+                this.surfaces = surfaces;
+                root = tree;
+            }
+        });
+        flat.build(Arrays.copyOf(bounded40, 40));
+
+        assertTrue("The flattened tree should have 7 nodes, got " + flat.nodeCount, flat.nodeCount == 7);
+        assertTrue("The root of the flattened tree should be an interior node.", flat.count[0] < 0);
+        assertTrue("The first child of the flattened root should directly follow it.", flat.count[1] < 0);
+        assertTrue("The second child of the flattened root should be node 4, got " + flat.offset[0],
+                   flat.offset[0] == 4);
+        assertTrue("Nodes 2, 3, 5 and 6 of the flattened tree should be leaves with 10 elements.",
+                   flat.count[2] == 10 && flat.count[3] == 10 && flat.count[5] == 10 && flat.count[6] == 10);
+        assertTrue("The leaves should refer to the surfaces in order.",
+                   flat.offset[2] == 0 && flat.offset[3] == 10 && flat.offset[5] == 20 && flat.offset[6] == 30);
+        assertTrue("Minbound of the flattened tree should be <-1, -1, -1>.",
+                   vectorsEqual(new Vector3d(flat.bounds[0], flat.bounds[1], flat.bounds[2]), new Vector3d(-1, -1, -1)));
+        assertTrue("Maxbound of the flattened tree should be <31, 20, 1>.",
+                   vectorsEqual(new Vector3d(flat.bounds[3], flat.bounds[4], flat.bounds[5]), new Vector3d(31, 20, 1)));
+        
+        // Intersections must agree with a linear search, for the given tree and
+        // for the SAH tree a FlatBvh builds by default
+        //================================================================================================
+        assertTrue("The default FlatBvh over 40 spheres should have more than one node, got " + flat40.nodeCount,
+                   flat40.nodeCount > 1);
+        assertAgreesWithNaive("The flattened tree", flat);
+        assertAgreesWithNaive("The default FlatBvh", flat40);
+    }
+
+    @Test
+    public void testSahBvh() {
+        SahBvh sah40 = new SahBvh();
+        sah40.build(Arrays.copyOf(bounded40, 40));
+        assertTrue("The SAH tree over 40 spheres should not be a single leaf.", !sah40.root.isLeaf());
+        assertAgreesWithNaive("The SAH tree", sah40);
+
+        SahBvh empty = new SahBvh();
+        empty.build(new Surface[0]);
+        assertTrue("An empty SAH tree should miss every ray.",
+                   !empty.intersect(new IntersectionRecord(), new Ray(new Vector3d(), new Vector3d(0, 0, 1)), false));
+    }
+
+    // Intersections with a structure over bounded40 must agree with a linear search.
+    private void assertAgreesWithNaive(String name, AccelStruct accel) {
+        IntersectionRecord accelRecord = new IntersectionRecord();
+        IntersectionRecord naiveRecord = new IntersectionRecord();
+        for (int i = 0; i < 40; ++i) {
+            Ray ray = new Ray(new Vector3d(-5 + i, 30, 0.5 - i / 40.0), new Vector3d(0.1 * (i % 3), -1, 0.01 * i));
+            ray.direction.normalize();
+            ray.makeOffsetRay();
+            boolean accelHit = accel.intersect(accelRecord, new Ray(ray), false);
+            boolean naiveHit = naive40.intersect(naiveRecord, new Ray(ray), false);
+            assertTrue(name + " and a linear search disagree on whether ray "
+                     + ray.origin + " + t * " + ray.direction + " hits.", accelHit == naiveHit);
+            assertTrue(name + " found a different first hit for ray "
+                     + ray.origin + " + t * " + ray.direction + ".",
+                     !accelHit || Math.abs(accelRecord.t - naiveRecord.t) < 1e-6);
+            assertTrue(name + " should report any hit exactly when there is a first hit.",
+                     accel.intersect(null, new Ray(ray), true) == naiveHit);
+        }
+    }
+
+    // A node of a tree over bounded40[start] to bounded40[end-1], a leaf unless children are given.
+    private static BvhNode node(int start, int end, BvhNode... children) {
+        Vector3d minB = new Vector3d(Double.POSITIVE_INFINITY);
+        Vector3d maxB = new Vector3d(Double.NEGATIVE_INFINITY);
+        for (int i = start; i < end; ++i) {
+            Vector3d lo = bounded40[i].getMinBound(), hi = bounded40[i].getMaxBound();
+            minB.set(Math.min(minB.x, lo.x), Math.min(minB.y, lo.y), Math.min(minB.z, lo.z));
+            maxB.set(Math.max(maxB.x, hi.x), Math.max(maxB.y, hi.y), Math.max(maxB.z, hi.z));
+        }
+        return children.length == 0 ? new BvhNode(minB, maxB, null, null, start, end)
+                                    : new BvhNode(minB, maxB, children[0], children[1], start, end);
+    }
+
+    // A sphere that computes its own bounding box, for an identity transformation.
+    private static class BoundedSphere extends Sphere {
+        @Override
+        public void computeBoundingBox() {
+            minBound = new Vector3d(center).sub(radius);
+            maxBound = new Vector3d(center).add(radius);
+            averagePosition = new Vector3d(center);
+        }
+    }
+    
     // Simple element-wise comparison.
     private boolean vectorsEqual(Vector3d v0, Vector3d v1) {
         double epsilon = 1e-4;
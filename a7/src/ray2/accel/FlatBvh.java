@@ -0,0 +1,69 @@
+package ray2.accel;
+
+import ray2.IntersectionRecord;
+import ray2.Ray;
+import ray2.RayPacket;
+import ray2.surface.Surface;
+
+/**
+ * A FlatTree over the surfaces of a scene. The tree is built by a SahBvh (or any
+ * other Bvh set with setBuilder) and then laid out in the flat node arrays; see
+ * FlatTree for the layout and the traversal.
+ */
+public class FlatBvh extends FlatTree implements AccelStruct {
+
+	/** The builder used to create the tree before it is flattened. */
+	protected Bvh builder = new SahBvh();
+	public void setBuilder(Bvh builder) { this.builder = builder; }
+	public Bvh getBuilder() { return builder; }
+
+	/** The surfaces, in the order the leaves refer to them. */
+	Surface[] surfaces;
+
+	public FlatBvh() { }
+
+	@Override
+	public void build(Surface[] surfaces) {
+		builder.build(surfaces);
+		this.surfaces = builder.surfaces;
+		flatten(builder.root);
+	}
+
+	@Override
+	public void intersectPacket(RayPacket packet, boolean anyIntersection) {
+		packet.load();
+		int hits = intersectPacket(packet, (1 << packet.size) - 1, anyIntersection);
+		for (int k = 0; k < packet.size; k++)
+			packet.hit[k] = (hits & (1 << k)) != 0;
+	}
+
+	@Override
+	protected int intersectLeafPacket(int first, int n, RayPacket packet, int lanes, boolean anyIntersection) {
+		int hits = 0;
+		for (int i = first; i < first + n && lanes != 0; i++) {
+			int found = surfaces[i].intersectPacket(packet, lanes, anyIntersection);
+			hits |= found;
+			if (anyIntersection)
+				lanes &= ~found;
+		}
+		return hits;
+	}
+
+	@Override
+	protected boolean intersectLeaf(int first, int n, IntersectionRecord outRecord, Ray ray, boolean anyIntersection) {
+		boolean ret = false;
+		for (int i = first; i < first + n; i++) {
+			// Surfaces only report hits before ray.end, so each one is the closest so far
+			if (surfaces[i].intersect(anyIntersection ? null : outRecord, ray)) {
+				if (anyIntersection) {
+					if (outRecord != null)
+						outRecord.surface = surfaces[i];
+					return true;
+				}
+				ret = true;
+				ray.end = outRecord.t;
+			}
+		}
+		return ret;
+	}
+}
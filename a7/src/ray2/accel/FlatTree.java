@@ -0,0 +1,345 @@
+package ray2.accel;
+
+import ray2.IntersectionRecord;
+import ray2.Ray;
+import ray2.RayPacket;
+import ray2.Workspace;
+
+/**
+ * A BVH stored as flat primitive arrays instead of a tree of BvhNode objects,
+ * and its traversal. The tree is laid out in depth-first order: the first child
+ * of an interior node always directly follows it, and only the index of the
+ * second child is stored. Traversal is an iterative loop with an explicit stack
+ * that visits the nearer child first. Packets of rays are traversed together,
+ * visiting a node when any of their rays reaches it.
+ *
+ * Subclasses say what the leaves hold: FlatBvh refers to Surfaces, and
+ * TriangleBvh to the triangles of a TriangleStore.
+ */
+public abstract class FlatTree {
+
+	/** The depth of the tree, which bounds the size of the traversal stack. */
+	int depth;
+
+	/** The number of nodes in the tree. */
+	int nodeCount;
+
+	/** Node bounding boxes: minX, minY, minZ, maxX, maxY, maxZ for each node. */
+	double[] bounds;
+
+	/**
+	 * For a leaf, the index of its first primitive; for an interior node, the index
+	 * of its second child (its first child is always the next node).
+	 */
+	int[] offset;
+
+	/** The number of primitives in a leaf, or -1 for an interior node. */
+	int[] count;
+
+	/**
+	 * Lay out the tree rooted at root in the flat node arrays.
+	 * @param root the root of the tree, or null for an empty tree
+	 */
+	protected void flatten(BvhNode root) {
+		nodeCount = countNodes(root);
+		depth = depth(root);
+		bounds = new double[6 * nodeCount];
+		offset = new int[nodeCount];
+		count = new int[nodeCount];
+		if (root != null)
+			flatten(root, 0);
+	}
+
+	private static int countNodes(BvhNode node) {
+		if (node == null) return 0;
+		if (node.isLeaf()) return 1;
+		return 1 + countNodes(node.child[0]) + countNodes(node.child[1]);
+	}
+
+	private static int depth(BvhNode node) {
+		if (node == null || node.isLeaf()) return 1;
+		return 1 + Math.max(depth(node.child[0]), depth(node.child[1]));
+	}
+
+	/**
+	 * Write node and its subtree into the arrays, starting at index.
+	 * @return the index after the last node written
+	 */
+	private int flatten(BvhNode node, int index) {
+		for (int a = 0; a < 3; a++) {
+			bounds[6 * index + a] = node.minBound.get(a);
+			bounds[6 * index + 3 + a] = node.maxBound.get(a);
+		}
+		if (node.isLeaf()) {
+			offset[index] = node.surfaceIndexStart;
+			count[index] = node.surfaceIndexEnd - node.surfaceIndexStart;
+			return index + 1;
+		}
+		int next = flatten(node.child[0], index + 1);
+		offset[index] = next;
+		count[index] = -1;
+		return flatten(node.child[1], next);
+	}
+
+	/**
+	 * Set outRecord to the first intersection of ray with the scene. Return true
+	 * if there was an intersection and false otherwise. If no intersection was
+	 * found outRecord is unchanged.
+	 *
+	 * @param outRecord the output IntersectionRecord, or null if only the existence
+	 * of an intersection matters
+	 * @param ray the ray to intersect
+	 * @param anyIntersection if true, will immediately return when found an intersection
+	 * @return true if and intersection is found.
+	 */
+	public boolean intersect(IntersectionRecord outRecord, Ray ray, boolean anyIntersection) {
+		if (nodeCount == 0)
+			return false;
+
+		// Without a record to fill, any intersection answers the question
+		if (outRecord == null)
+			anyIntersection = true;
+
+		double ox = ray.origin.x, oy = ray.origin.y, oz = ray.origin.z;
+		double ix = 1 / ray.direction.x, iy = 1 / ray.direction.y, iz = 1 / ray.direction.z;
+
+		if (boxEntry(0, ox, oy, oz, ix, iy, iz, ray.start, ray.end) == Double.POSITIVE_INFINITY)
+			return false;
+
+		// The ray is shortened as hits are found and restored before returning
+		double end = ray.end;
+		Workspace ws = Workspace.get();
+		int base = ws.pushFrame(depth);
+		int[] stack = ws.nodeStack();
+		double[] stackT = ws.entryStack();
+		int top = base;
+		int node = 0;
+		boolean ret = false;
+
+		traversal:
+		while (true) {
+			if (count[node] >= 0) {
+				if (intersectLeaf(offset[node], count[node], outRecord, ray, anyIntersection)) {
+					ret = true;
+					if (anyIntersection)
+						break;
+				}
+			} else {
+				// Interior: descend into the nearer child, remember the farther one
+				int near = node + 1, far = offset[node];
+				double tNear = boxEntry(near, ox, oy, oz, ix, iy, iz, ray.start, ray.end);
+				double tFar = boxEntry(far, ox, oy, oz, ix, iy, iz, ray.start, ray.end);
+				if (tFar < tNear) {
+					int swap = near; near = far; far = swap;
+					double t = tNear; tNear = tFar; tFar = t;
+				}
+				if (tNear != Double.POSITIVE_INFINITY) {
+					if (tFar != Double.POSITIVE_INFINITY) {
+						stackT[top] = tFar;
+						stack[top++] = far;
+					}
+					node = near;
+					continue;
+				}
+			}
+
+			// Pop the next subtree that may still be closer than the current hit
+			do {
+				if (top == base)
+					break traversal;
+				node = stack[--top];
+			} while (stackT[top] > ray.end);
+		}
+
+		ws.popFrame(base);
+		ray.end = end;
+		return ret;
+	}
+
+	/**
+	 * Intersect some of the rays of a loaded packet with the tree. This is the
+	 * traversal behind intersectPacket, and is also called by surfaces that hold
+	 * a tree of their own, from inside the traversal of the scene's tree.
+	 *
+	 * Only hits before packet.end[k] are reported. For the first intersection,
+	 * packet.end[k] is moved up to the hit and the hit is recorded in
+	 * packet.records[k] as intersect would record it.
+	 *
+	 * @param packet the packet, with its lanes loaded
+	 * @param lanes a bit mask of the rays to intersect: bit k stands for ray k
+	 * @param anyIntersection true if only the existence of an intersection matters
+	 * @return a bit mask of the rays that hit
+	 */
+	public int intersectPacket(RayPacket packet, int lanes, boolean anyIntersection) {
+		if (nodeCount == 0 || lanes == 0)
+			return 0;
+
+		// The ends of the rays that are not traced, or are done (in any-hit mode),
+		// are held at minus infinity, so that no box reaches them; the ends of the
+		// rays that are not traced are kept above the stack frame meanwhile
+		double[] end = packet.end;
+		double[] entry = packet.entry;
+		int n = packet.size;
+		Workspace ws = Workspace.get();
+		int base = ws.pushFrame(depth + n);
+		int[] stack = ws.nodeStack();
+		double[] stackT = ws.entryStack();
+		int saved = base + depth;
+		for (int k = 0; k < n; k++) {
+			stackT[saved + k] = end[k];
+			if ((lanes & (1 << k)) == 0)
+				end[k] = Double.NEGATIVE_INFINITY;
+		}
+		int hits = 0;
+		int top = base;
+		int node = 0;
+		if (packetEntry(0, packet) != Double.POSITIVE_INFINITY) {
+			traversal:
+			while (true) {
+				if (count[node] >= 0) {
+					// Only the rays that reach the leaf's box are tested against its surfaces
+					packetEntry(node, packet);
+					int reached = 0;
+					for (int k = 0; k < n; k++)
+						if (entry[k] != Double.POSITIVE_INFINITY)
+							reached |= 1 << k;
+					int found = intersectLeafPacket(offset[node], count[node], packet, reached, anyIntersection);
+					hits |= found;
+					if (anyIntersection && found != 0) {
+						lanes &= ~found;
+						for (int k = 0; k < n; k++)
+							if ((found & (1 << k)) != 0)
+								end[k] = Double.NEGATIVE_INFINITY;
+						if (lanes == 0)
+							break;
+					}
+				} else {
+					// Interior: descend into the child some ray enters first
+					int near = node + 1, far = offset[node];
+					double tNear = packetEntry(near, packet);
+					double tFar = packetEntry(far, packet);
+					if (tFar < tNear) {
+						int swap = near; near = far; far = swap;
+						double t = tNear; tNear = tFar; tFar = t;
+					}
+					if (tNear != Double.POSITIVE_INFINITY) {
+						if (tFar != Double.POSITIVE_INFINITY) {
+							stackT[top] = tFar;
+							stack[top++] = far;
+						}
+						node = near;
+						continue;
+					}
+				}
+
+				// Pop the next subtree that some ray may still reach before its hit
+				double maxEnd = Double.NEGATIVE_INFINITY;
+				for (int k = 0; k < n; k++)
+					maxEnd = Math.max(maxEnd, end[k]);
+				do {
+					if (top == base)
+						break traversal;
+					node = stack[--top];
+				} while (stackT[top] > maxEnd);
+			}
+		}
+
+		// Only the ends of the rays that hit have moved
+		for (int k = 0; k < n; k++)
+			if (anyIntersection || (hits & (1 << k)) == 0)
+				end[k] = stackT[saved + k];
+		ws.popFrame(base);
+		return hits;
+	}
+
+	/**
+	 * Intersect some rays of a packet with the primitives of one leaf, as
+	 * intersectLeaf does for one ray, moving packet.end[k] up to each hit.
+	 *
+	 * @param first the index of the first primitive in the leaf
+	 * @param n the number of primitives in the leaf
+	 * @param packet the packet, with its lanes loaded
+	 * @param lanes a bit mask of the rays to intersect
+	 * @param anyIntersection if true, a ray may stop at the first intersection found
+	 * @return a bit mask of the rays that hit a primitive of this leaf
+	 */
+	protected abstract int intersectLeafPacket(int first, int n, RayPacket packet, int lanes, boolean anyIntersection);
+
+	/**
+	 * Intersect the ray with the primitives of one leaf. On a hit closer than
+	 * ray.end, the hit is written to outRecord (if it is not null) and ray.end is
+	 * moved up to it, so that farther subtrees are culled.
+	 *
+	 * @param first the index of the first primitive in the leaf
+	 * @param n the number of primitives in the leaf
+	 * @param outRecord the output IntersectionRecord, or null
+	 * @param ray the ray to intersect, which may be shortened
+	 * @param anyIntersection if true, may return at the first intersection found
+	 * @return true if the ray hit a primitive of this leaf before ray.end
+	 */
+	protected abstract boolean intersectLeaf(int first, int n, IntersectionRecord outRecord, Ray ray, boolean anyIntersection);
+
+	/**
+	 * Slab test of every ray of a packet against the bounds of a node. The entry
+	 * parameter of each ray, or positive infinity if it misses, is written to
+	 * packet.entry.
+	 * @return the smallest entry parameter over the packet
+	 */
+	private double packetEntry(int node, RayPacket packet) {
+		int b = 6 * node;
+		double minX = bounds[b], minY = bounds[b + 1], minZ = bounds[b + 2];
+		double maxX = bounds[b + 3], maxY = bounds[b + 4], maxZ = bounds[b + 5];
+		double[] ox = packet.ox, oy = packet.oy, oz = packet.oz;
+		double[] ix = packet.ix, iy = packet.iy, iz = packet.iz;
+		double[] start = packet.start, end = packet.end, entry = packet.entry;
+		int n = packet.size;
+
+		// Plain comparisons rather than Math.min and Math.max, which keep the JIT
+		// compiler from turning the loop into vector instructions
+		for (int k = 0; k < n; k++) {
+			double t0 = (minX - ox[k]) * ix[k], t1 = (maxX - ox[k]) * ix[k];
+			double tMin = t0 < t1 ? t0 : t1, tMax = t0 < t1 ? t1 : t0;
+			tMin = tMin > start[k] ? tMin : start[k];
+			tMax = tMax < end[k] ? tMax : end[k];
+			t0 = (minY - oy[k]) * iy[k]; t1 = (maxY - oy[k]) * iy[k];
+			double lo = t0 < t1 ? t0 : t1, hi = t0 < t1 ? t1 : t0;
+			tMin = lo > tMin ? lo : tMin;
+			tMax = hi < tMax ? hi : tMax;
+			t0 = (minZ - oz[k]) * iz[k]; t1 = (maxZ - oz[k]) * iz[k];
+			lo = t0 < t1 ? t0 : t1; hi = t0 < t1 ? t1 : t0;
+			tMin = lo > tMin ? lo : tMin;
+			tMax = hi < tMax ? hi : tMax;
+			entry[k] = tMin <= tMax ? tMin : Double.POSITIVE_INFINITY;
+		}
+		double first = Double.POSITIVE_INFINITY;
+		for (int k = 0; k < n; k++)
+			first = entry[k] < first ? entry[k] : first;
+		return first;
+	}
+
+	/**
+	 * Slab test against the bounds of a node.
+	 * @return the ray parameter where the ray enters the box, or positive
+	 * infinity if the ray misses the box within [tMin, tMax]
+	 */
+	private double boxEntry(int node, double ox, double oy, double oz,
+			double ix, double iy, double iz, double tMin, double tMax) {
+		int b = 6 * node;
+		double t0 = (bounds[b] - ox) * ix, t1 = (bounds[b + 3] - ox) * ix;
+		if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+		tMin = Math.max(tMin, t0);
+		tMax = Math.min(tMax, t1);
+
+		t0 = (bounds[b + 1] - oy) * iy; t1 = (bounds[b + 4] - oy) * iy;
+		if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+		tMin = Math.max(tMin, t0);
+		tMax = Math.min(tMax, t1);
+
+		t0 = (bounds[b + 2] - oz) * iz; t1 = (bounds[b + 5] - oz) * iz;
+		if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+		tMin = Math.max(tMin, t0);
+		tMax = Math.min(tMax, t1);
+
+		return tMin <= tMax ? tMin : Double.POSITIVE_INFINITY;
+	}
+}
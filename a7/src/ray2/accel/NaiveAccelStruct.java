@@ -20,26 +20,32 @@ public class NaiveAccelStruct implements AccelStruct {
 	 * if there was an intersection and false otherwise. If no intersection was
 	 * found outRecord is unchanged.
 	 *
-	 * @param outRecord the output IntersectionRecord
+	 * @param outRecord the output IntersectionRecord, or null if only the existence
+	 * of an intersection matters
 	 * @param ray the ray to intersect
 	 * @param anyIntersection if true, will immediately return when found an intersection
 	 * @return true if and intersection is found.
 	 */
-	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection) {
+	public boolean intersect(IntersectionRecord outRecord, Ray ray, boolean anyIntersection) {
+		// Without a record to fill, any intersection answers the question
+		if (outRecord == null)
+			anyIntersection = true;
+
+		// Surfaces only report hits before ray.end, so each hit is closer than the
+		// last and can be written straight to outRecord; ray.end is restored below
 		boolean ret = false;
-		IntersectionRecord tmp = new IntersectionRecord();
-		Ray ray = new Ray(rayIn.origin, rayIn.direction);
-		ray.start = rayIn.start;
-		ray.end = rayIn.end;
+		double end = ray.end;
 		for(int i = 0; i < surfaces.length; i++) {
-			if(surfaces[i].intersect(tmp, ray) && tmp.t < ray.end ) {
-				if(anyIntersection) return true;
+			if(surfaces[i].intersect(anyIntersection ? null : outRecord, ray)) {
 				ret = true;
-				ray.end = tmp.t;
-				if(outRecord != null)
-					outRecord.set(tmp);
+				if(anyIntersection) {
+					if(outRecord != null) outRecord.surface = surfaces[i];
+					break;
+				}
+				ray.end = outRecord.t;
 			}
 		}
+		ray.end = end;
 		return ret;
 	}
 	
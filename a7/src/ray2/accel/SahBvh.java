@@ -0,0 +1,374 @@
+package ray2.accel;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import ray2.IntersectionRecord;
+import ray2.Ray;
+import ray2.surface.Surface;
+import egl.math.Vector3d;
+
+/**
+ * A BVH whose tree is built with the binned Surface Area Heuristic instead of
+ * a median split. At every node the centroids of the surfaces are dropped into
+ * a fixed number of bins along each axis, and the split plane between two bins
+ * that minimizes the expected cost
+ *
+ *    traversalCost + intersectionCost * (A_left * N_left + A_right * N_right) / A_node
+ *
+ * is chosen. A node becomes a leaf when no split is cheaper than intersecting
+ * all of its surfaces and it holds at most maxLeafSize of them. Large subtrees
+ * are built in parallel on a fork-join pool.
+ *
+ * Rays traverse the tree of BvhNodes recursively, nearer child first; FlatBvh
+ * traverses the same tree laid out in flat arrays.
+ */
+public class SahBvh extends Bvh {
+
+	/** The number of bins the centroids are sorted into along each axis. */
+	protected int binCount = 16;
+	public void setBinCount(int binCount) { this.binCount = Math.max(2, binCount); }
+
+	/** The largest number of surfaces that may be stored in a leaf. */
+	protected int maxLeafSize = 10;
+	public void setMaxLeafSize(int maxLeafSize) { this.maxLeafSize = Math.max(1, maxLeafSize); }
+
+	/** The cost of visiting an interior node, relative to intersectionCost. */
+	protected double traversalCost = 0.125;
+	public void setTraversalCost(double traversalCost) { this.traversalCost = traversalCost; }
+
+	/** The cost of intersecting a ray with a single surface. */
+	protected double intersectionCost = 1.0;
+	public void setIntersectionCost(double intersectionCost) { this.intersectionCost = intersectionCost; }
+
+	/** Ranges smaller than this are built on the current thread rather than forked. */
+	static final int PARALLEL_THRESHOLD = 4096;
+
+	/* Per-surface bounds and centroids, flattened as [3*i + axis], used while building. */
+	private double[] primMin, primMax, primCenter;
+
+	/* Surface indices, partitioned in place while building. */
+	private int[] order;
+
+	public SahBvh() { }
+
+	@Override
+	public void build(Surface[] surfaces) {
+		this.surfaces = surfaces;
+		int n = surfaces.length;
+
+		double[] boundsMin = new double[3 * n];
+		double[] boundsMax = new double[3 * n];
+		int[] surfaceOrder = new int[n];
+		for (int i = 0; i < n; i++) {
+			Vector3d minB = surfaces[i].getMinBound();
+			Vector3d maxB = surfaces[i].getMaxBound();
+			for (int a = 0; a < 3; a++) {
+				boundsMin[3 * i + a] = minB.get(a);
+				boundsMax[3 * i + a] = maxB.get(a);
+			}
+			surfaceOrder[i] = i;
+		}
+
+		root = buildTree(boundsMin, boundsMax, surfaceOrder);
+
+		// Put the surfaces in the order the leaves refer to them
+		Surface[] original = surfaces.clone();
+		for (int i = 0; i < n; i++)
+			surfaces[i] = original[surfaceOrder[i]];
+	}
+
+	/**
+	 * Visit the nearer child of each node first, and skip subtrees that the ray
+	 * enters only after the closest hit found so far.
+	 *
+	 * @see AccelStruct#intersect
+	 */
+	@Override
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection) {
+		if (root == null)
+			return false;
+
+		// Without a record to fill, any intersection answers the question
+		if (outRecord == null)
+			anyIntersection = true;
+
+		double ix = 1 / rayIn.direction.x, iy = 1 / rayIn.direction.y, iz = 1 / rayIn.direction.z;
+		if (boxEntry(root, rayIn, ix, iy, iz) == Double.POSITIVE_INFINITY)
+			return false;
+
+		// The ray is shortened as hits are found and restored before returning
+		double end = rayIn.end;
+		boolean ret = intersectNode(root, outRecord, rayIn, ix, iy, iz, anyIntersection);
+		rayIn.end = end;
+		return ret;
+	}
+
+	/**
+	 * Intersect the ray with the surfaces under a node that the ray enters.
+	 * @return true if an intersection is found
+	 */
+	private boolean intersectNode(BvhNode node, IntersectionRecord outRecord, Ray ray,
+			double ix, double iy, double iz, boolean anyIntersection) {
+		if (node.isLeaf()) {
+			boolean ret = false;
+			for (int i = node.surfaceIndexStart; i < node.surfaceIndexEnd; i++) {
+				// Surfaces only report hits before ray.end, so each one is the closest so far
+				if (surfaces[i].intersect(anyIntersection ? null : outRecord, ray)) {
+					if (anyIntersection) {
+						if (outRecord != null)
+							outRecord.surface = surfaces[i];
+						return true;
+					}
+					ret = true;
+					ray.end = outRecord.t;
+				}
+			}
+			return ret;
+		}
+
+		BvhNode near = node.child[0], far = node.child[1];
+		double tNear = boxEntry(near, ray, ix, iy, iz);
+		double tFar = boxEntry(far, ray, ix, iy, iz);
+		if (tFar < tNear) {
+			BvhNode swap = near; near = far; far = swap;
+			double t = tNear; tNear = tFar; tFar = t;
+		}
+		boolean ret = false;
+		if (tNear != Double.POSITIVE_INFINITY && intersectNode(near, outRecord, ray, ix, iy, iz, anyIntersection)) {
+			if (anyIntersection)
+				return true;
+			ret = true;
+		}
+		// A hit in the nearer child may end the ray before the farther one starts
+		if (tFar != Double.POSITIVE_INFINITY && tFar <= ray.end
+				&& intersectNode(far, outRecord, ray, ix, iy, iz, anyIntersection))
+			ret = true;
+		return ret;
+	}
+
+	/**
+	 * Slab test against the bounds of a node.
+	 * @return the ray parameter where the ray enters the box, or positive
+	 * infinity if the ray misses the box within [ray.start, ray.end]
+	 */
+	private static double boxEntry(BvhNode node, Ray ray, double ix, double iy, double iz) {
+		double tMin = ray.start, tMax = ray.end;
+
+		double t0 = (node.minBound.x - ray.origin.x) * ix, t1 = (node.maxBound.x - ray.origin.x) * ix;
+		if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+		tMin = Math.max(tMin, t0);
+		tMax = Math.min(tMax, t1);
+
+		t0 = (node.minBound.y - ray.origin.y) * iy; t1 = (node.maxBound.y - ray.origin.y) * iy;
+		if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+		tMin = Math.max(tMin, t0);
+		tMax = Math.min(tMax, t1);
+
+		t0 = (node.minBound.z - ray.origin.z) * iz; t1 = (node.maxBound.z - ray.origin.z) * iz;
+		if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+		tMin = Math.max(tMin, t0);
+		tMax = Math.min(tMax, t1);
+
+		return tMin <= tMax ? tMin : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Build a tree over arbitrary primitives given only their bounding boxes.
+	 * On return, order has been permuted so that every node covers the primitives
+	 * order[node.surfaceIndexStart] to order[node.surfaceIndexEnd-1].
+	 *
+	 * @param boundsMin the minimum corner of each primitive, as [3*i + axis]
+	 * @param boundsMax the maximum corner of each primitive, as [3*i + axis]
+	 * @param order the primitive indices to build over, usually 0 to n-1
+	 * @return the root of the tree, or null if there are no primitives
+	 */
+	public synchronized BvhNode buildTree(double[] boundsMin, double[] boundsMax, int[] order) {
+		int n = order.length;
+		if (n == 0)
+			return null;
+
+		primMin = boundsMin;
+		primMax = boundsMax;
+		primCenter = new double[boundsMin.length];
+		for (int i = 0; i < boundsMin.length; i++)
+			primCenter[i] = 0.5 * (boundsMin[i] + boundsMax[i]);
+		this.order = order;
+
+		BvhNode tree = ForkJoinPool.commonPool().invoke(new BuildTask(0, n));
+
+		primMin = primMax = primCenter = null;
+		this.order = null;
+		return tree;
+	}
+
+	/**
+	 * Builds the subtree over order[start] to order[end-1], forking the two
+	 * halves when the range is large.
+	 */
+	@SuppressWarnings("serial")
+	private class BuildTask extends RecursiveTask<BvhNode> {
+		final int start, end;
+
+		BuildTask(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected BvhNode compute() {
+			return createNode(start, end);
+		}
+	}
+
+	/**
+	 * Create a BVH [sub]tree for order[start] to order[end-1].
+	 *
+	 * @param start The start index into order
+	 * @param end The end index into order
+	 */
+	private BvhNode createNode(int start, int end) {
+		int n = end - start;
+
+		// Bounds of the surfaces and of their centroids
+		double[] nodeMin = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY };
+		double[] nodeMax = { Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+		double[] cMin = nodeMin.clone();
+		double[] cMax = nodeMax.clone();
+		for (int i = start; i < end; i++) {
+			int p = 3 * order[i];
+			for (int a = 0; a < 3; a++) {
+				nodeMin[a] = Math.min(nodeMin[a], primMin[p + a]);
+				nodeMax[a] = Math.max(nodeMax[a], primMax[p + a]);
+				cMin[a] = Math.min(cMin[a], primCenter[p + a]);
+				cMax[a] = Math.max(cMax[a], primCenter[p + a]);
+			}
+		}
+		Vector3d minB = new Vector3d(nodeMin[0], nodeMin[1], nodeMin[2]);
+		Vector3d maxB = new Vector3d(nodeMax[0], nodeMax[1], nodeMax[2]);
+
+		if (n <= 1)
+			return new BvhNode(minB, maxB, null, null, start, end);
+
+		// Find the cheapest split over all axes
+		double leafCost = intersectionCost * n;
+		double parentArea = area(nodeMin, nodeMax);
+		double bestCost = Double.POSITIVE_INFINITY;
+		int bestAxis = -1, bestSplit = -1;
+
+		int[] counts = new int[binCount];
+		double[] binMin = new double[3 * binCount];
+		double[] binMax = new double[3 * binCount];
+		double[] rightArea = new double[binCount];
+		int[] rightCount = new int[binCount];
+		double[] accMin = new double[3], accMax = new double[3];
+
+		for (int axis = 0; axis < 3; axis++) {
+			double extent = cMax[axis] - cMin[axis];
+			if (extent <= 0)
+				continue;
+			double scale = binCount / extent;
+
+			Arrays.fill(counts, 0);
+			Arrays.fill(binMin, Double.POSITIVE_INFINITY);
+			Arrays.fill(binMax, Double.NEGATIVE_INFINITY);
+			for (int i = start; i < end; i++) {
+				int p = 3 * order[i];
+				int b = binOf(primCenter[p + axis], cMin[axis], scale);
+				counts[b]++;
+				for (int a = 0; a < 3; a++) {
+					binMin[3 * b + a] = Math.min(binMin[3 * b + a], primMin[p + a]);
+					binMax[3 * b + a] = Math.max(binMax[3 * b + a], primMax[p + a]);
+				}
+			}
+
+			// Sweep from the right to get the area and count right of each split
+			resetBounds(accMin, accMax);
+			int count = 0;
+			for (int b = binCount - 1; b > 0; b--) {
+				count += counts[b];
+				growBounds(accMin, accMax, binMin, binMax, b);
+				rightCount[b] = count;
+				rightArea[b] = count == 0 ? 0 : area(accMin, accMax);
+			}
+
+			// Sweep from the left and evaluate the split between bins b-1 and b
+			resetBounds(accMin, accMax);
+			count = 0;
+			for (int b = 1; b < binCount; b++) {
+				count += counts[b - 1];
+				growBounds(accMin, accMax, binMin, binMax, b - 1);
+				if (count == 0 || rightCount[b] == 0)
+					continue;
+				double cost = traversalCost + intersectionCost
+						* (area(accMin, accMax) * count + rightArea[b] * rightCount[b]) / parentArea;
+				if (cost < bestCost) {
+					bestCost = cost;
+					bestAxis = axis;
+					bestSplit = b;
+				}
+			}
+		}
+
+		if (n <= maxLeafSize && !(bestCost < leafCost))
+			return new BvhNode(minB, maxB, null, null, start, end);
+
+		int mid;
+		if (bestAxis < 0) {
+			// All centroids coincide; split the range in half
+			mid = start + n / 2;
+		} else {
+			double scale = binCount / (cMax[bestAxis] - cMin[bestAxis]);
+			int i = start, j = end - 1;
+			while (i <= j) {
+				if (binOf(primCenter[3 * order[i] + bestAxis], cMin[bestAxis], scale) < bestSplit) {
+					i++;
+				} else {
+					int tmp = order[i];
+					order[i] = order[j];
+					order[j--] = tmp;
+				}
+			}
+			mid = i;
+		}
+
+		BvhNode left, right;
+		if (n >= PARALLEL_THRESHOLD) {
+			BuildTask leftTask = new BuildTask(start, mid);
+			leftTask.fork();
+			right = createNode(mid, end);
+			left = leftTask.join();
+		} else {
+			left = createNode(start, mid);
+			right = createNode(mid, end);
+		}
+		return new BvhNode(minB, maxB, left, right, start, end);
+	}
+
+	private int binOf(double center, double cMin, double scale) {
+		return Math.min(binCount - 1, (int) ((center - cMin) * scale));
+	}
+
+	private static void resetBounds(double[] accMin, double[] accMax) {
+		for (int a = 0; a < 3; a++) {
+			accMin[a] = Double.POSITIVE_INFINITY;
+			accMax[a] = Double.NEGATIVE_INFINITY;
+		}
+	}
+
+	private static void growBounds(double[] accMin, double[] accMax, double[] binMin, double[] binMax, int b) {
+		for (int a = 0; a < 3; a++) {
+			accMin[a] = Math.min(accMin[a], binMin[3 * b + a]);
+			accMax[a] = Math.max(accMax[a], binMax[3 * b + a]);
+		}
+	}
+
+	/** Surface area of a box; empty boxes have zero area. */
+	private static double area(double[] min, double[] max) {
+		double dx = max[0] - min[0], dy = max[1] - min[1], dz = max[2] - min[2];
+		if (dx < 0 || dy < 0 || dz < 0)
+			return 0;
+		return 2 * (dx * dy + dy * dz + dz * dx);
+	}
+}
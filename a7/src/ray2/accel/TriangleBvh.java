@@ -0,0 +1,96 @@
+package ray2.accel;
+
+import ray2.IntersectionRecord;
+import ray2.Ray;
+import ray2.RayPacket;
+import ray2.surface.TriangleStore;
+
+/**
+ * A flat BVH over the triangles of a TriangleStore. The tree is built with the
+ * SAH from the triangle bounds alone, and leaves refer to triangles by index,
+ * so no Surface object is created per triangle.
+ */
+public class TriangleBvh extends FlatTree {
+
+	/** The triangles the tree is built over. */
+	private final TriangleStore store;
+
+	/** The builder that creates the tree before it is flattened. */
+	final SahBvh builder = new SahBvh();
+
+	/** Triangle indices, in the order the leaves refer to them. */
+	int[] primitives;
+
+	public TriangleBvh(TriangleStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * Build the tree over all triangles of the store.
+	 */
+	public void build() {
+		int n = store.size();
+		double[] boundsMin = new double[3 * n];
+		double[] boundsMax = new double[3 * n];
+		store.getBounds(boundsMin, boundsMax);
+
+		primitives = new int[n];
+		for (int i = 0; i < n; i++)
+			primitives[i] = i;
+
+		flatten(builder.buildTree(boundsMin, boundsMax, primitives));
+	}
+
+	/**
+	 * @return the triangles the tree is built over
+	 */
+	public TriangleStore getStore() {
+		return store;
+	}
+
+	/**
+	 * Get the bounding box of the whole tree; an empty tree has an empty box at
+	 * the origin.
+	 * @param outMin output minimum corner, as x, y, z
+	 * @param outMax output maximum corner, as x, y, z
+	 */
+	public void getBounds(double[] outMin, double[] outMax) {
+		for (int a = 0; a < 3; a++) {
+			outMin[a] = nodeCount == 0 ? 0 : bounds[a];
+			outMax[a] = nodeCount == 0 ? 0 : bounds[3 + a];
+		}
+	}
+
+	@Override
+	protected boolean intersectLeaf(int first, int n, IntersectionRecord outRecord, Ray ray, boolean anyIntersection) {
+		boolean ret = false;
+		for (int i = first; i < first + n; i++) {
+			double t = store.intersect(primitives[i], ray, outRecord);
+			if (t != Double.POSITIVE_INFINITY) {
+				ret = true;
+				ray.end = t;
+				if (anyIntersection)
+					return true;
+			}
+		}
+		return ret;
+	}
+
+	@Override
+	protected int intersectLeafPacket(int first, int n, RayPacket packet, int lanes, boolean anyIntersection) {
+		int hits = 0;
+		for (int k = 0; k < packet.size; k++) {
+			if ((lanes & (1 << k)) == 0)
+				continue;
+			Ray ray = packet.rays[k];
+			double end = ray.end;
+			ray.end = packet.end[k];
+			if (intersectLeaf(first, n, anyIntersection ? null : packet.records[k], ray, anyIntersection)) {
+				hits |= 1 << k;
+				packet.end[k] = ray.end;
+			}
+			ray.end = end;
+		}
+		return hits;
+	}
+}
@@ -51,6 +51,20 @@ public abstract class Camera {
 	 */
 	protected double viewHeight = 1.0;
 	public void setViewHeight(double viewHeight) { this.viewHeight = viewHeight; }
+
+	/**
+	 * The width of one pixel of the output image on the viewing window, which
+	 * sets the footprint of the rays generated. 0 until setImageSize is called.
+	 */
+	protected double pixelWidth = 0;
+	/**
+	 * Set the size of the image rendered through this camera.
+	 * @param width the width of the image in pixels
+	 * @param height the height of the image in pixels
+	 */
+	public void setImageSize(int width, int height) {
+		pixelWidth = Math.sqrt((viewWidth / width) * (viewHeight / height));
+	}
 	
 	/**
 	 * Generate a ray that points out into the scene for the given (u,v) coordinate.
@@ -64,6 +64,8 @@ public class ParallelCamera extends Camera {
 	    		     .addMultiple(v * viewHeight /2, basisV);
 
 	    outRay.direction.set(centerDir);
+	    outRay.coneWidth = pixelWidth;
+	    outRay.coneSpread = 0;
 	    
 	    outRay.makeOffsetRay();
 	}
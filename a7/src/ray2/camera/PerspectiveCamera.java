@@ -56,6 +56,8 @@ public class PerspectiveCamera extends Camera {
      				.addMultiple(u * viewWidth / 2, basisU)
      				.addMultiple(v * viewHeight /2, basisV)
      				.normalize();
+    outRay.coneWidth = 0;
+    outRay.coneSpread = pixelWidth / projDistance;
     
     outRay.makeOffsetRay();
   }
@@ -7,10 +7,12 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.nio.channels.FileChannel;
 import egl.math.Vector2d;
 import egl.math.Vector3d;
 import egl.math.Colord;
+import ray2.Workspace;
 
 public class Cubemap {
 
@@ -19,9 +21,12 @@ public class Cubemap {
 	double scaleFactor = 1.0;
 
 	int width, height, blockSz;
-	int mapBits; // 2^(mapBits-1) < width*height <= 2^mapBits
-	float[] imageData;
-	float[] cumProb;
+	FloatBuffer imageData; // RGB, 3 floats per pixel, mapped from the file
+
+	// Alias table over the pixels (Walker/Vose): pixel k is chosen with
+	// probability aliasProb[k], and otherwise aliasIndex[k] is chosen instead
+	float[] aliasProb;
+	int[] aliasIndex;
 
 	Vector2d faceUV = new Vector2d();
 
@@ -37,16 +42,58 @@ public class Cubemap {
 		height = hdr.height;
 		blockSz = width / 3;
 
-		for (mapBits = 0; (1 << mapBits) < width*height; mapBits++);
+		buildAliasTable();
+	}
 
-		cumProb = new float[width*height+1];
-		cumProb[0] = 0;
+	/**
+	 * Build the alias table that generate uses to pick a pixel with probability
+	 * proportional to calcPixelProb in constant time (Vose's method).
+	 */
+	protected void buildAliasTable() {
+		int n = width * height;
+		aliasProb = new float[n];
+		aliasIndex = new int[n];
+
+		double total = 0;
+		for (int k = 0; k < n; k++) {
+			aliasProb[k] = calcPixelProb(k);
+			total += aliasProb[k];
+		}
 
-		for (int k = 1; k <= width*height; k++)
-			cumProb[k] = cumProb[k-1] + calcPixelProb(k-1);
+		// Scale so that the average pixel has weight 1, and sort the pixels into
+		// those below and above average; both lists share one array, from either end
+		int[] work = new int[n];
+		int small = 0, large = n;
+		for (int k = 0; k < n; k++) {
+			aliasProb[k] = (float) (aliasProb[k] * n / total);
+			if (aliasProb[k] < 1)
+				work[small++] = k;
+			else
+				work[--large] = k;
+		}
 
-		for (int k = 1; k <= width*height; k++)
-			cumProb[k] /= cumProb[width*height];
+		// Fill each below-average pixel up to 1 with part of an above-average one
+		while (small > 0 && large < n) {
+			int s = work[--small];
+			int l = work[large];
+			aliasIndex[s] = l;
+			aliasProb[l] = (aliasProb[l] + aliasProb[s]) - 1;
+			if (aliasProb[l] < 1) {
+				large++;
+				work[small++] = l;
+			}
+		}
+
+		// What is left is 1 up to rounding error
+		while (small > 0) {
+			int s = work[--small];
+			aliasProb[s] = 1;
+			aliasIndex[s] = s;
+		}
+		for (; large < n; large++) {
+			aliasProb[work[large]] = 1;
+			aliasIndex[work[large]] = work[large];
+		}
 	}
 
 	public void setScaleFactor(double scaleFactor) {
@@ -100,18 +147,23 @@ public class Cubemap {
 	
 	public void generate(Vector2d seed, Vector3d outDirection) {
 
-		// choose a pixel
-		double searchProb = seed.x;
-		int k = 0;
-
-		for (int p = mapBits-1; p >= 0; p--)
-			if (searchProb > cumProb[k + (1 << p)])
-				k += (1 << p);
-
-		double pixelProb = cumProb[k + 1] - cumProb[k];
-		seed.x = (searchProb - cumProb[k]) / pixelProb;
+		// choose a pixel from the alias table, reusing what is left of seed.x
+		// as a fresh uniform number for the position within the pixel
+		int n = aliasProb.length;
+		double u = seed.x * n;
+		int k = Math.min((int) u, n - 1);
+		double frac = u - k;
+		double p = aliasProb[k];
+		if (frac < p) {
+			seed.x = frac / p;
+		} else {
+			seed.x = (frac - p) / (1 - p);
+			k = aliasIndex[k];
+		}
 
 		// choose u and v randomly in that pixel.  faceUV is the pixel center.
+		// (per thread, since render threads sample the environment concurrently)
+		Vector2d faceUV = Workspace.get().cubemapUV;
 		int iFace = indexToFace(k, faceUV);
 		faceUV.x += (2 * seed.x - 1) / blockSz;
 		faceUV.y += (2 * seed.y - 1) / blockSz;
@@ -170,14 +222,15 @@ public class Cubemap {
 	protected float calcPixelProb(int k) {
 		if (indexToFace(k, faceUV) == -1) return 0;
 
-		float r = imageData[0 + 3*k];
-		float g = imageData[1 + 3*k];
-		float b = imageData[2 + 3*k];
+		float r = imageData.get(0 + 3*k);
+		float g = imageData.get(1 + 3*k);
+		float b = imageData.get(2 + 3*k);
 
 		double u = faceUV.x;
 		double v = faceUV.y;
 
-		return Math.max(Math.max(r, g), b) / (float) Math.pow(1 + u*u + v*v, 1.5);
+		double d = 1 + u*u + v*v;
+		return Math.max(Math.max(r, g), b) / (float) (d * Math.sqrt(d));
 	}
 
 	public static class PNMHeaderInfo { 
@@ -185,10 +238,14 @@ public class Cubemap {
 		float maxval; 
 	}
 
-	public float[] readPFM(File pfmFile, PNMHeaderInfo hdr) {
+	/**
+	 * Map the pixels of a PFM file into memory, read only. Nothing is copied: the
+	 * returned buffer reads the file in place, and stays valid after the file is closed.
+	 */
+	public FloatBuffer readPFM(File pfmFile, PNMHeaderInfo hdr) {
 		
-		try {
-			FileInputStream inf = new FileInputStream(pfmFile);
+		try (FileInputStream inf = new FileInputStream(pfmFile)) {
+			// Unbuffered, so the channel is left just past the header
 			DataInputStream inSt = new DataInputStream(inf);
 			FileChannel inCh = inf.getChannel();
 
@@ -198,16 +255,9 @@ public class Cubemap {
 
 			//System.err.println("reading FP image: " + hdr.width + "x" + hdr.height + "x" + hdr.bands);
 
-			ByteBuffer imageBuffer = ByteBuffer.allocate(imageSize * 4);
+			ByteBuffer imageBuffer = inCh.map(FileChannel.MapMode.READ_ONLY, inCh.position(), imageSize * 4L);
 			imageBuffer.order(ByteOrder.LITTLE_ENDIAN);
-			imageBuffer.clear();
-			inCh.read(imageBuffer);
-
-			float[] imageData = new float[imageSize];
-			imageBuffer.flip();
-			imageBuffer.asFloatBuffer().get(imageData);
-
-			return imageData;
+			return imageBuffer.asFloatBuffer();
 		} catch (FileNotFoundException e) {
 			System.err.println("readPFM: file not found: " + pfmFile.getName());
 		} catch (IOException e) {
@@ -39,6 +39,7 @@ public class DirectionalLight extends Light {
 		lRec.attenuation = 1.0;
 		lRec.distance = Double.POSITIVE_INFINITY;
 		lRec.probability = 1.0;
+		lRec.light = this;
 	}
 
 	/**
@@ -25,6 +25,35 @@ public abstract class Light {
 	 * @param shadingPoint the surface point where illumination is being computed
 	 */
 	public abstract void sample(LightSamplingRecord record, Vector3d shadingPoint);
+
+	/**
+	 * Estimate how bright this light is, for choosing which lights to sample
+	 * (see LightSampler). For a local light this is the irradiance it gives a
+	 * surface facing it at unit distance; for a distant light, the irradiance it
+	 * gives at any distance. Only the ratios between lights matter.
+	 * @return the estimate, which must be positive if the light gives any light at all
+	 */
+	public double getPower() {
+		return 0.2126 * intensity.x + 0.7152 * intensity.y + 0.0722 * intensity.z;
+	}
+
+	/**
+	 * @return true if the light is at a finite position, bounded by getBounds;
+	 * false if it is infinitely far away
+	 */
+	public boolean isLocal() {
+		return false;
+	}
+
+	/**
+	 * Get the bounding box of a local light. Not used for distant lights.
+	 * @param outMin the minimum corner
+	 * @param outMax the maximum corner
+	 */
+	public void getBounds(Vector3d outMin, Vector3d outMax) {
+		outMin.set(Double.NEGATIVE_INFINITY);
+		outMax.set(Double.POSITIVE_INFINITY);
+	}
 		
 	/**
 	 * Default constructor.  Produces a unit intensity light at the origin.
@@ -0,0 +1,233 @@
+package ray2.light;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import egl.math.Vector3d;
+
+/**
+ * Chooses one light of the scene at random for a shading point, with
+ * probability roughly proportional to how much light it gives there, so that a
+ * shader can take a few light samples instead of a shadow ray to every light.
+ *
+ * Local lights are kept in a bounding volume hierarchy. Each node stores the
+ * bounds and the total power of the lights below it, and a light is chosen by
+ * walking down from the root, taking each child with probability proportional
+ * to its power over its squared distance from the shading point. This takes
+ * time logarithmic in the number of lights. Distant lights are chosen in
+ * proportion to their power, and compete with the local lights as a group.
+ *
+ * Every light that can contribute has a non-zero chance of being chosen, and
+ * the chance is folded into the probability of the light sample, so dividing
+ * by it keeps the estimate unbiased.
+ */
+public class LightSampler {
+
+	private final Light[] lights;
+
+	/*
+	 * The tree of local lights in flat arrays; node 0 is the root. An interior
+	 * node i has children left[i] and right[i] and light[i] = -1; a leaf has
+	 * light[i], the index of its light in lights.
+	 */
+	private double[] boundsMin, boundsMax;
+	private double[] power;
+	private int[] left, right, light;
+	private int nodeCount = 0;
+
+	/** The distant lights, with the running sum of their power. */
+	private final int[] distant;
+	private final double[] distantCdf;
+	private final double distantPower;
+
+	/**
+	 * Build the sampler for a set of lights. The lights must be initialized.
+	 * @param lightList the lights of the scene
+	 */
+	public LightSampler(List<Light> lightList) {
+		lights = lightList.toArray(new Light[0]);
+
+		List<Integer> local = new ArrayList<Integer>();
+		List<Integer> far = new ArrayList<Integer>();
+		for (int i = 0; i < lights.length; i++) {
+			if (lights[i].getPower() <= 0)
+				continue;
+			(lights[i].isLocal() ? local : far).add(i);
+		}
+
+		distant = new int[far.size()];
+		distantCdf = new double[far.size()];
+		double sum = 0;
+		for (int i = 0; i < distant.length; i++) {
+			distant[i] = far.get(i);
+			sum += lights[distant[i]].getPower();
+			distantCdf[i] = sum;
+		}
+		distantPower = sum;
+
+		int n = local.size();
+		boundsMin = new double[3 * Math.max(1, 2 * n - 1)];
+		boundsMax = new double[boundsMin.length];
+		power = new double[boundsMin.length / 3];
+		left = new int[power.length];
+		right = new int[power.length];
+		light = new int[power.length];
+		if (n > 0) {
+			int[] order = new int[n];
+			double[] lightMin = new double[3 * lights.length], lightMax = new double[3 * lights.length];
+			Vector3d min = new Vector3d(), max = new Vector3d();
+			for (int k = 0; k < n; k++) {
+				int i = local.get(k);
+				order[k] = i;
+				lights[i].getBounds(min, max);
+				lightMin[3 * i] = min.x; lightMin[3 * i + 1] = min.y; lightMin[3 * i + 2] = min.z;
+				lightMax[3 * i] = max.x; lightMax[3 * i + 1] = max.y; lightMax[3 * i + 2] = max.z;
+			}
+			build(order, 0, n, lightMin, lightMax);
+		}
+	}
+
+	/**
+	 * @return the number of lights that can be chosen
+	 */
+	public int size() {
+		return (nodeCount + 1) / 2 + distant.length;
+	}
+
+	/**
+	 * Build the subtree over order[start..end) and return its node index.
+	 */
+	private int build(int[] order, int start, int end, double[] lightMin, double[] lightMax) {
+		int node = nodeCount++;
+		double[] c = new double[3 * (end - start)];
+		for (int a = 0; a < 3; a++) {
+			boundsMin[3 * node + a] = Double.POSITIVE_INFINITY;
+			boundsMax[3 * node + a] = Double.NEGATIVE_INFINITY;
+		}
+		for (int k = start; k < end; k++) {
+			int i = order[k];
+			for (int a = 0; a < 3; a++) {
+				boundsMin[3 * node + a] = Math.min(boundsMin[3 * node + a], lightMin[3 * i + a]);
+				boundsMax[3 * node + a] = Math.max(boundsMax[3 * node + a], lightMax[3 * i + a]);
+			}
+			power[node] += lights[i].getPower();
+		}
+
+		if (end - start == 1) {
+			light[node] = order[start];
+			return node;
+		}
+		light[node] = -1;
+
+		// Split at the median of the light centers along the widest axis of their bounds
+		double[] cMin = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY };
+		double[] cMax = { Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+		for (int k = start; k < end; k++) {
+			int i = order[k];
+			for (int a = 0; a < 3; a++) {
+				double v = 0.5 * (lightMin[3 * i + a] + lightMax[3 * i + a]);
+				c[3 * (k - start) + a] = v;
+				cMin[a] = Math.min(cMin[a], v);
+				cMax[a] = Math.max(cMax[a], v);
+			}
+		}
+		int axis = 0;
+		for (int a = 1; a < 3; a++)
+			if (cMax[a] - cMin[a] > cMax[axis] - cMin[axis])
+				axis = a;
+		final int sortAxis = axis;
+		Integer[] sorted = new Integer[end - start];
+		for (int k = 0; k < sorted.length; k++)
+			sorted[k] = k;
+		Arrays.sort(sorted, (p, q) -> Double.compare(c[3 * p + sortAxis], c[3 * q + sortAxis]));
+		int[] copy = Arrays.copyOfRange(order, start, end);
+		for (int k = 0; k < sorted.length; k++)
+			order[start + k] = copy[sorted[k]];
+
+		int mid = (start + end) / 2;
+		left[node] = build(order, start, mid, lightMin, lightMax);
+		right[node] = build(order, mid, end, lightMin, lightMax);
+		return node;
+	}
+
+	/**
+	 * Estimate how much light a node gives at a point: its power over the squared
+	 * distance to the center of its bounds, with the distance kept at least half
+	 * the diagonal of the bounds, since the lights may be anywhere inside them.
+	 */
+	private double importance(int node, Vector3d p) {
+		int i = 3 * node;
+		double dx = 0.5 * (boundsMin[i] + boundsMax[i]) - p.x;
+		double dy = 0.5 * (boundsMin[i + 1] + boundsMax[i + 1]) - p.y;
+		double dz = 0.5 * (boundsMin[i + 2] + boundsMax[i + 2]) - p.z;
+		double ex = boundsMax[i] - boundsMin[i], ey = boundsMax[i + 1] - boundsMin[i + 1], ez = boundsMax[i + 2] - boundsMin[i + 2];
+		double d2 = dx * dx + dy * dy + dz * dz;
+		double r2 = 0.25 * (ex * ex + ey * ey + ez * ez);
+		return power[node] / Math.max(d2, Math.max(r2, 1e-12));
+	}
+
+	/**
+	 * Choose a light for a shading point and sample it. The sample is written to
+	 * lRec as by Light.sample, except that lRec.probability also includes the
+	 * probability of choosing the light; a shader dividing by it as usual gets an
+	 * unbiased estimate of the light from all the lights.
+	 *
+	 * @param lRec the record where the output is written
+	 * @param shadingPoint the surface point where illumination is being computed
+	 * @param u a uniform random number in [0, 1)
+	 * @return the light chosen, or null if there are no lights
+	 */
+	public Light sample(LightSamplingRecord lRec, Vector3d shadingPoint, double u) {
+		double pmf = 1;
+		int chosen;
+
+		// Choose between the local and distant lights
+		double localImportance = nodeCount > 0 ? importance(0, shadingPoint) : 0;
+		double total = localImportance + distantPower;
+		if (total <= 0)
+			return null;
+		double pLocal = localImportance / total;
+
+		if (u < pLocal) {
+			u /= pLocal;
+			pmf = pLocal;
+			int node = 0;
+			while (light[node] < 0) {
+				double l = importance(left[node], shadingPoint);
+				double r = importance(right[node], shadingPoint);
+				double pLeft = l + r > 0 ? l / (l + r) : 0.5;
+				if (u < pLeft) {
+					u /= pLeft;
+					pmf *= pLeft;
+					node = left[node];
+				} else {
+					u = (u - pLeft) / (1 - pLeft);
+					pmf *= 1 - pLeft;
+					node = right[node];
+				}
+			}
+			chosen = light[node];
+		} else {
+			u = (u - pLocal) / (1 - pLocal);
+			// The first light whose running sum exceeds the target
+			double target = u * distantPower;
+			int lo = 0, hi = distant.length - 1;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (distantCdf[mid] <= target)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			int k = lo;
+			pmf = (1 - pLocal) * lights[distant[k]].getPower() / distantPower;
+			chosen = distant[k];
+		}
+
+		lights[chosen].sample(lRec, shadingPoint);
+		lRec.probability *= pmf;
+		lRec.light = lights[chosen];
+		return lights[chosen];
+	}
+}
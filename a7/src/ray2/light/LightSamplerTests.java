@@ -0,0 +1,90 @@
+package ray2.light;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import egl.math.Colord;
+import egl.math.Vector3d;
+
+public class LightSamplerTests {
+    static ArrayList<Light> lights = new ArrayList<Light>();
+    static LightSampler sampler;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        // Point lights of different colors and strengths scattered through a box,
+        // a few directional lights, and a black light that should never be chosen
+        Random random = new Random(4620);
+        for (int i = 0; i < 40; ++i) {
+            PointLight l = new PointLight();
+            l.setPosition(new Vector3d(20 * random.nextDouble() - 10, 10 * random.nextDouble(), 20 * random.nextDouble() - 10));
+            l.setIntensity(new Colord(1 + 9 * random.nextDouble(), 1 + 9 * random.nextDouble(), 1 + 9 * random.nextDouble()));
+            lights.add(l);
+        }
+        for (int i = 0; i < 3; ++i) {
+            DirectionalLight l = new DirectionalLight();
+            l.setDirection(new Vector3d(i - 1, 1, 0.5 * i).normalize());
+            l.setIntensity(new Colord(0.2 * (i + 1), 0.3, 0.1 * (3 - i)));
+            lights.add(l);
+        }
+        PointLight black = new PointLight();
+        black.setPosition(new Vector3d(1, 2, 3));
+        black.setIntensity(new Colord(0, 0, 0));
+        lights.add(black);
+
+        for (Light l : lights)
+            l.init();
+        sampler = new LightSampler(lights);
+    }
+
+    @Test
+    public void testSize() {
+        assertEquals(lights.size() - 1, sampler.size());
+    }
+
+    @Test
+    public void testEmpty() {
+        LightSampler empty = new LightSampler(new ArrayList<Light>());
+        assertEquals(0, empty.size());
+        assertNull(empty.sample(new LightSamplingRecord(), new Vector3d(), 0.5));
+    }
+
+    @Test
+    public void testUnbiased() {
+        Vector3d[] points = {
+            new Vector3d(0, 0, 0),
+            new Vector3d(9, 5, -9),
+            new Vector3d(-3, 12, 2),
+            new Vector3d(50, -20, 30)
+        };
+        LightSamplingRecord lRec = new LightSamplingRecord();
+        int n = 200000;
+        for (Vector3d p : points) {
+            // The exact sum over all lights
+            Colord exact = new Colord();
+            for (Light l : lights) {
+                l.sample(lRec, p);
+                exact.add(new Colord(l.intensity).mul(lRec.attenuation / lRec.probability));
+            }
+
+            // The estimate from one chosen light per sample, over stratified u
+            Colord estimate = new Colord();
+            for (int i = 0; i < n; ++i) {
+                Light l = sampler.sample(lRec, p, (i + 0.5) / n);
+                assertNotNull(l);
+                assertSame(l, lRec.light);
+                assertTrue(lRec.probability > 0);
+                estimate.add(new Colord(l.intensity).mul(lRec.attenuation / lRec.probability));
+            }
+            estimate.mul(1.0 / n);
+
+            for (int c = 0; c < 3; ++c)
+                assertEquals("channel " + c + " at " + p, exact.get(c), estimate.get(c), 1e-2 * exact.get(c));
+        }
+    }
+}
@@ -24,4 +24,7 @@ public class LightSamplingRecord {
 	/** The probability, or probability density, with which the sample point was chosen. */
 	public double probability;
 
+	/** The light that was sampled, or null if it is not known. */
+	public Light light;
+
 }
@@ -38,8 +38,20 @@ public class PointLight extends Light {
 		lRec.attenuation = 1.0 / shadingPoint.distSq(this.position);
 		lRec.distance = lRec.direction.len();
 		lRec.probability = 1.0;
+		lRec.light = this;
 	}
 	
+	@Override
+	public boolean isLocal() {
+		return true;
+	}
+
+	@Override
+	public void getBounds(Vector3d outMin, Vector3d outMax) {
+		outMin.set(position);
+		outMax.set(position);
+	}
+
 	/**
 	 * Default constructor.  Produces a unit intensity light at the origin.
 	 */
@@ -64,11 +64,44 @@ public class RectangleLight extends Light {
 	@Override
 	public void sample(LightSamplingRecord lRec, Vector3d shadingPoint) {
 		// TODO#A7: Fill in this function
-		// 1. sample light source point on the rectangle area light in uniform-random fashion
+		// 1. sample light source point on the rectangle area light in uniform-random fashion,
+		//    taking the two numbers from Workspace.get().random, one after the other
 		// 2. compute the l vector, i.e. the direction the light incidents on the shading point
 		// 3. compute the distance between light point and shading point, and get attenuation
 		// 4. compute the probablity this light point is sampled, which is used for Monte-Carlo integration
-		// 5. write relevant info to LightSamplingRecord object
+		// 5. write relevant info to LightSamplingRecord object, including lRec.light = this
+	}
+
+	/**
+	 * The intensity is the radiance of the source, so facing it at unit distance
+	 * gives about intensity times its area.
+	 */
+	@Override
+	public double getPower() {
+		return super.getPower() * width * height;
+	}
+
+	@Override
+	public boolean isLocal() {
+		return true;
+	}
+
+	@Override
+	public void getBounds(Vector3d outMin, Vector3d outMax) {
+		// Corners from the frame given in the scene file, independent of init
+		Vector3d w = new Vector3d(normalDir).normalize();
+		Vector3d u = new Vector3d(upDir).cross(w).normalize();
+		Vector3d v = new Vector3d(w).cross(u);
+		outMin.set(Double.POSITIVE_INFINITY);
+		outMax.set(Double.NEGATIVE_INFINITY);
+		Vector3d corner = new Vector3d();
+		for (int i = -1; i <= 1; i += 2) {
+			for (int j = -1; j <= 1; j += 2) {
+				corner.set(position).addMultiple(i * width / 2, u).addMultiple(j * height / 2, v);
+				outMin.set(Math.min(outMin.x, corner.x), Math.min(outMin.y, corner.y), Math.min(outMin.z, corner.z));
+				outMax.set(Math.max(outMax.x, corner.x), Math.max(outMax.y, corner.y), Math.max(outMax.z, corner.z));
+			}
+		}
 	}
 
 	/**
@@ -0,0 +1,314 @@
+package ray2.mesh;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import egl.math.Vector2d;
+import egl.math.Vector3d;
+
+/**
+ * A mesh in a compact binary format, which loads far faster than an OBJ file:
+ * the file is memory-mapped, and the accessors of MeshData read positions,
+ * texture coordinates, normals and indices straight from the mapped blocks.
+ * No text is tokenized, no numbers are parsed, and no objects are created per
+ * vertex or per face, so loading is bounded by I/O.
+ *
+ * The file is a header followed by contiguous blocks, all little-endian:
+ *
+ *   header:            magic "R2MS", version, and the number of positions,
+ *                      uvs, normals, faces, vertex indices, uv indices and
+ *                      normal indices (ints)
+ *   positions:         x, y, z for each position (floats)
+ *   uvs:               u, v for each uv (floats)
+ *   normals:           x, y, z for each normal (floats)
+ *   face starts:       for each face, the index of its first vertex in the
+ *                      index blocks, then the total number of vertices (ints)
+ *   position indices:  the position of each vertex of each face (ints)
+ *   uv indices:        the uv of each vertex, or -1 where its face has no uvs;
+ *                      empty if no face has uvs (ints)
+ *   normal indices:    the normal of each vertex, or -1 where its face has no
+ *                      normals; empty if no face has normals (ints)
+ *
+ * Indices are 0-based whatever OBJFace.indexBase is. Convert an OBJ file with
+ *
+ *   java ray2.mesh.BinaryMesh in.obj out.mesh
+ */
+public class BinaryMesh implements MeshData {
+
+	private static final int MAGIC = 0x52324D53; // "R2MS"
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 9 * 4;
+
+	/** The blocks of the file; only absolute gets are used, so they can be shared between threads. */
+	private final FloatBuffer positions, uvs, normals;
+	private final IntBuffer starts, positionIndices, uvIndices, normalIndices;
+	private final int nPositions, nUVs, nNormals, nFaces;
+
+	private BinaryMesh(ByteBuffer buffer, int nPositions, int nUVs, int nNormals, int nFaces,
+			int nIndices, int nUVIndices, int nNormalIndices) {
+		this.nPositions = nPositions;
+		this.nUVs = nUVs;
+		this.nNormals = nNormals;
+		this.nFaces = nFaces;
+		int offset = HEADER_SIZE;
+		positions = block(buffer, offset, 4 * 3 * nPositions).asFloatBuffer();
+		uvs = block(buffer, offset += 4 * 3 * nPositions, 4 * 2 * nUVs).asFloatBuffer();
+		normals = block(buffer, offset += 4 * 2 * nUVs, 4 * 3 * nNormals).asFloatBuffer();
+		starts = block(buffer, offset += 4 * 3 * nNormals, 4 * (nFaces + 1)).asIntBuffer();
+		positionIndices = block(buffer, offset += 4 * (nFaces + 1), 4 * nIndices).asIntBuffer();
+		uvIndices = block(buffer, offset += 4 * nIndices, 4 * nUVIndices).asIntBuffer();
+		normalIndices = block(buffer, offset += 4 * nUVIndices, 4 * nNormalIndices).asIntBuffer();
+	}
+
+	/**
+	 * @return the length bytes of buffer from offset on, as a little-endian buffer of their own
+	 */
+	private static ByteBuffer block(ByteBuffer buffer, int offset, int length) {
+		ByteBuffer block = buffer.duplicate();
+		block.position(offset);
+		block.limit(offset + length);
+		return block.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Convert the OBJ file named by the first argument to a binary mesh file
+	 * named by the second.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.out.println("Usage: java ray2.mesh.BinaryMesh in.obj out.mesh");
+			return;
+		}
+		long start = System.currentTimeMillis();
+		OBJMesh mesh = new OBJMesh(args[0]);
+		write(mesh, args[1]);
+		System.out.println("Converted " + mesh.faces.size() + " faces from " + args[0] + " to " + args[1]
+				+ " in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * @param filename the name of a file
+	 * @return true if the file exists and starts like a binary mesh file
+	 */
+	public static boolean isBinaryMesh(String filename) {
+		Path path = Paths.get(filename);
+		if (!Files.isRegularFile(path))
+			return false;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+			return channel.read(magic) == 4 && magic.getInt(0) == MAGIC;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Map a binary mesh file. The faces and their indices are checked, so that a
+	 * malformed file is reported here rather than while rendering; the
+	 * attributes are only read when they are asked for.
+	 * @param filename the name of the file
+	 * @return the mesh it holds
+	 * @throws IOException if the file cannot be read or is not a valid binary mesh file
+	 */
+	public static BinaryMesh read(String filename) throws IOException {
+		MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+			throw invalid("Not a binary mesh file of version " + VERSION, filename);
+		int nPositions = buffer.getInt(8), nUVs = buffer.getInt(12), nNormals = buffer.getInt(16);
+		int nFaces = buffer.getInt(20), nIndices = buffer.getInt(24);
+		int nUVIndices = buffer.getInt(28), nNormalIndices = buffer.getInt(32);
+		if (nPositions < 0 || nUVs < 0 || nNormals < 0 || nFaces < 0 || nIndices < 0
+				|| (nUVIndices != 0 && nUVIndices != nIndices) || (nNormalIndices != 0 && nNormalIndices != nIndices)
+				|| buffer.capacity() != size(nPositions, nUVs, nNormals, nFaces, nIndices, nUVIndices, nNormalIndices))
+			throw invalid("Truncated binary mesh file", filename);
+
+		BinaryMesh mesh = new BinaryMesh(buffer, nPositions, nUVs, nNormals, nFaces, nIndices, nUVIndices, nNormalIndices);
+		if (!mesh.isValid())
+			throw invalid("Malformed face in binary mesh file", filename);
+		return mesh;
+	}
+
+	private static IOException invalid(String message, String filename) {
+		return new OBJMesh.OBJFileFormatException(message + ": " + filename);
+	}
+
+	/**
+	 * @return true if every face has at least three vertices, and every index
+	 *   is in range
+	 */
+	private boolean isValid() {
+		if (starts.get(0) != 0 || starts.get(nFaces) != positionIndices.capacity())
+			return false;
+		for (int f = 0; f < nFaces; f++) {
+			int start = starts.get(f), end = starts.get(f + 1);
+			if (end - start < 3 || end > positionIndices.capacity())
+				return false;
+			boolean faceUVs = hasUVs(f), faceNormals = hasNormals(f);
+			for (int i = start; i < end; i++) {
+				if (!inRange(positionIndices.get(i), nPositions)
+						|| (faceUVs ? !inRange(uvIndices.get(i), nUVs) : uvIndices.capacity() > 0 && uvIndices.get(i) != -1)
+						|| (faceNormals ? !inRange(normalIndices.get(i), nNormals) : normalIndices.capacity() > 0 && normalIndices.get(i) != -1))
+					return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean inRange(int index, int count) {
+		return index >= 0 && index < count;
+	}
+
+	@Override
+	public int getPositionCount() { return nPositions; }
+
+	@Override
+	public int getUVCount() { return nUVs; }
+
+	@Override
+	public int getNormalCount() { return nNormals; }
+
+	@Override
+	public int getFaceCount() { return nFaces; }
+
+	@Override
+	public int getVertexCount(int face) {
+		return starts.get(face + 1) - starts.get(face);
+	}
+
+	@Override
+	public boolean hasUVs(int face) {
+		return uvIndices.capacity() > 0 && uvIndices.get(starts.get(face)) >= 0;
+	}
+
+	@Override
+	public boolean hasNormals(int face) {
+		return normalIndices.capacity() > 0 && normalIndices.get(starts.get(face)) >= 0;
+	}
+
+	@Override
+	public int getPositionIndex(int face, int vertex) {
+		return positionIndices.get(starts.get(face) + vertex);
+	}
+
+	@Override
+	public int getUVIndex(int face, int vertex) {
+		return uvIndices.get(starts.get(face) + vertex);
+	}
+
+	@Override
+	public int getNormalIndex(int face, int vertex) {
+		return normalIndices.get(starts.get(face) + vertex);
+	}
+
+	@Override
+	public void getPosition(int index, Vector3d out) {
+		out.set(positions.get(3 * index), positions.get(3 * index + 1), positions.get(3 * index + 2));
+	}
+
+	@Override
+	public void getUV(int index, Vector2d out) {
+		out.set(uvs.get(2 * index), uvs.get(2 * index + 1));
+	}
+
+	@Override
+	public void getNormal(int index, Vector3d out) {
+		out.set(normals.get(3 * index), normals.get(3 * index + 1), normals.get(3 * index + 2));
+	}
+
+	/**
+	 * Write a mesh to a binary mesh file. The file is written to a temporary
+	 * file which then replaces it, so a failed write leaves no partial file.
+	 * @param mesh the mesh, which must be valid (see OBJMesh.isValid)
+	 * @param filename the name of the file
+	 * @throws IOException if there is a problem writing the file
+	 */
+	public static void write(MeshData mesh, String filename) throws IOException {
+		int nFaces = mesh.getFaceCount();
+		int nIndices = 0;
+		boolean anyUVs = false, anyNormals = false;
+		for (int f = 0; f < nFaces; f++) {
+			nIndices += mesh.getVertexCount(f);
+			anyUVs |= mesh.hasUVs(f);
+			anyNormals |= mesh.hasNormals(f);
+		}
+		int nUVIndices = anyUVs ? nIndices : 0, nNormalIndices = anyNormals ? nIndices : 0;
+		int nPositions = mesh.getPositionCount(), nUVs = mesh.getUVCount(), nNormals = mesh.getNormalCount();
+		long size = size(nPositions, nUVs, nNormals, nFaces, nIndices, nUVIndices, nNormalIndices);
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("Mesh is too large for a binary mesh file: " + size + " bytes");
+		ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(MAGIC).putInt(VERSION);
+		buffer.putInt(nPositions).putInt(nUVs).putInt(nNormals);
+		buffer.putInt(nFaces).putInt(nIndices).putInt(nUVIndices).putInt(nNormalIndices);
+
+		Vector3d v = new Vector3d();
+		Vector2d vt = new Vector2d();
+		for (int i = 0; i < nPositions; i++) {
+			mesh.getPosition(i, v);
+			buffer.putFloat((float) v.x).putFloat((float) v.y).putFloat((float) v.z);
+		}
+		for (int i = 0; i < nUVs; i++) {
+			mesh.getUV(i, vt);
+			buffer.putFloat((float) vt.x).putFloat((float) vt.y);
+		}
+		for (int i = 0; i < nNormals; i++) {
+			mesh.getNormal(i, v);
+			buffer.putFloat((float) v.x).putFloat((float) v.y).putFloat((float) v.z);
+		}
+		int start = 0;
+		for (int f = 0; f < nFaces; f++) {
+			buffer.putInt(start);
+			start += mesh.getVertexCount(f);
+		}
+		buffer.putInt(start);
+		for (int f = 0; f < nFaces; f++)
+			for (int k = 0; k < mesh.getVertexCount(f); k++)
+				buffer.putInt(mesh.getPositionIndex(f, k));
+		if (anyUVs)
+			for (int f = 0; f < nFaces; f++)
+				for (int k = 0; k < mesh.getVertexCount(f); k++)
+					buffer.putInt(mesh.hasUVs(f) ? mesh.getUVIndex(f, k) : -1);
+		if (anyNormals)
+			for (int f = 0; f < nFaces; f++)
+				for (int k = 0; k < mesh.getVertexCount(f); k++)
+					buffer.putInt(mesh.hasNormals(f) ? mesh.getNormalIndex(f, k) : -1);
+		buffer.rewind();
+
+		Path path = Paths.get(filename).toAbsolutePath();
+		Path temp = Paths.get(path + ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temp,
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+			}
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * @return the size in bytes of a binary mesh file with the given counts
+	 */
+	private static long size(int nPositions, int nUVs, int nNormals, int nFaces,
+			int nIndices, int nUVIndices, int nNormalIndices) {
+		return HEADER_SIZE + 4L * (3L * nPositions + 2L * nUVs + 3L * nNormals)
+				+ 4L * ((long) nFaces + 1 + nIndices + nUVIndices + nNormalIndices);
+	}
+}
@@ -0,0 +1,76 @@
+package ray2.mesh;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import egl.math.Vector2;
+import egl.math.Vector2d;
+import egl.math.Vector3;
+import egl.math.Vector3d;
+
+public class BinaryMeshTests {
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		// A quad with positions only and a triangle with every attribute
+		OBJMesh mesh = new OBJMesh();
+		for (int i = 0; i < 4; i++) {
+			mesh.positions.add(new Vector3(i & 1, i >> 1, 0.1f * i));
+			mesh.uvs.add(new Vector2(0.25f * i, 1 - 0.25f * i));
+		}
+		mesh.normals.add(new Vector3(0, 0, 1));
+		int base = OBJFace.indexBase;
+		OBJFace quad = new OBJFace(4, false, false);
+		quad.positions = new int[] { base, base + 1, base + 3, base + 2 };
+		OBJFace tri = new OBJFace(3, true, true);
+		for (int k = 0; k < 3; k++)
+			tri.setVertex(k, base + k + 1, base + 3 - k, base);
+		mesh.faces.add(quad);
+		mesh.faces.add(tri);
+
+		File file = File.createTempFile("mesh", ".mesh");
+		try {
+			BinaryMesh.write(mesh, file.getPath());
+			assertTrue(BinaryMesh.isBinaryMesh(file.getPath()));
+			BinaryMesh read = BinaryMesh.read(file.getPath());
+			assertEquals(4, read.getPositionCount());
+			assertEquals(4, read.getUVCount());
+			assertEquals(1, read.getNormalCount());
+			assertEquals(2, read.getFaceCount());
+
+			Vector3d p = new Vector3d();
+			Vector2d t = new Vector2d();
+			for (int i = 0; i < 4; i++) {
+				read.getPosition(i, p);
+				assertTrue(p.equals(new Vector3d(mesh.positions.get(i))));
+				read.getUV(i, t);
+				assertTrue(t.equals(new Vector2d(mesh.uvs.get(i))));
+			}
+			read.getNormal(0, p);
+			assertTrue(p.equals(new Vector3d(0, 0, 1)));
+
+			assertEquals(4, read.getVertexCount(0));
+			assertFalse(read.hasUVs(0) || read.hasNormals(0));
+			assertEquals(3, read.getVertexCount(1));
+			assertTrue(read.hasUVs(1) && read.hasNormals(1));
+			for (int k = 0; k < 4; k++)
+				assertEquals(quad.positions[k] - base, read.getPositionIndex(0, k));
+			for (int k = 0; k < 3; k++) {
+				assertEquals(tri.positions[k] - base, read.getPositionIndex(1, k));
+				assertEquals(tri.uvs[k] - base, read.getUVIndex(1, k));
+				assertEquals(tri.normals[k] - base, read.getNormalIndex(1, k));
+			}
+
+			OBJFace face = read.getFace(1);
+			assertArrayEquals(tri.positions, face.positions);
+			assertArrayEquals(tri.uvs, face.uvs);
+			assertArrayEquals(tri.normals, face.normals);
+		} finally {
+			file.delete();
+		}
+	}
+}
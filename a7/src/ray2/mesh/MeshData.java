@@ -0,0 +1,133 @@
+package ray2.mesh;
+
+import egl.math.Vector2d;
+import egl.math.Vector3d;
+
+/**
+ * The vertex attributes and faces of a triangle mesh, as the ray tracer reads
+ * them. OBJMesh holds them in lists of objects; BinaryMesh reads them straight
+ * from a memory-mapped file. Attributes are copied into vectors supplied by
+ * the caller, so reading a mesh allocates nothing.
+ *
+ * Attributes and faces are numbered from 0, whatever OBJFace.indexBase is.
+ */
+public interface MeshData {
+
+	/** @return the number of vertex positions */
+	int getPositionCount();
+
+	/** @return the number of texture coordinates */
+	int getUVCount();
+
+	/** @return the number of vertex normals */
+	int getNormalCount();
+
+	/** @return the number of faces */
+	int getFaceCount();
+
+	/**
+	 * @param face the index of a face
+	 * @return the number of vertices of the face
+	 */
+	int getVertexCount(int face);
+
+	/**
+	 * @param face the index of a face
+	 * @return true if the vertices of the face have texture coordinates
+	 */
+	boolean hasUVs(int face);
+
+	/**
+	 * @param face the index of a face
+	 * @return true if the vertices of the face have normals
+	 */
+	boolean hasNormals(int face);
+
+	/**
+	 * @param face the index of a face
+	 * @param vertex the index of a vertex of the face
+	 * @return the index of the position of the vertex
+	 */
+	int getPositionIndex(int face, int vertex);
+
+	/**
+	 * @param face the index of a face that has texture coordinates
+	 * @param vertex the index of a vertex of the face
+	 * @return the index of the texture coordinates of the vertex
+	 */
+	int getUVIndex(int face, int vertex);
+
+	/**
+	 * @param face the index of a face that has normals
+	 * @param vertex the index of a vertex of the face
+	 * @return the index of the normal of the vertex
+	 */
+	int getNormalIndex(int face, int vertex);
+
+	/**
+	 * @param index the index of a position
+	 * @param out output, set to the position
+	 */
+	void getPosition(int index, Vector3d out);
+
+	/**
+	 * @param index the index of texture coordinates
+	 * @param out output, set to the texture coordinates
+	 */
+	void getUV(int index, Vector2d out);
+
+	/**
+	 * @param index the index of a normal
+	 * @param out output, set to the normal
+	 */
+	void getNormal(int index, Vector3d out);
+
+	/**
+	 * Get the position of a vertex of an OBJFace of this mesh.
+	 * @param face the face
+	 * @param vertex the index of the vertex in the face
+	 * @param out output, set to the position
+	 */
+	default void getPosition(OBJFace face, int vertex, Vector3d out) {
+		getPosition(face.positions[vertex] - OBJFace.indexBase, out);
+	}
+
+	/**
+	 * Get the texture coordinates of a vertex of an OBJFace of this mesh.
+	 * @param face the face, which must have texture coordinates
+	 * @param vertex the index of the vertex in the face
+	 * @param out output, set to the texture coordinates
+	 */
+	default void getUV(OBJFace face, int vertex, Vector2d out) {
+		getUV(face.uvs[vertex] - OBJFace.indexBase, out);
+	}
+
+	/**
+	 * Get the normal of a vertex of an OBJFace of this mesh.
+	 * @param face the face, which must have normals
+	 * @param vertex the index of the vertex in the face
+	 * @param out output, set to the normal
+	 */
+	default void getNormal(OBJFace face, int vertex, Vector3d out) {
+		getNormal(face.normals[vertex] - OBJFace.indexBase, out);
+	}
+
+	/**
+	 * Get a face as an OBJFace, with indices starting at OBJFace.indexBase.
+	 * Meshes that do not hold OBJFaces create a new one on every call.
+	 * @param face the index of the face
+	 * @return the face
+	 */
+	default OBJFace getFace(int face) {
+		int n = getVertexCount(face);
+		OBJFace out = new OBJFace(n, hasUVs(face), hasNormals(face));
+		for (int k = 0; k < n; k++) {
+			out.positions[k] = getPositionIndex(face, k) + OBJFace.indexBase;
+			if (out.hasUVs())
+				out.uvs[k] = getUVIndex(face, k) + OBJFace.indexBase;
+			if (out.hasNormals())
+				out.normals[k] = getNormalIndex(face, k) + OBJFace.indexBase;
+		}
+		return out;
+	}
+}
@@ -0,0 +1,46 @@
+package ray2.mesh;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import egl.math.Vector3;
+
+public class OBJMeshTests {
+
+	@Test
+	public void testParse() throws IOException {
+		// Mixed line endings, comments, blank lines and relative indices
+		String obj = "# a quad and a triangle\r\n"
+				+ "v 0 0 0\r\nv 1 0 0\nv 1 1 0\rv 0 1 -1.5e-1\n"
+				+ "\n"
+				+ "vt 0.5 .25\n"
+				+ "vn 0 0 1\n"
+				+ "f 1 2 3 4\n"
+				+ "  f -4/1/1 -3//-1 -1/-1/\n";
+		File file = File.createTempFile("mesh", ".obj");
+		try {
+			Files.write(file.toPath(), obj.getBytes(StandardCharsets.UTF_8));
+			OBJMesh mesh = new OBJMesh(file.getPath());
+			assertTrue(mesh.isValid(false));
+			assertEquals(4, mesh.positions.size());
+			assertEquals(new Vector3(0, 1, -0.15f), mesh.positions.get(3));
+			assertEquals(0.25f, mesh.uvs.get(0).y, 0);
+			assertEquals(2, mesh.faces.size());
+
+			int base = OBJFace.indexBase;
+			OBJFace tri = mesh.faces.get(1);
+			assertArrayEquals(new int[] { base, base + 1, base + 3 }, tri.positions);
+			assertArrayEquals(new int[] { base, 0, base }, tri.uvs);
+			assertArrayEquals(new int[] { base, base, 0 }, tri.normals);
+			assertFalse(mesh.faces.get(0).hasUVs());
+		} finally {
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,462 @@
+package ray2.mesh;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import egl.math.Vector2;
+import egl.math.Vector3;
+
+/**
+ * The parser behind OBJMesh.parseOBJ. The file is cut at line boundaries into
+ * chunks of a few megabytes, and the chunks are read with positional NIO reads
+ * and parsed in parallel. Each chunk scans its bytes directly, parsing numbers
+ * with a hand-written scanner, into growable primitive arrays; once all chunks
+ * are done, the Vector3s, Vector2s and OBJFaces of the mesh are created from
+ * them, again in parallel, each chunk at its offset in the mesh.
+ *
+ * The mesh is the same as the one the line-by-line parser built: numbers are
+ * rounded exactly as by Float.parseFloat (which the scanner falls back on for
+ * anything but plain decimal numbers), lines are accepted and rejected by the
+ * same rules, and the first malformed line is reported with the same message.
+ * Besides, relative (negative) indices are resolved to the vertices they refer
+ * to, which needs the number of vertices listed by earlier chunks; blank and
+ * indented lines are accepted; and smoothing groups and object names (s and o
+ * lines) are skipped without a warning.
+ *
+ * The same parser reads meshes in a1 (meshgen) and a7 (ray2.mesh). The two
+ * copies differ only in their package and that of Vector2 and Vector3, and
+ * are changed together.
+ */
+class OBJParser {
+
+	/** The size of the chunks the file is cut into. */
+	static final int CHUNK_SIZE = 1 << 22;
+
+	/** Exactly representable powers of ten, for the fast path of parseFloat. */
+	private static final double[] POWERS_OF_TEN = new double[23];
+
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++)
+			POWERS_OF_TEN[i] = 10 * POWERS_OF_TEN[i - 1];
+	}
+
+	private static final byte HAS_UVS = 1, HAS_NORMALS = 2;
+
+	/**
+	 * Parse an OBJ file into mesh, which must be empty.
+	 * @throws IOException if there is a problem reading the file
+	 * @throws OBJMesh.OBJFileFormatException if the file is malformed
+	 */
+	static void parse(OBJMesh mesh, String filename) throws IOException {
+		Chunk[] chunks;
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			long[] bounds = split(channel);
+			chunks = new Chunk[bounds.length - 1];
+			for (int i = 0; i < chunks.length; i++)
+				chunks[i] = new Chunk(mesh, channel, bounds[i], bounds[i + 1]);
+			Arrays.stream(chunks).parallel().forEach(Chunk::parse);
+		}
+
+		// Warnings and errors are reported in the order of the file
+		for (Chunk chunk : chunks) {
+			for (String warning : chunk.warnings)
+				System.err.println(warning);
+			if (chunk.error instanceof IOException)
+				throw (IOException) chunk.error;
+			if (chunk.error != null)
+				throw (RuntimeException) chunk.error;
+		}
+
+		int positions = 0, uvs = 0, normals = 0, faces = 0;
+		for (Chunk chunk : chunks) {
+			chunk.positionOffset = positions;
+			chunk.uvOffset = uvs;
+			chunk.normalOffset = normals;
+			chunk.faceOffset = faces;
+			positions += chunk.positionCount / 3;
+			uvs += chunk.uvCount / 2;
+			normals += chunk.normalCount / 3;
+			faces += chunk.faceCount;
+		}
+		Vector3[] positionArray = new Vector3[positions];
+		Vector2[] uvArray = new Vector2[uvs];
+		Vector3[] normalArray = new Vector3[normals];
+		OBJFace[] faceArray = new OBJFace[faces];
+		Arrays.stream(chunks).parallel().forEach(chunk -> chunk.build(positionArray, uvArray, normalArray, faceArray));
+
+		mesh.positions.addAll(Arrays.asList(positionArray));
+		mesh.uvs.addAll(Arrays.asList(uvArray));
+		mesh.normals.addAll(Arrays.asList(normalArray));
+		mesh.faces.addAll(Arrays.asList(faceArray));
+	}
+
+	/**
+	 * @return the offsets the chunks of the file start at, each just after a
+	 *   line feed, followed by the size of the file
+	 */
+	private static long[] split(FileChannel channel) throws IOException {
+		long size = channel.size();
+		long[] bounds = new long[(int) (size / CHUNK_SIZE) + 2];
+		int n = 1;
+		ByteBuffer window = ByteBuffer.allocate(1 << 12);
+		long position = CHUNK_SIZE;
+		while (position < size) {
+			// Look for the end of the line that the nominal boundary falls in
+			window.clear();
+			int read = channel.read(window, position);
+			if (read <= 0)
+				break;
+			int i = 0;
+			while (i < read && window.get(i) != '\n')
+				i++;
+			position += i;
+			if (i == read)
+				continue;
+			bounds[n++] = ++position;
+			position += CHUNK_SIZE;
+		}
+		bounds[n++] = size;
+		return Arrays.copyOf(bounds, n);
+	}
+
+	/**
+	 * A range of whole lines of the file and what they list.
+	 */
+	private static class Chunk {
+		private final OBJMesh mesh;
+		private final FileChannel channel;
+		private final long start, end;
+
+		/* The bytes of the chunk, while it is parsed. */
+		private byte[] bytes;
+
+		/* The start and end of each token of the current line. */
+		private int[] tokens = new int[32];
+
+		/* Coordinates: 3 per position and normal, 2 per uv. */
+		float[] positions = new float[1024], uvs = new float[1024], normals = new float[1024];
+		int positionCount, uvCount, normalCount;
+
+		/*
+		 * Faces: the number of vertices and the HAS_UVS and HAS_NORMALS flags of
+		 * each face; and the indices of each vertex, 0 for a uv or normal that a
+		 * vertex does not list.
+		 */
+		int[] faceSizes = new int[256];
+		byte[] faceFlags = new byte[256];
+		int[] facePositions = new int[1024], faceUVs = new int[1024], faceNormals = new int[1024];
+		int faceCount, vertexCount;
+
+		/*
+		 * The vertices whose indices were relative: they are relative to the
+		 * start of the chunk until the number of vertices before it is known.
+		 */
+		int[] relativePositions = new int[0], relativeUVs = new int[0], relativeNormals = new int[0];
+		int relativePositionCount, relativeUVCount, relativeNormalCount;
+
+		/* Where the chunk's vertices and faces start in the mesh. */
+		int positionOffset, uvOffset, normalOffset, faceOffset;
+
+		final ArrayList<String> warnings = new ArrayList<>();
+
+		/** The exception the first malformed line caused, if any. */
+		Exception error;
+
+		Chunk(OBJMesh mesh, FileChannel channel, long start, long end) {
+			this.mesh = mesh;
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+		}
+
+		void parse() {
+			try {
+				bytes = new byte[(int) (end - start)];
+				ByteBuffer buffer = ByteBuffer.wrap(bytes);
+				while (buffer.hasRemaining())
+					if (channel.read(buffer, start + buffer.position()) < 0)
+						throw new IOException("File ended while it was read");
+
+				// Lines end at a line feed, a carriage return, or both, as for BufferedReader
+				int p = 0;
+				while (p < bytes.length) {
+					int lineEnd = p;
+					while (lineEnd < bytes.length && bytes[lineEnd] != '\n' && bytes[lineEnd] != '\r')
+						lineEnd++;
+					parseLine(p, lineEnd);
+					p = lineEnd + 1;
+					if (lineEnd + 1 < bytes.length && bytes[lineEnd] == '\r' && bytes[lineEnd + 1] == '\n')
+						p++;
+				}
+			} catch (IOException | RuntimeException e) {
+				error = e;
+			}
+			bytes = null;
+			tokens = null;
+		}
+
+		private void parseLine(int lineStart, int lineEnd) throws IOException {
+			int n = tokenize(lineStart, lineEnd);
+			if (n == 0) // Blank line
+				return;
+			int keyStart = tokens[0], keyLength = tokens[1] - tokens[0];
+			if (bytes[keyStart] == '#') { // Comment
+				return;
+			} else if (keyLength == 1 && (bytes[keyStart] == 's' || bytes[keyStart] == 'o')) {
+				return;
+			} else if (keyLength == 1 && bytes[keyStart] == 'v') { // Vertex position
+				if (n != 4)
+					throw new OBJMesh.OBJFileFormatException("Malformed vertex position specification: " + line(lineStart, lineEnd));
+				positions = ensure(positions, positionCount + 3);
+				for (int i = 1; i < 4; i++)
+					positions[positionCount++] = parseFloat(tokens[2 * i], tokens[2 * i + 1]);
+			} else if (keyLength == 2 && bytes[keyStart] == 'v' && bytes[keyStart + 1] == 't') { // Vertex texture coordinate (UV)
+				if (n != 3)
+					throw new OBJMesh.OBJFileFormatException("Malformed vertex texture coordinate specification: " + line(lineStart, lineEnd));
+				uvs = ensure(uvs, uvCount + 2);
+				for (int i = 1; i < 3; i++)
+					uvs[uvCount++] = parseFloat(tokens[2 * i], tokens[2 * i + 1]);
+			} else if (keyLength == 2 && bytes[keyStart] == 'v' && bytes[keyStart + 1] == 'n') { // Vertex normal
+				if (n != 4)
+					throw new OBJMesh.OBJFileFormatException("Malformed vertex normal specification: " + line(lineStart, lineEnd));
+				normals = ensure(normals, normalCount + 3);
+				for (int i = 1; i < 4; i++)
+					normals[normalCount++] = parseFloat(tokens[2 * i], tokens[2 * i + 1]);
+			} else if (keyLength == 1 && bytes[keyStart] == 'f') { // Face
+				if (n < 4)
+					throw new OBJMesh.OBJFileFormatException("Malformed face specification: " + line(lineStart, lineEnd));
+				parseFace(n - 1, lineStart, lineEnd);
+			} else {
+				warnings.add("Warning: ignored unrecognized OBJ specifier: " + string(keyStart, tokens[1]));
+			}
+		}
+
+		private void parseFace(int nVerts, int lineStart, int lineEnd) throws IOException {
+			if (faceCount == faceSizes.length) {
+				faceSizes = Arrays.copyOf(faceSizes, 2 * faceCount);
+				faceFlags = Arrays.copyOf(faceFlags, 2 * faceCount);
+			}
+			facePositions = ensure(facePositions, vertexCount + nVerts);
+			faceUVs = ensure(faceUVs, vertexCount + nVerts);
+			faceNormals = ensure(faceNormals, vertexCount + nVerts);
+			byte flags = 0;
+			for (int i = 0; i < nVerts; i++) {
+				int v = vertexCount + i;
+				int tokenStart = tokens[2 * i + 2], tokenEnd = tokens[2 * i + 3];
+
+				// The parts between slashes, as String.split gives them: trailing
+				// empty parts are dropped, and at most three may remain
+				while (tokenEnd > tokenStart && bytes[tokenEnd - 1] == '/')
+					tokenEnd--;
+				int slash1 = indexOfSlash(tokenStart, tokenEnd);
+				int slash2 = slash1 < tokenEnd ? indexOfSlash(slash1 + 1, tokenEnd) : tokenEnd;
+				int parts = slash2 < tokenEnd ? 3 : slash1 < tokenEnd ? 2 : 1;
+				if (tokenEnd == tokenStart || (parts == 3 && indexOfSlash(slash2 + 1, tokenEnd) < tokenEnd))
+					throw new OBJMesh.OBJFileFormatException("Malformed face specification: " + line(lineStart, lineEnd));
+
+				faceUVs[v] = faceNormals[v] = 0;
+				if (parts == 3 && slash2 + 1 < tokenEnd) {
+					flags |= HAS_NORMALS;
+					faceNormals[v] = index(slash2 + 1, tokenEnd, normalCount / 3, v, 2);
+				}
+				if (parts >= 2 && slash1 + 1 < slash2) {
+					flags |= HAS_UVS;
+					faceUVs[v] = index(slash1 + 1, slash2, uvCount / 2, v, 1);
+				}
+				facePositions[v] = index(tokenStart, slash1, positionCount / 3, v, 0);
+			}
+			faceSizes[faceCount] = nVerts;
+			faceFlags[faceCount++] = flags;
+			vertexCount += nVerts;
+		}
+
+		private int indexOfSlash(int from, int to) {
+			while (from < to && bytes[from] != '/')
+				from++;
+			return from;
+		}
+
+		/**
+		 * Parse the index of a vertex attribute: absolute as in the file, or
+		 * relative to the attributes listed so far in this chunk.
+		 * @param count the number of attributes of this kind listed so far in this chunk
+		 * @param v the vertex, to be adjusted later if the index is relative
+		 * @param kind 0, 1 or 2 for positions, uvs and normals
+		 */
+		private int index(int from, int to, int count, int v, int kind) {
+			int i = parseInt(from, to);
+			if (i >= 0)
+				return i + OBJFace.indexBase - 1;
+			switch (kind) {
+			case 0:
+				relativePositions = ensure(relativePositions, relativePositionCount + 1);
+				relativePositions[relativePositionCount++] = v;
+				break;
+			case 1:
+				relativeUVs = ensure(relativeUVs, relativeUVCount + 1);
+				relativeUVs[relativeUVCount++] = v;
+				break;
+			default:
+				relativeNormals = ensure(relativeNormals, relativeNormalCount + 1);
+				relativeNormals[relativeNormalCount++] = v;
+			}
+			return count + i + OBJFace.indexBase;
+		}
+
+		/**
+		 * Split a line at whitespace into tokens, whose start and end are written
+		 * to tokens.
+		 * @return the number of tokens
+		 */
+		private int tokenize(int lineStart, int lineEnd) {
+			int n = 0;
+			int p = lineStart;
+			while (true) {
+				while (p < lineEnd && isSpace(bytes[p]))
+					p++;
+				if (p == lineEnd)
+					return n;
+				if (2 * n + 2 > tokens.length)
+					tokens = Arrays.copyOf(tokens, 2 * tokens.length);
+				tokens[2 * n] = p;
+				while (p < lineEnd && !isSpace(bytes[p]))
+					p++;
+				tokens[2 * n + 1] = p;
+				n++;
+			}
+		}
+
+		/**
+		 * @return the number in bytes [from, to), rounded as by Float.parseFloat
+		 * @throws NumberFormatException if it is not a number, as Float.parseFloat would
+		 */
+		private float parseFloat(int from, int to) {
+			// Plain decimal numbers of up to 18 digits times a power of ten of at
+			// most 22 are computed exactly in double precision and rounded once
+			int p = from;
+			boolean negative = false;
+			if (p < to && (bytes[p] == '-' || bytes[p] == '+'))
+				negative = bytes[p++] == '-';
+			long mantissa = 0;
+			int digits = 0, exponent = 0;
+			boolean any = false;
+			for (; p < to && bytes[p] >= '0' && bytes[p] <= '9'; p++, any = true) {
+				if (mantissa != 0 || bytes[p] != '0')
+					digits++;
+				mantissa = 10 * mantissa + (bytes[p] - '0');
+			}
+			if (p < to && bytes[p] == '.') {
+				for (p++; p < to && bytes[p] >= '0' && bytes[p] <= '9'; p++, any = true) {
+					if (mantissa != 0 || bytes[p] != '0')
+						digits++;
+					mantissa = 10 * mantissa + (bytes[p] - '0');
+					exponent--;
+				}
+			}
+			if (any && p < to && (bytes[p] == 'e' || bytes[p] == 'E')) {
+				p++;
+				boolean negativeExponent = false;
+				if (p < to && (bytes[p] == '-' || bytes[p] == '+'))
+					negativeExponent = bytes[p++] == '-';
+				int e = 0;
+				if (p == to)
+					any = false;
+				for (; p < to && bytes[p] >= '0' && bytes[p] <= '9' && e < 1000; p++)
+					e = 10 * e + (bytes[p] - '0');
+				exponent += negativeExponent ? -e : e;
+			}
+			if (any && p == to && digits <= 18) {
+				if (mantissa == 0)
+					return negative ? -0.0f : 0.0f;
+				if (exponent >= -22 && exponent <= 22 && mantissa <= 1L << 53) {
+					double d = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+					// Rounding to double and then to float is the same as rounding
+					// once, unless the double fell exactly halfway between two floats
+					if (d >= Float.MIN_NORMAL && d <= Float.MAX_VALUE
+							&& (Double.doubleToRawLongBits(d) & 0x1FFFFFFFL) != 0x10000000L)
+						return (float) (negative ? -d : d);
+				}
+			}
+			return Float.parseFloat(string(from, to));
+		}
+
+		/**
+		 * @return the integer in bytes [from, to)
+		 * @throws NumberFormatException if it is not an integer, as Integer.parseInt would
+		 */
+		private int parseInt(int from, int to) {
+			int p = from;
+			boolean negative = false;
+			if (p < to && (bytes[p] == '-' || bytes[p] == '+'))
+				negative = bytes[p++] == '-';
+			if (p < to && to - p <= 9) {
+				int value = 0;
+				for (; p < to && bytes[p] >= '0' && bytes[p] <= '9'; p++)
+					value = 10 * value + (bytes[p] - '0');
+				if (p == to)
+					return negative ? -value : value;
+			}
+			return Integer.parseInt(string(from, to));
+		}
+
+		private static boolean isSpace(byte b) {
+			return b == ' ' || b == '\t' || b == '\r' || b == '\f' || b == 0x0B;
+		}
+
+		private String line(int lineStart, int lineEnd) {
+			return string(lineStart, lineEnd);
+		}
+
+		private String string(int from, int to) {
+			return new String(bytes, from, to - from, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * Create the chunk's attributes and faces at its offsets in the arrays of the mesh.
+		 */
+		void build(Vector3[] meshPositions, Vector2[] meshUVs, Vector3[] meshNormals, OBJFace[] meshFaces) {
+			for (int i = 0; i < positionCount / 3; i++)
+				meshPositions[positionOffset + i] = new Vector3(positions[3 * i], positions[3 * i + 1], positions[3 * i + 2]);
+			for (int i = 0; i < uvCount / 2; i++)
+				meshUVs[uvOffset + i] = new Vector2(uvs[2 * i], uvs[2 * i + 1]);
+			for (int i = 0; i < normalCount / 3; i++)
+				meshNormals[normalOffset + i] = new Vector3(normals[3 * i], normals[3 * i + 1], normals[3 * i + 2]);
+			positions = uvs = normals = null;
+
+			for (int i = 0; i < relativePositionCount; i++)
+				facePositions[relativePositions[i]] += positionOffset;
+			for (int i = 0; i < relativeUVCount; i++)
+				faceUVs[relativeUVs[i]] += uvOffset;
+			for (int i = 0; i < relativeNormalCount; i++)
+				faceNormals[relativeNormals[i]] += normalOffset;
+
+			int v = 0;
+			for (int i = 0; i < faceCount; i++) {
+				int n = faceSizes[i];
+				OBJFace face = new OBJFace(n, (faceFlags[i] & HAS_UVS) != 0, (faceFlags[i] & HAS_NORMALS) != 0);
+				System.arraycopy(facePositions, v, face.positions, 0, n);
+				if (face.hasUVs())
+					System.arraycopy(faceUVs, v, face.uvs, 0, n);
+				if (face.hasNormals())
+					System.arraycopy(faceNormals, v, face.normals, 0, n);
+				meshFaces[faceOffset + i] = face;
+				v += n;
+			}
+		}
+	}
+
+	private static float[] ensure(float[] array, int length) {
+		return length <= array.length ? array : Arrays.copyOf(array, Math.max(length, 2 * array.length));
+	}
+
+	private static int[] ensure(int[] array, int length) {
+		return length <= array.length ? array : Arrays.copyOf(array, Math.max(length, 2 * array.length));
+	}
+}
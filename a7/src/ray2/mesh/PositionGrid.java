@@ -0,0 +1,81 @@
+package ray2.mesh;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import egl.math.Vector3;
+
+/**
+ * Items (vertices or faces, by index) bucketed by the cells of a uniform grid
+ * that their positions fall in, to find the items that may be at a position
+ * without testing all of them. Cells are twice as wide as the tolerance of
+ * Vector3.equalsApprox, so two positions that it finds equal are always in the
+ * same or in neighboring cells, and near returns every item that may be equal.
+ * Cells are found by a hash of their coordinates; cells whose hashes collide
+ * share a bucket, which only adds candidates.
+ *
+ * The same grid is used in a1 (meshgen) and a7 (ray2.mesh). The two copies
+ * differ only in their package and that of Vector3, and are changed together.
+ */
+class PositionGrid {
+
+	/** The width of a cell: twice the default tolerance of equalsApprox. */
+	static final double CELL_SIZE = 2e-5;
+
+	private final HashMap<Long, ArrayList<Integer>> cells = new HashMap<>();
+
+	/**
+	 * Add an item at a position. An item may be added at several positions.
+	 * @param p the position
+	 * @param item the item
+	 */
+	void add(Vector3 p, int item) {
+		Long key = key(cell(p.x), cell(p.y), cell(p.z));
+		ArrayList<Integer> bucket = cells.get(key);
+		if (bucket == null) {
+			bucket = new ArrayList<>();
+			cells.put(key, bucket);
+		}
+		if (bucket.isEmpty() || bucket.get(bucket.size() - 1) != item)
+			bucket.add(item);
+	}
+
+	/**
+	 * @param p a position
+	 * @return the items added at any position that may be approximately equal
+	 *   to p (and maybe a few more), in increasing order and each once
+	 */
+	int[] near(Vector3 p) {
+		long cx = cell(p.x), cy = cell(p.y), cz = cell(p.z);
+		int[] found = new int[16];
+		int n = 0;
+		for (int dx = -1; dx <= 1; dx++) {
+			for (int dy = -1; dy <= 1; dy++) {
+				for (int dz = -1; dz <= 1; dz++) {
+					ArrayList<Integer> bucket = cells.get(key(cx + dx, cy + dy, cz + dz));
+					if (bucket == null)
+						continue;
+					if (n + bucket.size() > found.length)
+						found = Arrays.copyOf(found, Math.max(2 * found.length, n + bucket.size()));
+					for (int item : bucket)
+						found[n++] = item;
+				}
+			}
+		}
+		Arrays.sort(found, 0, n);
+		int distinct = 0;
+		for (int i = 0; i < n; i++)
+			if (distinct == 0 || found[i] != found[distinct - 1])
+				found[distinct++] = found[i];
+		return Arrays.copyOf(found, distinct);
+	}
+
+	private static long cell(float x) {
+		return (long) Math.floor(x / CELL_SIZE);
+	}
+
+	private static Long key(long cx, long cy, long cz) {
+		return (cx * 73856093L) ^ (cy * 19349663L) ^ (cz * 83492791L);
+	}
+}
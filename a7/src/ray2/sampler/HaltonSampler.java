@@ -0,0 +1,51 @@
+package ray2.sampler;
+
+/**
+ * The Halton sequence: coordinate d of sample i is the radical inverse of i in
+ * the d-th prime base, which mirrors the digits of i about the radix point.
+ * Every prefix of the sequence is spread out in every dimension, so the
+ * samples of a pixel can be taken a few at a time (as the adaptive and
+ * progressive renderers do) and still cover the pixel evenly.
+ *
+ * Every pixel would otherwise see the same points, so each pixel shifts each
+ * dimension by its own random offset, modulo 1 (a Cranley-Patterson rotation).
+ * The large bases of the later dimensions need many samples before they
+ * spread out, so dimensions past the table of primes are independent random
+ * numbers.
+ */
+public class HaltonSampler extends Sampler {
+
+	/** The bases of the dimensions. */
+	private static final int[] PRIMES = {
+		2, 3, 5, 7, 11, 13, 17, 19, 23, 29, 31, 37, 41, 43, 47, 53,
+		59, 61, 67, 71, 73, 79, 83, 89, 97, 101, 103, 107, 109, 113, 127, 131
+	};
+
+	public HaltonSampler() { }
+
+	@Override
+	public double get(int x, int y, int index, int dimension) {
+		if (dimension >= PRIMES.length)
+			return random(x, y, index, dimension);
+
+		double value = radicalInverse(PRIMES[dimension], index) + random(x, y, -1, dimension);
+		return value >= 1 ? value - 1 : value;
+	}
+
+	/**
+	 * @return the radical inverse of i in base
+	 */
+	static double radicalInverse(int base, int i) {
+		if (base == 2)
+			return (Integer.reverse(i) >>> 1) * 0x1.0p-31;
+		double inverse = 1.0 / base;
+		double scale = inverse;
+		double value = 0;
+		while (i > 0) {
+			value += (i % base) * scale;
+			i /= base;
+			scale *= inverse;
+		}
+		return value;
+	}
+}
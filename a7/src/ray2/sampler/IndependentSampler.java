@@ -0,0 +1,16 @@
+package ray2.sampler;
+
+/**
+ * Independent uniform random numbers for every sample and dimension, with no
+ * attempt to spread them out. This is the plain Monte Carlo estimate, and the
+ * default; the other samplers reach the same noise with fewer samples.
+ */
+public class IndependentSampler extends Sampler {
+
+	public IndependentSampler() { }
+
+	@Override
+	public double get(int x, int y, int index, int dimension) {
+		return random(x, y, index, dimension);
+	}
+}
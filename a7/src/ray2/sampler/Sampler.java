@@ -0,0 +1,80 @@
+package ray2.sampler;
+
+/**
+ * A source of the random numbers used to render an image: the position of each
+ * camera sample in its pixel, and the numbers its path draws as it is shaded
+ * (see ray2.PathRandom). Sample index of pixel (x, y) is a point in a space of
+ * many dimensions; dimensions 0 and 1 are its position in the pixel, and the
+ * path draws dimensions 2, 3, ... in order.
+ *
+ * A sampler has no state besides its settings: get is a pure function of the
+ * pixel, the sample index, the dimension and the seed. So the samples of a
+ * pixel do not depend on which thread renders it, on the order the pixels are
+ * rendered in or on the renderer, and an image is bit-identical from run to
+ * run and with any number of threads.
+ *
+ * The subclasses place the samples of a pixel so that they cover each
+ * dimension, and pairs of dimensions, more evenly than independent random
+ * numbers, which reaches a given noise level with fewer samples per pixel.
+ * Each pixel gets its own randomization, so the error is noise rather than a
+ * pattern repeated in every pixel.
+ *
+ * Selected in the scene file with e.g.
+ *
+ *   &lt;sampler type="SobolSampler"&gt;
+ *     &lt;seed&gt;1&lt;/seed&gt;
+ *   &lt;/sampler&gt;
+ */
+public abstract class Sampler {
+
+	/** The number of dimensions taken by the position in the pixel. */
+	public static final int PIXEL_DIMENSIONS = 2;
+
+	/** Selects a different, equally good set of samples; 0 by default. */
+	protected long seed = 0;
+	public void setSeed(int seed) { this.seed = seed; }
+
+	/**
+	 * The number of samples each pixel will take. Samplers that divide the
+	 * domain into strata use it to size them; the others ignore it. Set by the
+	 * renderer before rendering.
+	 */
+	protected int samplesPerPixel = 1;
+	public int getSamplesPerPixel() { return samplesPerPixel; }
+	public void setSamplesPerPixel(int samplesPerPixel) { this.samplesPerPixel = Math.max(1, samplesPerPixel); }
+
+	/**
+	 * @param x the column of the pixel
+	 * @param y the row of the pixel
+	 * @param index the index of the sample in the pixel, from 0
+	 * @param dimension the dimension, from 0
+	 * @return coordinate dimension of sample index of pixel (x, y), in [0, 1)
+	 */
+	public abstract double get(int x, int y, int index, int dimension);
+
+	/**
+	 * @return a hash of the seed and the arguments, uniform over all longs
+	 */
+	protected long hash(int x, int y, int index, int dimension) {
+		long h = mix(seed ^ (((long) x << 32) | (y & 0xFFFFFFFFL)));
+		return mix(h ^ (((long) index << 32) | (dimension & 0xFFFFFFFFL)));
+	}
+
+	/**
+	 * @return a uniform random number in [0, 1) determined by the seed and the arguments
+	 */
+	protected double random(int x, int y, int index, int dimension) {
+		return (hash(x, y, index, dimension) >>> 11) * 0x1.0p-53;
+	}
+
+	/**
+	 * The finalizer of SplitMix64, which mixes every bit of z into every bit of
+	 * the result.
+	 */
+	protected static long mix(long z) {
+		z = (z + 0x9E3779B97F4A7C15L);
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -0,0 +1,56 @@
+package ray2.sampler;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class SamplerTests {
+
+	@Test
+	public void testSobolIsStratified() {
+		// Every power-of-two prefix of a pixel's samples has one sample in each
+		// of 1 x n, n x 1 and sqrt(n) x sqrt(n) cells, in each pair of dimensions
+		SobolSampler sampler = new SobolSampler();
+		for (int n = 4; n <= 256; n *= 4) {
+			int k = (int) Math.sqrt(n);
+			for (int dimension = 0; dimension < 8; dimension += 2) {
+				boolean[] columns = new boolean[n], rows = new boolean[n], squares = new boolean[n];
+				for (int i = 0; i < n; i++) {
+					double u = sampler.get(5, 7, i, dimension), v = sampler.get(5, 7, i, dimension + 1);
+					assertTrue(u >= 0 && u < 1 && v >= 0 && v < 1);
+					int column = (int) (u * n), row = (int) (v * n), square = (int) (u * k) + k * (int) (v * k);
+					assertFalse("dimension " + dimension + ", " + n + " samples", columns[column] || rows[row] || squares[square]);
+					columns[column] = rows[row] = squares[square] = true;
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testStratifiedIsStratified() {
+		StratifiedSampler sampler = new StratifiedSampler();
+		sampler.setSamplesPerPixel(16);
+		for (int dimension = 0; dimension < 8; dimension += 2) {
+			boolean[] squares = new boolean[16];
+			for (int i = 0; i < 16; i++) {
+				int square = (int) (sampler.get(1, 2, i, dimension) * 4) + 4 * (int) (sampler.get(1, 2, i, dimension + 1) * 4);
+				assertFalse(squares[square]);
+				squares[square] = true;
+			}
+		}
+	}
+
+	@Test
+	public void testDeterministic() {
+		Sampler[] samplers = { new IndependentSampler(), new StratifiedSampler(), new HaltonSampler(), new SobolSampler() };
+		for (Sampler sampler : samplers) {
+			sampler.setSamplesPerPixel(16);
+			double first = sampler.get(3, 4, 5, 6);
+			sampler.get(0, 0, 0, 0);
+			assertEquals(first, sampler.get(3, 4, 5, 6), 0);
+			assertNotEquals(first, sampler.get(4, 3, 5, 6), 0);
+			sampler.setSeed(1);
+			assertNotEquals(first, sampler.get(3, 4, 5, 6), 0);
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package ray2.sampler;
+
+/**
+ * Owen-scrambled Sobol points, after Burley, "Practical Hash-based Owen
+ * Scrambling" (JCGT 2020). The first two dimensions of the Sobol sequence are
+ * a (0, 2)-sequence: the first 2^k points form a net in which every rectangle
+ * of area 2^-k with power-of-two sides holds exactly one point. So any
+ * power-of-two prefix of the samples is stratified, however the strata are
+ * shaped, which is why this sampler usually gives the least noise.
+ *
+ * Each pair of dimensions (0 and 1, 2 and 3, ...) is such a set, with its own
+ * scrambling and its own shuffled order of the samples, so that the pairs are
+ * not correlated with each other; the higher Sobol dimensions are not used,
+ * since their pairs are not as well stratified. Scrambling randomly flips each
+ * bit of a coordinate depending on the bits above it, which keeps the net
+ * property but gives each pixel independent, unbiased points; the order is
+ * shuffled by scrambling the index the same way. Both are done with the
+ * Laine-Karras hash instead of stored permutation trees.
+ */
+public class SobolSampler extends Sampler {
+
+	/**
+	 * The generator matrix of the second dimension, one column per bit of the
+	 * index (the first is the van der Corput sequence, which reverses the bits).
+	 */
+	private static final int[] MATRIX = new int[32];
+
+	static {
+		// The direction numbers of the polynomial x + 1
+		MATRIX[0] = 1 << 31;
+		for (int bit = 1; bit < 32; bit++)
+			MATRIX[bit] = MATRIX[bit - 1] ^ (MATRIX[bit - 1] >>> 1);
+	}
+
+	public SobolSampler() { }
+
+	@Override
+	public double get(int x, int y, int index, int dimension) {
+		long h = hash(x, y, -1, dimension >> 1);
+		int d = dimension & 1;
+		int shuffled = scramble(index, (int) h);
+		int value = scramble(sobol(shuffled, d), (int) (h >>> 32) + d * 0x9E3779B9);
+		return (value & 0xFFFFFFFFL) * 0x1.0p-32;
+	}
+
+	/**
+	 * @return coordinate d (0 or 1) of point i of the Sobol sequence, as a 32-bit fraction
+	 */
+	static int sobol(int i, int d) {
+		if (d == 0)
+			return Integer.reverse(i);
+		int result = 0;
+		for (int bit = 0; i != 0; i >>>= 1, bit++)
+			if ((i & 1) != 0)
+				result ^= MATRIX[bit];
+		return result;
+	}
+
+	/**
+	 * @return a nested uniform (Owen) scrambling of the 32-bit fraction x: each
+	 *   bit is flipped or not depending on seed and the bits above it
+	 */
+	static int scramble(int x, int seed) {
+		x = Integer.reverse(x);
+		x += seed;
+		x ^= x * 0x6c50b47c;
+		x ^= x * 0xb82f1e52;
+		x ^= x * 0xc7afe638;
+		x ^= x * 0x8d22f6e6;
+		return Integer.reverse(x);
+	}
+}
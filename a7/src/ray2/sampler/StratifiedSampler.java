@@ -0,0 +1,65 @@
+package ray2.sampler;
+
+/**
+ * Jittered stratification. The dimensions are taken in pairs, and each pair
+ * is divided into an n x n grid of strata, where n * n is the largest square
+ * not above the number of samples per pixel; sample i falls at a random spot
+ * in one stratum, so the first n * n samples put exactly one sample in each.
+ * Each pair of dimensions visits its strata in a different pseudo-random
+ * order, so the pairs are not correlated with each other. Only the whole set
+ * of n * n samples is stratified: a render that stops part-way has samples in
+ * a random subset of the strata, which may leave parts of the pixel empty.
+ *
+ * Samples beyond the first n * n, and every sample when fewer than four are
+ * taken, are independent random numbers.
+ */
+public class StratifiedSampler extends Sampler {
+
+	public StratifiedSampler() { }
+
+	@Override
+	public double get(int x, int y, int index, int dimension) {
+		int n = (int) Math.sqrt(samplesPerPixel);
+		if (n < 2 || index >= n * n)
+			return random(x, y, index, dimension);
+
+		int pair = dimension >> 1;
+		int stratum = permute(index, n * n, (int) hash(x, y, -1, pair));
+		int cell = (dimension & 1) == 0 ? stratum % n : stratum / n;
+		return (cell + random(x, y, index, dimension)) / n;
+	}
+
+	/**
+	 * Kensler's hash-based permutation ("Correlated Multi-Jittered Sampling",
+	 * 2013): a bijection of [0, length) chosen by p, applied to i.
+	 */
+	static int permute(int i, int length, int p) {
+		int w = length - 1;
+		w |= w >>> 1;
+		w |= w >>> 2;
+		w |= w >>> 4;
+		w |= w >>> 8;
+		w |= w >>> 16;
+		do {
+			i ^= p;
+			i *= 0xe170893d;
+			i ^= p >>> 16;
+			i ^= (i & w) >>> 4;
+			i ^= p >>> 8;
+			i *= 0x0929eb3f;
+			i ^= p >>> 23;
+			i ^= (i & w) >>> 1;
+			i *= 1 | p >>> 27;
+			i *= 0x6935fa69;
+			i ^= (i & w) >>> 11;
+			i *= 0x74dcb303;
+			i ^= (i & w) >>> 2;
+			i *= 0x9e501cc3;
+			i ^= (i & w) >>> 2;
+			i *= 0xc860a3df;
+			i &= w;
+			i ^= i >>> 5;
+		} while (Integer.compareUnsigned(i, length) >= 0);
+		return Integer.remainderUnsigned(i + p, length);
+	}
+}
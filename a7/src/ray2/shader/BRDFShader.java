@@ -30,6 +30,18 @@ public abstract class BRDFShader extends Shader {
 		super();
 	}
 
+	/**
+	 * The diffuse color, or the texture filtered to the footprint of the ray.
+	 */
+	@Override
+	public boolean getAlbedo(Colord outAlbedo, IntersectionRecord record) {
+		if (texture != null)
+			texture.getTexColor(record.texCoords, record.texFootprint, outAlbedo);
+		else
+			outAlbedo.set(diffuseColor);
+		return true;
+	}
+
 
 	/**
 	 * Evaluate the intensity for a given intersection using the BRDF appropriate to
@@ -47,11 +59,20 @@ public abstract class BRDFShader extends Shader {
 		// TODO#A7 Fill in this function.
 		// 1) Loop through each light in the scene.
 		// 2) Use Light.sample() to generate a direction toward the light.
+		//    If scene.getLightSamples() is n > 0, instead take n samples with
+		//    scene.getLightSampler().sample(), which chooses a light and samples it,
+		//    and divide each of their contributions by n. Draw the random numbers
+		//    from Workspace.get().random, so that renders are repeatable.
 		// 3) If the intersection point is shadowed, skip the calculation for the light.
 		//	  See Shader.java for a useful shadowing function.
 		// 4) Evaluate the BRDF using the abstract evalBRDF method.
 		// 5) Compute the final color using the BRDF value and the information in the
 		//    light sampling record.
+		// If there is a texture, look kD up with texture.getTexColor(iRec.texCoords,
+		// iRec.texFootprint, Workspace.get().texColors[depth]) instead of using diffuseColor;
+		// this filters the texture to the footprint of the ray.
+		// Workspace.get() holds a shadow ray and a light sampling record for each depth,
+		// so nothing needs to be allocated here.
 		
 	}
 
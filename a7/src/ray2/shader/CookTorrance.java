@@ -27,14 +27,16 @@ public class CookTorrance extends BRDFShader {
 	@Override
 	protected void evalBRDF(Vector3d L, Vector3d V, Vector3d N, Colord kD,
 			Colord outColor) {
-		Vector3d H = new Vector3d();
-		H.set(L).add(V).normalize();
+		// Half vector, kept in scalars so that shading does not allocate
+		double hx = L.x + V.x, hy = L.y + V.y, hz = L.z + V.z;
+		double hLen = Math.sqrt(hx * hx + hy * hy + hz * hz);
+		hx /= hLen; hy /= hLen; hz /= hLen;
 
 		// calculate intermediary values
 		double NdotL = N.dot(L);
-		double NdotH = N.dot(H); 
+		double NdotH = N.x * hx + N.y * hy + N.z * hz; 
 		double NdotV = N.dot(V);
-		double VdotH = V.dot(H);
+		double VdotH = V.x * hx + V.y * hy + V.z * hz;
 		double mSquared = roughness * roughness;
 	 
 		// fresnel
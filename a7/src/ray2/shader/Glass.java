@@ -4,7 +4,9 @@ import ray2.RayTracer;
 import ray2.IntersectionRecord;
 import ray2.Ray;
 import ray2.Scene;
+import ray2.Workspace;
 import egl.math.Colord;
+import egl.math.Vector3d;
 
 /**
  * A Phong material.
@@ -24,6 +26,11 @@ public class Glass extends Shader {
 		refractiveIndex = 1.0;
 	}
 
+	@Override
+	public boolean isSpecular() {
+		return true;
+	}
+
 	/**
 	 * @see Object#toString()
 	 */
@@ -49,5 +56,41 @@ public class Glass extends Shader {
         //    using Snell's law and call RayTracer.shadeRay on them to shade them
 
 	}
+
+	/**
+	 * Follow one of the reflected and refracted rays, for the path integrator.
+	 *
+	 * @see Shader#scatter
+	 */
+	@Override
+	public boolean scatter(Colord outIntensity, Colord outWeight, Ray outRay, Scene scene, Ray ray,
+			IntersectionRecord record, int depth) {
+		// Find which side the ray comes from, and the cosine of the angle between
+		// the normal on that side and the direction back along the ray
+		Vector3d normal = record.normal;
+		double nLen = normal.len(), dLen = ray.direction.len();
+		double cos1 = -ray.direction.dot(normal) / (nLen * dLen);
+		double eta = refractiveIndex, side = 1;
+		if (cos1 < 0) {
+			cos1 = -cos1;
+			eta = 1 / eta;
+			side = -1;
+		}
+		double R = fresnel(cos1, eta);
+		double cos2Sq = 1 - (1 - cos1 * cos1) / (eta * eta);
+
+		// Reflect with probability R, and always under total internal reflection,
+		// so the weight is R / R or (1 - R) / (1 - R)
+		outIntensity.setZero();
+		outWeight.set(1, 1, 1);
+		outRay.origin.set(record.location);
+		if (cos2Sq < 0 || Workspace.get().random.nextDouble() < R)
+			reflect(outRay.direction, ray.direction, normal);
+		else
+			outRay.direction.set(ray.direction).mul(1 / (eta * dLen))
+				.addMultiple(side * (cos1 / eta - Math.sqrt(cos2Sq)) / nLen, normal);
+		outRay.makeOffsetRay();
+		return true;
+	}
 	
 }
\ No newline at end of file
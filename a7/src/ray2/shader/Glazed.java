@@ -4,6 +4,7 @@ import ray2.RayTracer;
 import ray2.IntersectionRecord;
 import ray2.Ray;
 import ray2.Scene;
+import ray2.Workspace;
 import egl.math.Colord;
 
 /**
@@ -30,6 +31,22 @@ public class Glazed extends Shader {
 	public Glazed() { 
 	}
 
+	/**
+	 * The albedo of the substrate, which shows through the glaze.
+	 */
+	@Override
+	public boolean getAlbedo(Colord outAlbedo, IntersectionRecord record) {
+		return substrate.getAlbedo(outAlbedo, record);
+	}
+
+	/**
+	 * The glaze is specular if its substrate is.
+	 */
+	@Override
+	public boolean isSpecular() {
+		return substrate.isSpecular();
+	}
+
 	/**
 	 * @see Object#toString()
 	 */
@@ -55,4 +72,36 @@ public class Glazed extends Shader {
         //  3) Compute the reflected ray and call RayTracer.shadeRay on it, multiply result color by R
 		
 	}
+
+	/**
+	 * Follow the reflection off the glaze, or a ray chosen by the substrate, for
+	 * the path integrator.
+	 *
+	 * @see Shader#scatter
+	 */
+	@Override
+	public boolean scatter(Colord outIntensity, Colord outWeight, Ray outRay, Scene scene, Ray ray,
+			IntersectionRecord record, int depth) {
+		double R = fresnel(-ray.direction.dot(record.normal) / (ray.direction.len() * record.normal.len()), refractiveIndex);
+
+		// The substrate's own light comes through the glaze
+		boolean more = substrate.scatter(outIntensity, outWeight, outRay, scene, ray, record, depth);
+		outIntensity.mul(1 - R);
+
+		// If the substrate ends the path, continue along the reflection with weight R;
+		// otherwise take the reflection with probability R, or keep the substrate's ray
+		if (!more) {
+			if (R <= 0)
+				return false;
+			outWeight.set(R, R, R);
+		} else if (Workspace.get().random.nextDouble() < R) {
+			outWeight.set(1, 1, 1);
+		} else {
+			return true;
+		}
+		outRay.origin.set(record.location);
+		reflect(outRay.direction, ray.direction, record.normal);
+		outRay.makeOffsetRay();
+		return true;
+	}
 }
\ No newline at end of file
@@ -29,10 +29,11 @@ public class Phong extends BRDFShader {
 	protected void evalBRDF(Vector3d L, Vector3d V, 
 			Vector3d N, Colord kD, Colord outColor) {
 		double NdotL = N.dot(L);
-		Vector3d halfVec = new Vector3d();
-		halfVec.set(L).add(V).normalize();
+		// Half vector, kept in scalars so that shading does not allocate
+		double hx = L.x + V.x, hy = L.y + V.y, hz = L.z + V.z;
+		double hLen = Math.sqrt(hx * hx + hy * hy + hz * hz);
 		
-		double halfDotNormal = Math.max(0.0, halfVec.dot(N));
+		double halfDotNormal = Math.max(0.0, (hx * N.x + hy * N.y + hz * N.z) / hLen);
 		double factor = Math.pow(halfDotNormal, exponent) / NdotL;
 		
 		outColor.set(kD).addMultiple(factor, specularColor);
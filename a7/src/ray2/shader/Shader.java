@@ -4,6 +4,7 @@ import ray2.IntersectionRecord;
 import ray2.light.LightSamplingRecord;
 import ray2.Ray;
 import ray2.Scene;
+import ray2.Workspace;
 import egl.math.Colord;
 import egl.math.Vector3d;
 
@@ -36,6 +37,57 @@ public abstract class Shader {
 	public abstract void shade(Colord outIntensity, Scene scene, Ray ray, 
 			IntersectionRecord record, int depth);
 	
+	/**
+	 * Shade an intersection for the iterative PathIntegrator: compute the light
+	 * this material sends back along the ray by itself, and choose at most one
+	 * ray along which more light arrives, instead of calling RayTracer.shadeRay.
+	 * The light leaving toward the ray is then outIntensity plus outWeight times
+	 * the light arriving along outRay (on average, if the ray is chosen at random).
+	 *
+	 * By default this shades the intersection with shade() and ends the path,
+	 * which is right for materials that only use the lights.
+	 *
+	 * @param outIntensity The light the surface sends back by itself.
+	 * @param outWeight The factor for the light arriving along outRay, divided by
+	 * the probability of choosing that ray.
+	 * @param outRay The ray to continue the path with, offset from the surface.
+	 * @param scene The scene in which the surface exists.
+	 * @param ray The ray which intersected the surface.
+	 * @param record The intersection record of where the ray intersected the surface.
+	 * @param depth The recursion depth, for the Workspace scratch objects.
+	 * @return true if the path continues along outRay
+	 */
+	public boolean scatter(Colord outIntensity, Colord outWeight, Ray outRay, Scene scene, Ray ray,
+			IntersectionRecord record, int depth) {
+		shade(outIntensity, scene, ray, record, depth);
+		return false;
+	}
+
+	/**
+	 * Set outAlbedo to the color of the surface at an intersection, for the
+	 * buffers the Denoiser is guided by. Materials that only reflect and
+	 * refract, like glass, are white and return false, and the buffers show
+	 * what they reflect or refract instead, by following scatter (see
+	 * isSpecular).
+	 *
+	 * @param outAlbedo The color of the surface.
+	 * @param record The intersection record, with its texture footprint computed.
+	 * @return true if the surface has a color of its own
+	 */
+	public boolean getAlbedo(Colord outAlbedo, IntersectionRecord record) {
+		outAlbedo.set(1, 1, 1);
+		return false;
+	}
+
+	/**
+	 * @return true if the material only reflects and refracts, so that scatter
+	 * just chooses the ray to continue with and never shades the intersection
+	 * with the lights; the Denoiser follows such materials for its buffers
+	 */
+	public boolean isSpecular() {
+		return false;
+	}
+
 	/**
 	* Initialization method
 	*/
@@ -57,20 +109,41 @@ public abstract class Shader {
 	 * false otherwise.
 	 */
 	protected boolean isShadowed(Scene scene, LightSamplingRecord lRec, IntersectionRecord iRec, Ray shadowRay) {		
+		setShadowRay(shadowRay, lRec, iRec.location);
+		
+		// Try the surface that last blocked this light first
+		return Workspace.get().occluders.isOccluded(scene, lRec.light, shadowRay);
+	}
+
+	/**
+	 * Set up the shadow ray that isShadowed casts, from a point to a light sample.
+	 * 
+	 * @param shadowRay the ray to set
+	 * @param lRec the light sample
+	 * @param point the point being shaded
+	 */
+	public static void setShadowRay(Ray shadowRay, LightSamplingRecord lRec, Vector3d point) {
 		// Setup the shadow ray to start at surface and end at light
-		shadowRay.origin.set(iRec.location);
+		shadowRay.origin.set(point);
 		shadowRay.direction.set(lRec.direction);
 		
 		// Set the ray to end at the light
 		shadowRay.direction.normalize();
 		shadowRay.makeOffsetSegment(lRec.distance);
-		
-		return scene.getAnyIntersection(shadowRay);
 	}
 	
 	protected double fresnel(Vector3d normal, Vector3d outgoing, double refractiveIndex) {
+		return fresnel(outgoing.dot(normal), refractiveIndex);
+	}
+
+	/**
+	 * The Fresnel term for a direction at a given cosine to the normal.
+	 * @param cos_1 the cosine of the angle between the (unit) normal and the outgoing direction
+	 * @param refractiveIndex the ratio of the index on the far side of the surface to the near side
+	 * @return the fraction of light reflected; 1 under total internal reflection
+	 */
+	protected double fresnel(double cos_1, double refractiveIndex) {
 		// compute the fresnel term using the equation in the lecture
-		double cos_1 = outgoing.dot(normal);
 		if (cos_1 < 0)
 			return 0;
 		
@@ -85,4 +158,16 @@ public abstract class Shader {
 		double R = 0.5 * (Fp*Fp + Fs*Fs);
 		return R;
 	}
+
+	/**
+	 * Set outDirection to the mirror reflection of a ray direction about a normal.
+	 * Neither needs to be of unit length; the result is.
+	 *
+	 * @param outDirection the reflected direction
+	 * @param direction the direction of the incoming ray
+	 * @param normal the surface normal
+	 */
+	protected static void reflect(Vector3d outDirection, Vector3d direction, Vector3d normal) {
+		outDirection.set(direction).addMultiple(-2 * direction.dot(normal) / normal.lenSq(), normal).normalize();
+	}
 }
\ No newline at end of file
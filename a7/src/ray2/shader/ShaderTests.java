@@ -5,17 +5,9 @@ import static org.junit.Assert.*;
 import org.junit.Test;
 
 import ray2.IntersectionRecord;
-import ray2.light.PointLight;
 import ray2.Ray;
-import ray2.Scene;
-import ray2.accel.AccelStruct;
-import ray2.accel.NaiveAccelStruct;
-import ray2.camera.Camera;
-import ray2.camera.PerspectiveCamera;
-import ray2.surface.Sphere;
-import ray2.surface.Surface;
+import ray2.Workspace;
 import egl.math.Colord;
-import egl.math.Matrix4d;
 import egl.math.Vector3d;
 
 public class ShaderTests {
@@ -65,6 +57,101 @@ public class ShaderTests {
                 + "Got: " + result, doublesEqual(0.44444444, result));
     }
     
+    @Test
+    public void testGlassScatter() {
+        Glass glass = new Glass();
+        glass.setRefractiveIndex(1.5);
+        double critical = Math.asin(1 / 1.5);
+        int n = 20000;
+        Workspace.get().random.setState(4620);
+
+        for (double angle : new double[] { 0, 0.4, 0.7, critical - 0.05, critical + 0.05, 1.2, 1.5 }) {
+            for (boolean inside : new boolean[] { false, true }) {
+                // A ray hitting the plane z = 0 at the given angle, from outside
+                // (against the normal) or from inside the glass
+                double sin1 = Math.sin(angle), cos1 = Math.cos(angle);
+                double eta = inside ? 1 / 1.5 : 1.5;
+                boolean total = inside && angle > critical;
+                double R = glass.fresnel(cos1, eta);
+                String where = (inside ? "inside" : "outside") + " at " + angle;
+
+                int reflected = 0;
+                for (int i = 0; i < n; i++) {
+                    if (scatter(glass, sin1, inside ? cos1 : -cos1)) {
+                        reflected++;
+                        assertTrue(where, doublesEqual(sin1, outRay.direction.x));
+                        assertTrue(where, doublesEqual(inside ? -cos1 : cos1, outRay.direction.z));
+                    } else {
+                        // Snell's law, and the ray goes on through the surface
+                        assertFalse(where, total);
+                        assertTrue(where, doublesEqual(1, outRay.direction.len()));
+                        assertTrue(where, doublesEqual(sin1, eta * outRay.direction.x));
+                        assertTrue(where, inside ? outRay.direction.z > 0 : outRay.direction.z < 0);
+                    }
+                    assertTrue(where, colorsEqual(new Colord(1, 1, 1), outWeight));
+                }
+
+                // Reflected as often as the Fresnel term says, to within 4 sigma
+                if (total)
+                    assertEquals(where, n, reflected);
+                else
+                    assertEquals(where, R, (double) reflected / n, 4 * Math.sqrt(R * (1 - R) / n) + 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void testGlazedScatter() {
+        Glazed glazed = new Glazed();
+        glazed.setRefractiveIndex(1.3);
+        int n = 20000;
+        Workspace.get().random.setState(4620);
+
+        for (double angle : new double[] { 0, 0.5, 1.0, 1.4 }) {
+            double sin1 = Math.sin(angle), cos1 = Math.cos(angle);
+            double R = glazed.fresnel(cos1, 1.3);
+
+            // Over a substrate that ends the path, always follow the reflection, weighted by R
+            glazed.setSubstrate(new Lambertian());
+            assertTrue(scatter(glazed, sin1, -cos1));
+            assertTrue(doublesEqual(sin1, outRay.direction.x) && doublesEqual(cos1, outRay.direction.z));
+            assertTrue(colorsEqual(new Colord(R, R, R), outWeight));
+
+            // Over glass, reflect off the glaze with probability R, or else
+            // off the glass with probability R' of what is left
+            Glass glass = new Glass();
+            glass.setRefractiveIndex(1.5);
+            glazed.setSubstrate(glass);
+            double expected = R + (1 - R) * glass.fresnel(cos1, 1.5);
+            int reflected = 0;
+            for (int i = 0; i < n; i++) {
+                if (scatter(glazed, sin1, -cos1))
+                    reflected++;
+                assertTrue(colorsEqual(new Colord(1, 1, 1), outWeight));
+            }
+            assertEquals("at " + angle, expected, (double) reflected / n,
+                    4 * Math.sqrt(expected * (1 - expected) / n) + 1e-9);
+        }
+    }
+
+    private final Colord outIntensity = new Colord(), outWeight = new Colord();
+    private final Ray outRay = new Ray();
+
+    /**
+     * Scatter a ray with direction (dx, 0, dz) off the plane z = 0 at the origin,
+     * whose normal is +z.
+     * @return true if the scattered ray was reflected, back to the side it came from
+     */
+    private boolean scatter(Shader shader, double dx, double dz) {
+        Ray ray = new Ray(new Vector3d(-dx, 0, -dz), new Vector3d(dx, 0, dz));
+        IntersectionRecord record = new IntersectionRecord();
+        record.normal.set(0, 0, 1);
+        record.t = 1;
+        outIntensity.setZero();
+        boolean more = shader.scatter(outIntensity, outWeight, outRay, null, ray, record, 1);
+        return more && outRay.direction.z * dz < 0;
+    }
+
     // Simple element-wise comparison.
     private boolean colorsEqual(Colord v0, Colord v1) {
         double epsilon = 1e-4;
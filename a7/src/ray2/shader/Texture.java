@@ -10,9 +10,20 @@ import egl.math.Colord;
 import egl.math.Vector2d;
 
 /**
- * This class represents a simple 2D texture implementation for a shader. It stores and
- * reads from a BufferedImage which is read in from an arbitrary image file on disk.
- * 
+ * This class represents a simple 2D texture implementation for a shader. It reads
+ * an arbitrary image file from disk, and converts it once at load time into a
+ * pyramid of float RGB mip levels, each a box-filtered half of the one before,
+ * down to a single texel. Lookups read the float arrays directly rather than
+ * going through the BufferedImage.
+ *
+ * Lookups are bilinear, and trilinear between the two mip levels that match the
+ * footprint of the ray being shaded (see IntersectionRecord.texFootprint), so a
+ * texture seen from far away is averaged rather than aliased. The subclasses
+ * decide how texels outside the image are addressed.
+ *
+ * Texel values are the 8 bit channels divided by 255, as before, and are used
+ * as reflectances directly.
+ *
  * @author eschweickart
  *
  */
@@ -31,16 +42,149 @@ public abstract class Texture {
 			System.err.println("Error loading texture: " + e);
 			System.exit(1);
 		}
+		if (image != null)
+			buildLevels();
 	}
-	
+
+	/**
+	 * The mip levels, finest first. Level l is levelWidth[l] by levelHeight[l]
+	 * texels, stored as 3 floats per texel, row by row from the top of the image.
+	 */
+	protected float[][] levels;
+	protected int[] levelWidth, levelHeight;
+
 	/** Default constructor. Creates an empty Texture object. */
 	public Texture() {	}
-	
+
 	/**
-	 * Get the texture color at a given UV coordinate.
-	 * 
+	 * Map a texel index outside [0, size) onto a texel of the image.
+	 *
+	 * @param i the texel index
+	 * @param size the number of texels along that axis
+	 * @return the index of the texel to read
+	 */
+	protected abstract int wrap(int i, int size);
+
+	/**
+	 * Get the texture color at a given UV coordinate, bilinearly filtered from the
+	 * finest level.
+	 *
 	 * @param texCoord The UV texture coordinates.
 	 * @return The color at the given point.
 	 */
-	public abstract Colord getTexColor(Vector2d texCoord); 
+	public Colord getTexColor(Vector2d texCoord) {
+		Colord c = new Colord();
+		getTexColor(texCoord, 0, c);
+		return c;
+	}
+
+	/**
+	 * Get the texture color at a given UV coordinate, filtered over a footprint of
+	 * the given width. Allocates nothing.
+	 *
+	 * @param texCoord The UV texture coordinates.
+	 * @param footprint The width of the area to filter over, in UV units; 0 for the finest level.
+	 * @param outColor The color at the given point.
+	 */
+	public void getTexColor(Vector2d texCoord, double footprint, Colord outColor) {
+		outColor.setZero();
+		if (levels == null) {
+			System.err.println("Warning: Texture uninitialized!");
+			return;
+		}
+
+		// The level whose texels are as wide as the footprint
+		double lod = 0;
+		if (footprint > 0)
+			lod = Math.log(footprint * Math.max(levelWidth[0], levelHeight[0])) / Math.log(2);
+		lod = Math.max(0, Math.min(levels.length - 1, lod));
+		int l = (int) lod;
+		double f = lod - l;
+
+		addBilinear(l, texCoord.x, texCoord.y, 1 - f, outColor);
+		if (f > 0)
+			addBilinear(l + 1, texCoord.x, texCoord.y, f, outColor);
+	}
+
+	/**
+	 * Add weight times the bilinear interpolation of the four texels of one level
+	 * around (u, v) to outColor.
+	 */
+	private void addBilinear(int level, double u, double v, double weight, Colord outColor) {
+		float[] texels = levels[level];
+		int w = levelWidth[level], h = levelHeight[level];
+
+		// Texel centers are at half-integer positions; v runs up the image
+		double s = u * w - 0.5;
+		double t = (1 - v) * h - 0.5;
+		double sf = Math.floor(s), tf = Math.floor(t);
+		double ds = s - sf, dt = t - tf;
+		int x0 = wrap((int) sf, w), x1 = wrap((int) sf + 1, w);
+		int y0 = wrap((int) tf, h), y1 = wrap((int) tf + 1, h);
+
+		int i00 = 3 * (x0 + y0 * w), i10 = 3 * (x1 + y0 * w);
+		int i01 = 3 * (x0 + y1 * w), i11 = 3 * (x1 + y1 * w);
+		double w00 = weight * (1 - ds) * (1 - dt), w10 = weight * ds * (1 - dt);
+		double w01 = weight * (1 - ds) * dt, w11 = weight * ds * dt;
+		outColor.x += w00 * texels[i00] + w10 * texels[i10] + w01 * texels[i01] + w11 * texels[i11];
+		outColor.y += w00 * texels[i00 + 1] + w10 * texels[i10 + 1] + w01 * texels[i01 + 1] + w11 * texels[i11 + 1];
+		outColor.z += w00 * texels[i00 + 2] + w10 * texels[i10 + 2] + w01 * texels[i01 + 2] + w11 * texels[i11 + 2];
+	}
+
+	/**
+	 * Decode the image into the finest level and box filter it down to 1 x 1.
+	 * A level of odd size is averaged into the next over blocks of 2 or 3 texels,
+	 * so every texel contributes.
+	 */
+	private void buildLevels() {
+		int w = image.getWidth(), h = image.getHeight();
+		int count = 1;
+		for (int s = Math.max(w, h); s > 1; s /= 2)
+			count++;
+		levels = new float[count][];
+		levelWidth = new int[count];
+		levelHeight = new int[count];
+
+		int[] rgb = image.getRGB(0, 0, w, h, null, 0, w);
+		float[] texels = new float[3 * w * h];
+		for (int i = 0; i < rgb.length; i++) {
+			texels[3 * i] = ((rgb[i] >> 16) & 0xff) / 255f;
+			texels[3 * i + 1] = ((rgb[i] >> 8) & 0xff) / 255f;
+			texels[3 * i + 2] = (rgb[i] & 0xff) / 255f;
+		}
+		levels[0] = texels;
+		levelWidth[0] = w;
+		levelHeight[0] = h;
+
+		for (int l = 1; l < count; l++) {
+			int pw = w, ph = h;
+			float[] prev = texels;
+			w = Math.max(1, pw / 2);
+			h = Math.max(1, ph / 2);
+			texels = new float[3 * w * h];
+			for (int y = 0; y < h; y++) {
+				int yl = y * ph / h, yh = (y + 1) * ph / h;
+				for (int x = 0; x < w; x++) {
+					int xl = x * pw / w, xh = (x + 1) * pw / w;
+					float r = 0, g = 0, b = 0;
+					for (int py = yl; py < yh; py++) {
+						for (int px = xl; px < xh; px++) {
+							int i = 3 * (px + py * pw);
+							r += prev[i];
+							g += prev[i + 1];
+							b += prev[i + 2];
+						}
+					}
+					float n = (xh - xl) * (yh - yl);
+					int o = 3 * (x + y * w);
+					texels[o] = r / n;
+					texels[o + 1] = g / n;
+					texels[o + 2] = b / n;
+				}
+			}
+			levels[l] = texels;
+			levelWidth[l] = w;
+			levelHeight[l] = h;
+		}
+	}
 }
@@ -2,6 +2,7 @@ package ray2.surface;
 
 import ray2.IntersectionRecord;
 import ray2.Ray;
+import ray2.Workspace;
 import egl.math.Vector3d;
 
 public class Cylinder extends Surface {
@@ -46,7 +47,7 @@ public class Cylinder extends Surface {
 
 		  	//transform the resulting intersection point and normal to world space
 		  
-		    Ray ray = untransformRay(rayIn);
+		    Ray ray = untransformRay(rayIn, Workspace.get().objectRay);
 
 		    // Rename the common vectors so I don't have to type so much
 		    Vector3d d = ray.direction;
@@ -106,15 +107,11 @@ public class Cylinder extends Surface {
 		      t = t2;
 		    }
 
-		    Vector3d thit1 = new Vector3d(0); 
-		    ray.evaluate(thit1, tMin);
-		    Vector3d thit2 = new Vector3d(0); 
-		    ray.evaluate(thit2, tMax);
-
-		    double dx1 = thit1.x-c.x;  
-		    double dy1 = thit1.y-c.y; 
-		    double dx2 = thit2.x-c.x;  
-		    double dy2 = thit2.y-c.y; 
+		    // Offsets from the axis of the points where the ray enters and leaves the slab
+		    double dx1 = o.x + tMin * d.x - c.x;
+		    double dy1 = o.y + tMin * d.y - c.y;
+		    double dx2 = o.x + tMax * d.x - c.x;
+		    double dy2 = o.y + tMax * d.y - c.y;
 
 		    if ((t < tMin || t > tMax) && dx1 * dx1 + dy1 * dy1 > rr && dx2 * dx2 + dy2 * dy2 > rr) {
 		      return false;
@@ -139,6 +136,7 @@ public class Cylinder extends Surface {
 		        outRecord.normal.negate();
 
 		      outRecord.surface = this;
+		      outRecord.texScale = 0;
 
 		      tMat.mulPos(outRecord.location);
 		      tMatTInv.mulDir(outRecord.normal).normalize();
@@ -2,19 +2,35 @@ package ray2.surface;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 
-import ray2.mesh.OBJFace;
+import ray2.mesh.BinaryMesh;
+import ray2.mesh.MeshData;
 import ray2.mesh.OBJMesh;
 import ray2.mesh.OBJMesh.OBJFileFormatException;
 import ray2.IntersectionRecord;
 import ray2.Ray;
+import ray2.RayPacket;
 import ray2.RayTracer;
+import ray2.Workspace;
+import ray2.accel.BvhCache;
+import ray2.accel.TriangleBvh;
+import egl.math.Vector3d;
 
 /**
  * An interface between a MeshData and the ray tracer. When the Scene calls
- * appendRenderableSurfaces on this object, it appends all Triangles on the
- * mesh onto the given ArrayList. This way, the Scene has direct access to
- * all intersectable Surfaces in the scene.
+ * appendRenderableSurfaces on this object, it builds a TriangleStore and a
+ * TriangleBvh over its faces and appends itself to the given ArrayList; the
+ * Scene then sees the whole mesh as one Surface, and its acceleration
+ * structure is the top level over such meshes. With storage set to "objects"
+ * it instead appends one Triangle per face, so the Scene has direct access to
+ * all triangles.
+ * 
+ * Meshes loaded from the same file share one MeshData. Each shared MeshData gets
+ * a single object-space TriangleBvh, built once, and every Mesh using it is an
+ * instance that transforms rays into object space before intersecting it.
+ * The BVHs are loaded from a BvhCache instead of built, when the Scene has one.
  * 
  * @author eschweic
  *
@@ -22,7 +38,33 @@ import ray2.RayTracer;
 public class Mesh extends Surface {
 
 	/** The underlying data of this Mesh. */
-	private OBJMesh mesh = null;
+	private MeshData mesh = null;
+
+	/**
+	 * How the triangles are handed to the ray tracer:
+	 * "store" keeps them in a world-space TriangleStore with its own BVH;
+	 * "instance" shares an object-space TriangleStore and BVH with every other
+	 * Mesh of the same MeshData; "objects" creates one Triangle per face; and
+	 * "auto" (the default) uses "instance" when the MeshData is shared and
+	 * "store" otherwise.
+	 */
+	private String storage = "auto";
+	public void setStorage(String storage) { this.storage = storage; }
+
+	/** The triangles and their BVH; in world space, or shared and in object space if instanced. */
+	private TriangleStore store = null;
+	private TriangleBvh bvh = null;
+	private boolean instanced = false;
+
+	/* Mesh files loaded so far, so that each file is read only once. */
+	private static final HashMap<String, MeshData> loaded = new HashMap<String, MeshData>();
+
+	/* The number of Meshes using each MeshData, and the object-space BVHs built for them. */
+	private static final IdentityHashMap<MeshData, Integer> users = new IdentityHashMap<MeshData, Integer>();
+	private static final IdentityHashMap<MeshData, TriangleBvh> shared = new IdentityHashMap<MeshData, TriangleBvh>();
+
+	/* The cache the BVHs are loaded from and saved to, or null to always build them. */
+	private static BvhCache cache = null;
 
 	/**
 	 * Default constructor; creates an empty mesh.
@@ -33,36 +75,171 @@ public class Mesh extends Surface {
 	 * Construct a Mesh from an existing MeshData.
 	 * @param newMesh an existing MeshData.
 	 */
-	public Mesh(OBJMesh newMesh) {
+	public Mesh(MeshData newMesh) {
 		mesh = newMesh;
+		addUser(mesh);
 	}
 	
 	/**
-	 * Set the data in this mesh to the data of a mesh on disk.
-	 * @param fileName the name of a .obj file on disk.
+	 * Set the data in this mesh to the data of a mesh on disk. A file that is
+	 * already loaded is not read again; its data is shared.
+	 * @param fileName the name of a .obj file, or of a binary mesh file (see BinaryMesh), on disk.
 	 */
 	public void setData(String fileName) throws OBJFileFormatException, IOException {
-		System.out.println("Loading " + RayTracer.sceneWorkspace.resolve(fileName));
-		this.mesh = new OBJMesh(RayTracer.sceneWorkspace.resolve(fileName));
+		String path = RayTracer.sceneWorkspace.resolve(fileName);
+		synchronized (loaded) {
+			this.mesh = loaded.get(path);
+			if (this.mesh == null) {
+				System.out.println("Loading " + path);
+				this.mesh = BinaryMesh.isBinaryMesh(path) ? BinaryMesh.read(path) : new OBJMesh(path);
+				loaded.put(path, this.mesh);
+			}
+			addUser(this.mesh);
+		}
+	}
+
+	private static void addUser(MeshData mesh) {
+		synchronized (loaded) {
+			Integer n = users.get(mesh);
+			users.put(mesh, n == null ? 1 : n + 1);
+		}
+	}
+
+	/**
+	 * Set the cache that the BVHs of the Meshes set up from now on are loaded
+	 * from and saved to, until releaseSharedData is called.
+	 * @param bvhCache the cache, or null to always build the BVHs
+	 */
+	public static void setBvhCache(BvhCache bvhCache) {
+		synchronized (loaded) {
+			cache = bvhCache;
+		}
+	}
+
+	/**
+	 * Forget the loaded files and shared BVHs. Meshes that were already set up
+	 * keep theirs; later Meshes load and build their own. Called once the
+	 * Scene has built its acceleration structure.
+	 */
+	public static void releaseSharedData() {
+		synchronized (loaded) {
+			loaded.clear();
+			users.clear();
+			shared.clear();
+			cache = null;
+		}
 	}
 	
-	public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {	return false; }
-	public void computeBoundingBox() {	}
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {
+		if (bvh == null)
+			return false;
+		if (!instanced) {
+			if (!bvh.intersect(outRecord, rayIn, false))
+				return false;
+			if (outRecord != null) {
+				store.fillRecord(outRecord, rayIn);
+				outRecord.surface = this;
+			}
+			return true;
+		}
+
+		// Instance: intersect the shared tree in object space
+		Ray ray = untransformRay(rayIn, Workspace.get().objectRay);
+		if (!bvh.intersect(outRecord, ray, false))
+			return false;
+		if (outRecord != null) {
+			store.fillRecord(outRecord, ray);
+			outRecord.texScale *= ray.direction.len() / rayIn.direction.len();
+			tMat.mulPos(outRecord.location);
+			tMatTInv.mulDir(outRecord.normal).normalize();
+			outRecord.surface = this;
+		}
+		return true;
+	}
+
+	@Override
+	public int intersectPacket(RayPacket packet, int lanes, boolean anyIntersection) {
+		// Instances take their rays into object space one at a time
+		if (bvh == null || instanced)
+			return super.intersectPacket(packet, lanes, anyIntersection);
+
+		int hits = bvh.intersectPacket(packet, lanes, anyIntersection);
+		for (int k = 0; k < packet.size; k++) {
+			if ((hits & (1 << k)) == 0)
+				continue;
+			if (!anyIntersection)
+				store.fillRecord(packet.records[k], packet.rays[k]);
+			packet.records[k].surface = this;
+		}
+		return hits;
+	}
+
+	public void computeBoundingBox() {
+		if (bvh == null)
+			return;
+		double[] min = new double[3], max = new double[3];
+		bvh.getBounds(min, max);
+		minBound = new Vector3d(min[0], min[1], min[2]);
+		maxBound = new Vector3d(max[0], max[1], max[2]);
+		if (instanced) {
+			// Bound the eight transformed corners of the object-space box
+			Vector3d corner = new Vector3d();
+			minBound.set(Double.POSITIVE_INFINITY);
+			maxBound.set(Double.NEGATIVE_INFINITY);
+			for (int i = 0; i < 8; i++) {
+				corner.set((i & 1) == 0 ? min[0] : max[0], (i & 2) == 0 ? min[1] : max[1], (i & 4) == 0 ? min[2] : max[2]);
+				tMat.mulPos(corner);
+				minBound.set(Math.min(minBound.x, corner.x), Math.min(minBound.y, corner.y), Math.min(minBound.z, corner.z));
+				maxBound.set(Math.max(maxBound.x, corner.x), Math.max(maxBound.y, corner.y), Math.max(maxBound.z, corner.z));
+			}
+		}
+		averagePosition = new Vector3d(minBound).add(maxBound).mul(0.5);
+	}
 
 	
 	public void appendRenderableSurfaces (ArrayList<Surface> in) {
 
-		for (OBJFace f : mesh.faces) {
-			Triangle t = new Triangle(this,f,shader);
-			t.setShader(this.shader);
-			t.setTransformation(this.tMat, this.tMatInv, this.tMatTInv);
-			
-			t.computeBoundingBox();
-			in.add(t);
+		if (storage.equals("objects")) {
+			for (int i = 0; i < mesh.getFaceCount(); i++) {
+				Triangle t = new Triangle(this,mesh.getFace(i),shader);
+				t.setShader(this.shader);
+				t.setTransformation(this.tMat, this.tMatInv, this.tMatTInv);
+				
+				t.computeBoundingBox();
+				in.add(t);
+			}
+			return;
 		}
+
+		synchronized (loaded) {
+			Integer n = users.get(mesh);
+			instanced = storage.equals("instance") || (storage.equals("auto") && n != null && n > 1);
+			if (instanced) {
+				bvh = shared.get(mesh);
+				if (bvh == null) {
+					bvh = new TriangleBvh(new TriangleStore(mesh));
+					build(bvh);
+					shared.put(mesh, bvh);
+				}
+			} else {
+				bvh = new TriangleBvh(new TriangleStore(mesh, tMat, tMatTInv));
+				build(bvh);
+			}
+		}
+		store = bvh.getStore();
+		computeBoundingBox();
+		if (store.size() > 0)
+			in.add(this);
 	} 
 	
-	public OBJMesh getMesh() {
+	private static void build(TriangleBvh bvh) {
+		if (cache != null)
+			cache.build(bvh);
+		else
+			bvh.build();
+	}
+
+	public MeshData getMesh() {
 		return this.mesh;
 	}
 }
@@ -2,6 +2,7 @@ package ray2.surface;
 
 import ray2.IntersectionRecord;
 import ray2.Ray;
+import ray2.Workspace;
 import egl.math.Vector3d;
 
 /**
@@ -47,7 +48,7 @@ public class Sphere extends Surface {
 	  	//transform the resulting intersection point and normal to world space
 
 		//transform the ray into object space
-		Ray ray = untransformRay(rayIn);
+		Ray ray = untransformRay(rayIn, Workspace.get().objectRay);
 		
 		// Rename the common vectors so I don't have to type so much
 		Vector3d d = ray.direction;
@@ -97,6 +98,9 @@ public class Sphere extends Surface {
 			double u = (phi + Math.PI) / (2 * Math.PI);
 			double v = (theta - Math.PI / 2) / Math.PI;
 			outRecord.texCoords.set(u, v);
+			// u runs around the equator and v over half as far pole to pole
+			outRecord.texScale = 1 / (Math.sqrt(2) * Math.PI * radius)
+					* ray.direction.len() / rayIn.direction.len();
 			
 			//transform location and normal back to world space
 			tMat.mulPos(outRecord.location);
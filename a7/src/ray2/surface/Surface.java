@@ -4,6 +4,7 @@ import java.util.ArrayList;
 
 import ray2.IntersectionRecord;
 import ray2.Ray;
+import ray2.RayPacket;
 import ray2.shader.Shader;
 import egl.math.Matrix4d;
 import egl.math.Vector3d;
@@ -56,13 +57,24 @@ public abstract class Surface {
 	 * @return tMatInv * rayIn
 	 */
 	public Ray untransformRay(Ray rayIn) {
-		Ray ray = new Ray(rayIn.origin, rayIn.direction);
-		ray.start = rayIn.start;
-		ray.end = rayIn.end;
+		return untransformRay(rayIn, new Ray());
+	}
+
+	/**
+	 * Un-transform rayIn using tMatInv, writing the result to outRay instead of
+	 * allocating a new ray. Surfaces usually pass Workspace.get().objectRay.
+	 * @param rayIn Input ray
+	 * @param outRay Output ray, which may not be rayIn
+	 * @return outRay, set to tMatInv * rayIn
+	 */
+	public Ray untransformRay(Ray rayIn, Ray outRay) {
+		outRay.set(rayIn.origin, rayIn.direction);
+		outRay.start = rayIn.start;
+		outRay.end = rayIn.end;
 
-		tMatInv.mulDir(ray.direction);
-		tMatInv.mulPos(ray.origin);
-		return ray;
+		tMatInv.mulDir(outRay.direction);
+		tMatInv.mulPos(outRay.origin);
+		return outRay;
 	}
 	
 	public void setTransformation(Matrix4d a, Matrix4d aInv, Matrix4d aTInv) {
@@ -84,6 +96,38 @@ public abstract class Surface {
 	 */
 	public abstract boolean intersect(IntersectionRecord outRecord, Ray ray);
 
+	/**
+	 * Tests some of the rays of a packet for intersection with this surface, as
+	 * intersect does for each of them, with packet.end[k] in place of the end of
+	 * ray k. Unless anyIntersection is true, packet.end[k] is moved up to each
+	 * hit and the hit is recorded in packet.records[k]; otherwise only
+	 * packet.records[k].surface is set. The default tests the rays one at a time.
+	 *
+	 * @param packet a packet whose lanes are loaded (see AccelStruct.intersectPacket)
+	 * @param lanes a bit mask of the rays to test: bit k stands for ray k
+	 * @param anyIntersection true if only the existence of an intersection matters
+	 * @return a bit mask of the rays that hit this surface
+	 */
+	public int intersectPacket(RayPacket packet, int lanes, boolean anyIntersection) {
+		int hits = 0;
+		for (int k = 0; k < packet.size; k++) {
+			if ((lanes & (1 << k)) == 0)
+				continue;
+			Ray ray = packet.rays[k];
+			double end = ray.end;
+			ray.end = packet.end[k];
+			if (intersect(anyIntersection ? null : packet.records[k], ray)) {
+				hits |= 1 << k;
+				if (anyIntersection)
+					packet.records[k].surface = this;
+				else
+					packet.end[k] = packet.records[k].t;
+			}
+			ray.end = end;
+		}
+		return hits;
+	}
+
 	/**
 	 * Compute the bounding box and store the result in
 	 * averagePosition, minBound, and maxBound.
@@ -2,6 +2,8 @@ package ray2.surface;
 
 import ray2.IntersectionRecord;
 import ray2.Ray;
+import ray2.Workspace;
+import egl.math.Vector2d;
 import egl.math.Vector3d;
 import ray2.shader.Shader;
 import ray2.mesh.OBJFace;
@@ -27,9 +29,10 @@ public class Triangle extends Surface {
 		    this.owner = owner;
 		    this.face = face;
 
-		    Vector3d v0 = new Vector3d(owner.getMesh().getPosition(face,0));
-		    Vector3d v1 = new Vector3d(owner.getMesh().getPosition(face,1));
-		    Vector3d v2 = new Vector3d(owner.getMesh().getPosition(face,2));
+		    Vector3d v0 = new Vector3d(), v1 = new Vector3d(), v2 = new Vector3d();
+		    owner.getMesh().getPosition(face,0,v0);
+		    owner.getMesh().getPosition(face,1,v1);
+		    owner.getMesh().getPosition(face,2,v2);
 		    
 		    if (!face.hasNormals()) {
 		      Vector3d e0 = new Vector3d(), e1 = new Vector3d();
@@ -67,9 +70,11 @@ public class Triangle extends Surface {
 	  	//transform the resulting intersection point and normal to world space
 
 		//transform ray into object space
-		Ray ray = untransformRay(rayIn);		
+		Workspace ws = Workspace.get();
+		Ray ray = untransformRay(rayIn, ws.objectRay);		
 		
-		Vector3d v0 = new Vector3d(owner.getMesh().getPosition(face,0));
+		Vector3d v0 = ws.meshVector;
+		owner.getMesh().getPosition(face,0,v0);
 		
 		double g = ray.direction.x;
 		double h = ray.direction.y;
@@ -112,21 +117,31 @@ public class Triangle extends Surface {
 			if (norm != null) {
 				outRecord.normal.set(norm);
 			} else {
-				outRecord.normal
-						.setZero()
-						.addMultiple(1 - beta - gamma, owner.getMesh().getNormal(face,0))
-						.addMultiple(beta, owner.getMesh().getNormal(face,1))
-						.addMultiple(gamma, owner.getMesh().getNormal(face,2));
+				Vector3d n = ws.meshVector;
+				outRecord.normal.setZero();
+				owner.getMesh().getNormal(face,0,n);
+				outRecord.normal.addMultiple(1 - beta - gamma, n);
+				owner.getMesh().getNormal(face,1,n);
+				outRecord.normal.addMultiple(beta, n);
+				owner.getMesh().getNormal(face,2,n);
+				outRecord.normal.addMultiple(gamma, n);
 			}
 			
 			tMatTInv.mulDir(outRecord.normal);
 			
 			outRecord.normal.normalize();
 			if (face.hasUVs()) {
+				Vector2d[] uv = ws.meshUVs;
+				for (int m = 0; m < 3; m++)
+					owner.getMesh().getUV(face,m,uv[m]);
 				outRecord.texCoords.setZero()
-						.addMultiple(1 - beta - gamma, owner.getMesh().getUV(face,0))
-						.addMultiple(beta, owner.getMesh().getUV(face,1))
-						.addMultiple(gamma, owner.getMesh().getUV(face,2));
+						.addMultiple(1 - beta - gamma, uv[0])
+						.addMultiple(beta, uv[1])
+						.addMultiple(gamma, uv[2]);
+				outRecord.texScale = TriangleStore.texScale(uv[0], uv[1], uv[2], a, b, c, d, e, f)
+						* ray.direction.len() / rayIn.direction.len();
+			} else {
+				outRecord.texScale = 0;
 			}
 		}
 
@@ -0,0 +1,251 @@
+package ray2.surface;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+import ray2.IntersectionRecord;
+import ray2.Ray;
+import ray2.Workspace;
+import ray2.mesh.MeshData;
+import egl.math.Matrix4d;
+import egl.math.Vector2d;
+import egl.math.Vector3d;
+
+/**
+ * The triangles of one mesh, stored as flat arrays instead of one Triangle
+ * object per face. Vertex positions are either transformed to world space once,
+ * when the store is built, so intersection needs neither an untransformed ray
+ * nor any temporary objects; or kept in object space, so that one store can be
+ * shared by every instance of the mesh. Triangle i is face i of the mesh (only
+ * the first three vertices of a face are used, as in Triangle). Normals and
+ * texture coordinates are looked up in the MeshData only for the hit that is
+ * finally shaded.
+ */
+public class TriangleStore {
+
+	/** The mesh the triangles come from, used for shading attributes. */
+	private final MeshData mesh;
+
+	/**
+	 * The inverse of the transpose of the transformation the positions were
+	 * built with, or null if they are in object space.
+	 */
+	private final Matrix4d tMatTInv;
+
+	/** Vertex positions: x, y, z for each vertex of the mesh. */
+	final double[] positions;
+
+	/** Indices into positions: three vertices for each triangle. */
+	final int[] indices;
+
+	/**
+	 * Build the store for all faces of mesh in object space. Rays must be
+	 * transformed into object space before they are intersected with it, and
+	 * hits are reported in object space.
+	 * @param mesh the mesh
+	 */
+	public TriangleStore(MeshData mesh) {
+		this(mesh, null, null);
+	}
+
+	/**
+	 * Build the store for all faces of mesh placed with the given transformation.
+	 * @param mesh the mesh
+	 * @param tMat the object-to-world transformation, or null for object space
+	 * @param tMatTInv the inverse of the transpose of tMat, or null for object space
+	 */
+	public TriangleStore(MeshData mesh, Matrix4d tMat, Matrix4d tMatTInv) {
+		this.mesh = mesh;
+		this.tMatTInv = tMatTInv;
+
+		int nVerts = mesh.getPositionCount();
+		positions = new double[3 * nVerts];
+		Vector3d p = new Vector3d();
+		for (int i = 0; i < nVerts; i++) {
+			mesh.getPosition(i, p);
+			if (tMat != null)
+				tMat.mulPos(p);
+			positions[3 * i] = p.x;
+			positions[3 * i + 1] = p.y;
+			positions[3 * i + 2] = p.z;
+		}
+
+		int nTris = mesh.getFaceCount();
+		indices = new int[3 * nTris];
+		for (int i = 0; i < nTris; i++)
+			for (int k = 0; k < 3; k++)
+				indices[3 * i + k] = mesh.getPositionIndex(i, k);
+	}
+
+	/**
+	 * @return the number of triangles in the store
+	 */
+	public int size() {
+		return indices.length / 3;
+	}
+
+	/**
+	 * Feed the vertex positions and the triangles to digest, so that a hash
+	 * identifies the geometry as placed: two stores with the same hash give the
+	 * same tree. Normals and texture coordinates are left out, since they do not
+	 * affect the tree.
+	 * @param digest the digest to update
+	 */
+	public void digest(MessageDigest digest) {
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		int chunk = buffer.capacity() / 8;
+		for (int i = 0; i < positions.length; i += chunk) {
+			buffer.clear();
+			buffer.asDoubleBuffer().put(positions, i, Math.min(chunk, positions.length - i));
+			digest.update(buffer.array(), 0, 8 * Math.min(chunk, positions.length - i));
+		}
+		chunk = buffer.capacity() / 4;
+		for (int i = 0; i < indices.length; i += chunk) {
+			buffer.clear();
+			buffer.asIntBuffer().put(indices, i, Math.min(chunk, indices.length - i));
+			digest.update(buffer.array(), 0, 4 * Math.min(chunk, indices.length - i));
+		}
+	}
+
+	/**
+	 * Compute the world-space bounding box of every triangle.
+	 * @param boundsMin output minimum corners, as [3*i + axis]
+	 * @param boundsMax output maximum corners, as [3*i + axis]
+	 */
+	public void getBounds(double[] boundsMin, double[] boundsMax) {
+		for (int i = 0; i < size(); i++) {
+			for (int a = 0; a < 3; a++) {
+				double v0 = positions[3 * indices[3 * i] + a];
+				double v1 = positions[3 * indices[3 * i + 1] + a];
+				double v2 = positions[3 * indices[3 * i + 2] + a];
+				boundsMin[3 * i + a] = Math.min(v0, Math.min(v1, v2));
+				boundsMax[3 * i + a] = Math.max(v0, Math.max(v1, v2));
+			}
+		}
+	}
+
+	/**
+	 * Intersect a world-space ray with one triangle. If the triangle is hit
+	 * between ray.start and ray.end and outRecord is not null, the ray parameter,
+	 * the primitive index and the barycentric coordinates of the hit are written
+	 * to outRecord; the location, normal and texture coordinates are left for
+	 * fillRecord.
+	 *
+	 * @param prim the index of the triangle
+	 * @param ray the ray to intersect
+	 * @param outRecord the output IntersectionRecord, or null
+	 * @return the ray parameter of the hit, or positive infinity if there is none
+	 */
+	public double intersect(int prim, Ray ray, IntersectionRecord outRecord) {
+		int i0 = 3 * indices[3 * prim], i1 = 3 * indices[3 * prim + 1], i2 = 3 * indices[3 * prim + 2];
+		double v0x = positions[i0], v0y = positions[i0 + 1], v0z = positions[i0 + 2];
+		double e1x = positions[i1] - v0x, e1y = positions[i1 + 1] - v0y, e1z = positions[i1 + 2] - v0z;
+		double e2x = positions[i2] - v0x, e2y = positions[i2 + 1] - v0y, e2z = positions[i2 + 2] - v0z;
+
+		double dx = ray.direction.x, dy = ray.direction.y, dz = ray.direction.z;
+		double px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+		double det = e1x * px + e1y * py + e1z * pz;
+		if (det == 0)
+			return Double.POSITIVE_INFINITY;
+		double inv = 1 / det;
+
+		double sx = ray.origin.x - v0x, sy = ray.origin.y - v0y, sz = ray.origin.z - v0z;
+		double beta = (sx * px + sy * py + sz * pz) * inv;
+		if (beta < 0 || beta > 1)
+			return Double.POSITIVE_INFINITY;
+
+		double qx = sy * e1z - sz * e1y, qy = sz * e1x - sx * e1z, qz = sx * e1y - sy * e1x;
+		double gamma = (dx * qx + dy * qy + dz * qz) * inv;
+		if (gamma < 0 || beta + gamma > 1)
+			return Double.POSITIVE_INFINITY;
+
+		double t = (e2x * qx + e2y * qy + e2z * qz) * inv;
+		if (t > ray.end || t < ray.start)
+			return Double.POSITIVE_INFINITY;
+
+		if (outRecord != null) {
+			outRecord.t = t;
+			outRecord.primitive = prim;
+			outRecord.beta = beta;
+			outRecord.gamma = gamma;
+		}
+		return t;
+	}
+
+	/**
+	 * Complete a record written by intersect with the location, normal and
+	 * texture coordinates of the hit. Only called for the hit that is shaded.
+	 * The location and normal are in the space of the store: world space, or
+	 * object space if the store was built without a transformation.
+	 *
+	 * @param record the record of the hit
+	 * @param ray the ray that produced it
+	 */
+	public void fillRecord(IntersectionRecord record, Ray ray) {
+		int face = record.primitive;
+		double beta = record.beta, gamma = record.gamma;
+		Workspace ws = Workspace.get();
+		Vector3d v = ws.meshVector;
+
+		ray.evaluate(record.location, record.t);
+
+		if (mesh.hasNormals(face)) {
+			record.normal.setZero();
+			mesh.getNormal(mesh.getNormalIndex(face, 0), v);
+			record.normal.addMultiple(1 - beta - gamma, v);
+			mesh.getNormal(mesh.getNormalIndex(face, 1), v);
+			record.normal.addMultiple(beta, v);
+			mesh.getNormal(mesh.getNormalIndex(face, 2), v);
+			record.normal.addMultiple(gamma, v);
+		} else {
+			// Object-space face normal, as in Triangle
+			mesh.getPosition(mesh.getPositionIndex(face, 0), v);
+			double v0x = v.x, v0y = v.y, v0z = v.z;
+			mesh.getPosition(mesh.getPositionIndex(face, 1), v);
+			double ax = v.x - v0x, ay = v.y - v0y, az = v.z - v0z;
+			mesh.getPosition(mesh.getPositionIndex(face, 2), v);
+			double bx = v.x - v0x, by = v.y - v0y, bz = v.z - v0z;
+			record.normal.set(ay * bz - az * by, az * bx - ax * bz, ax * by - ay * bx);
+		}
+		if (tMatTInv != null)
+			tMatTInv.mulDir(record.normal);
+		record.normal.normalize();
+
+		if (mesh.hasUVs(face)) {
+			Vector2d[] uv = ws.meshUVs;
+			for (int k = 0; k < 3; k++)
+				mesh.getUV(mesh.getUVIndex(face, k), uv[k]);
+			record.texCoords.setZero()
+					.addMultiple(1 - beta - gamma, uv[0])
+					.addMultiple(beta, uv[1])
+					.addMultiple(gamma, uv[2]);
+			int i0 = 3 * indices[3 * face];
+			int i1 = 3 * indices[3 * face + 1], i2 = 3 * indices[3 * face + 2];
+			record.texScale = texScale(uv[0], uv[1], uv[2],
+					positions[i1] - positions[i0], positions[i1 + 1] - positions[i0 + 1], positions[i1 + 2] - positions[i0 + 2],
+					positions[i2] - positions[i0], positions[i2 + 1] - positions[i0 + 1], positions[i2 + 2] - positions[i0 + 2]);
+		} else {
+			record.texScale = 0;
+		}
+	}
+
+	/**
+	 * The rate at which the texture coordinates of a face change across it, in
+	 * texture units per unit of distance: the square root of the ratio of its
+	 * area in texture space to its area in space.
+	 *
+	 * @param t0 the texture coordinates of vertex 0 (likewise t1, t2)
+	 * @param e1x the x component of the edge from vertex 0 to vertex 1 (likewise e1y, e1z)
+	 * @param e2x the x component of the edge from vertex 0 to vertex 2 (likewise e2y, e2z)
+	 * @return the rate, or 0 for a degenerate face
+	 */
+	static double texScale(Vector2d t0, Vector2d t1, Vector2d t2, double e1x, double e1y, double e1z,
+			double e2x, double e2y, double e2z) {
+		double cx = e1y * e2z - e1z * e2y, cy = e1z * e2x - e1x * e2z, cz = e1x * e2y - e1y * e2x;
+		double area = Math.sqrt(cx * cx + cy * cy + cz * cz);
+		if (area == 0)
+			return 0;
+		double texArea = Math.abs((t1.x - t0.x) * (t2.y - t0.y) - (t1.y - t0.y) * (t2.x - t0.x));
+		return Math.sqrt(texArea / area);
+	}
+}
@@ -9,7 +9,6 @@ import java.io.File;
 import javax.imageio.ImageIO;
 import javax.swing.JPanel;
 
-import egl.math.Colord;
 import ray2.Image;
 
 
@@ -108,16 +107,14 @@ public class PanelDisplay extends JPanel {
 			bufferedImage = new BufferedImage(image.getWidth(), image.getHeight(), BUFFER_TYPE);
 		}
 		
-		//int w = image.getWidth();
 		int h = image.getHeight();
-		Colord pixelColor = new Colord();
+		int n = xh - xl;
+		float[] row = new float[3 * n];
+		int[] rgb = new int[n];
 		for (int y = h-yh; y < h-yl; y++) {
-			for (int x = xl; x < xh; x++) {
-				image.getPixelColor(pixelColor,x,h-y-1);
-				pixelColor.gammaCorrect(2.2);
-				int rgb = pixelColor.toColor().toIntRGB();
-				bufferedImage.setRGB(x,y,rgb);
-			}
+			image.getRow(h-y-1, xl, xh, row, 0);
+			Image.toIntRGB(row, rgb, n);
+			bufferedImage.setRGB(xl, y, n, 1, rgb, 0, n);
 		}
 	}
 	